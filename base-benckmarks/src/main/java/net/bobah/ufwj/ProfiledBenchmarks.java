@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) 2018 Vladimir Lysyy (mrbald@github)
+ * ALv2 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+package net.bobah.ufwj;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.profile.LinuxPerfAsmProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks matching the regex, all queue ones by default, with the allocation and GC counters
+ * ({@code -prof gc}) and, with {@code -Dperfasm=true}, the hottest code regions ({@code -prof perfasm}, needs
+ * Linux perf and hsdis in the JDK).
+ *
+ * @author Vladimir Lysyy (mrbald@github)
+ */
+public final class ProfiledBenchmarks {
+    private ProfiledBenchmarks() {
+    }
+
+    public static void main(String[] argv) throws RunnerException {
+        final ChainedOptionsBuilder options = new OptionsBuilder()
+                .include(argv.length > 0 ? argv[0] : "net\\.bobah\\.ufwj\\.queue\\..*Benchmark")
+                .addProfiler(GCProfiler.class);
+        if (Boolean.getBoolean("perfasm")) {
+            options.addProfiler(LinuxPerfAsmProfiler.class);
+        }
+        new Runner(options.build()).run();
+    }
+}
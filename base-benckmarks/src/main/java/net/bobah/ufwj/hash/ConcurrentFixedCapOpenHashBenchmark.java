@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2018 Vladimir Lysyy (mrbald@github)
+ * ALv2 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+package net.bobah.ufwj.hash;
+
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.RunnerException;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Correlation tracking from several threads sharing one table: every thread registers a new id and completes
+ * the one registered {@code IN_FLIGHT} calls earlier, the ids of the threads interleave in the table.
+ */
+@Fork(1)
+@Threads(4)
+@BenchmarkMode({Mode.SampleTime, Mode.AverageTime})
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class ConcurrentFixedCapOpenHashBenchmark {
+    private static final int IN_FLIGHT = 1000;
+    private static final int THREAD_ID_BITS = 24;
+
+    private final AtomicInteger threadIdx = new AtomicInteger();
+
+    private ConcurrentFixedCapOpenHash<Integer, Integer> openHash;
+
+    private ConcurrentHashMap<Integer, Integer> jdkHash;
+
+    @State(Scope.Thread)
+    public static class Ids {
+        private int prefix;
+        private int seq;
+
+        @Setup(Level.Iteration)
+        public void setUp(ConcurrentFixedCapOpenHashBenchmark benchmark) {
+            prefix = benchmark.threadIdx.getAndIncrement() << THREAD_ID_BITS;
+            seq = 0;
+        }
+
+        Integer next() {
+            return prefix | (seq++ & ((1 << THREAD_ID_BITS) - 1));
+        }
+
+        Integer inFlight() {
+            return prefix | ((seq - IN_FLIGHT) & ((1 << THREAD_ID_BITS) - 1));
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void setUpIteration() {
+        openHash = new ConcurrentFixedCapOpenHash<>(16 * IN_FLIGHT);
+        jdkHash = new ConcurrentHashMap<>(16 * IN_FLIGHT);
+    }
+
+    @Benchmark
+    public Integer churnOpenHash(Ids ids) {
+        final Integer id = ids.next();
+        openHash.putIfAbsent(id, id);
+        return openHash.remove(ids.inFlight());
+    }
+
+    @Benchmark
+    public Integer churnJdkHashMap(Ids ids) {
+        final Integer id = ids.next();
+        jdkHash.putIfAbsent(id, id);
+        return jdkHash.remove(ids.inFlight());
+    }
+
+    @Benchmark
+    public Integer getOpenHash(Ids ids) {
+        final Integer id = ids.next();
+        openHash.putIfAbsent(id, id);
+        openHash.remove(ids.inFlight());
+        return openHash.get(ids.inFlight() + 1);
+    }
+
+    @Benchmark
+    public Integer getJdkHashMap(Ids ids) {
+        final Integer id = ids.next();
+        jdkHash.putIfAbsent(id, id);
+        jdkHash.remove(ids.inFlight());
+        return jdkHash.get(ids.inFlight() + 1);
+    }
+
+    public static void main(String[] argv) throws RunnerException, IOException {
+        Main.main(new String[]{ConcurrentFixedCapOpenHashBenchmark.class.getName()});
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2018 Vladimir Lysyy (mrbald@github)
+ * ALv2 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+package net.bobah.ufwj.hash;
+
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.RunnerException;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Request timeouts: every operation sends a request with a fixed timeout, the clock advances one tick per
+ * operation and the timed out requests are expired, by the timing wheel or by a sweep over the whole table.
+ */
+@Fork(1)
+@BenchmarkMode({Mode.SampleTime, Mode.AverageTime})
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class ExpiringFixedCapOpenHashBenchmark {
+    private static final long TICK_NANOS = 1000L;
+    private static final long TIMEOUT_NANOS = 10_000 * TICK_NANOS;
+
+    @Param({"16384", "262144"})
+    private int capacity;
+
+    private ExpiringFixedCapOpenHash<Integer, Integer> wheelHash;
+    private FixedCapOpenHash<Integer, Long> sweptHash;
+
+    private BiConsumer<Integer, Integer> expired;
+
+    private long now;
+    private int nextId;
+
+    @Setup(Level.Iteration)
+    public void setUpIteration(Blackhole blackhole) {
+        expired = (k, v) -> blackhole.consume(v);
+        wheelHash = new ExpiringFixedCapOpenHash<>(capacity, TICK_NANOS, (int) (TIMEOUT_NANOS / TICK_NANOS));
+        sweptHash = new FixedCapOpenHash<>(capacity);
+        now = 0L;
+        nextId = 0;
+    }
+
+    @Benchmark
+    public int expireWheel() {
+        final int id = nextId++;
+        final int pos = wheelHash.write(id);
+        wheelHash.setValue(pos, id);
+        wheelHash.setDeadline(pos, now + TIMEOUT_NANOS);
+
+        now += TICK_NANOS;
+        return wheelHash.expire(now, expired);
+    }
+
+    @Benchmark
+    public int expireSweep(Blackhole blackhole) {
+        final int id = nextId++;
+        sweptHash.setValue(sweptHash.write(id), now + TIMEOUT_NANOS);
+
+        now += TICK_NANOS;
+        int expired = 0;
+        for (int pos = 0; pos < sweptHash.capacity(); ++pos) {
+            final Long deadline = sweptHash.getValue(pos);
+            if (deadline != null && deadline <= now) {
+                blackhole.consume(sweptHash.getKey(pos));
+                // the backward shift may move an unvisited entry into the freed slot
+                sweptHash.drop(pos--);
+                ++expired;
+            }
+        }
+        return expired;
+    }
+
+    public static void main(String[] argv) throws RunnerException, IOException {
+        Main.main(new String[]{ExpiringFixedCapOpenHashBenchmark.class.getName()});
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2018 Vladimir Lysyy (mrbald@github)
+ * ALv2 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+package net.bobah.ufwj.hash;
+
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.RunnerException;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A batch of lookups, e.g. the acks of one IO read, with a loop of {@code find} vs one {@code findAll}, in the tables
+ * from well within the L2 cache to well over the L3 one. The tables are half full, nine in ten keys are hits.
+ */
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@BenchmarkMode(Mode.AverageTime)
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class FixedCapOpenHashBatchBenchmark {
+    private static final int BATCHES = 1024;
+
+    @Param({"16384", "4194304"})
+    private int capacity;
+
+    @Param({"64", "256"})
+    private int batch;
+
+    private LongLongFixedCapOpenHash longLongHash;
+    private FixedCapOpenHash<Long, Long> openHash;
+
+    private long[][] keys;
+    private Long[][] boxedKeys;
+    private int[] positions;
+    private int next = 0;
+
+    @Setup
+    public void setUp() {
+        final Random random = new Random(0);
+        longLongHash = new LongLongFixedCapOpenHash(capacity, 0L);
+        openHash = new FixedCapOpenHash<>(capacity);
+
+        final long[] present = new long[capacity / 2];
+        for (int i = 0; i < present.length; ++i) {
+            long key;
+            do {
+                key = random.nextLong();
+            } while (key == 0L || longLongHash.find(key) != -1);
+            present[i] = key;
+            longLongHash.setValue(longLongHash.write(key), key);
+            openHash.setValue(openHash.write(key), key);
+        }
+
+        keys = new long[BATCHES][batch];
+        boxedKeys = new Long[BATCHES][batch];
+        for (int b = 0; b < BATCHES; ++b) {
+            for (int i = 0; i < batch; ++i) {
+                final long key = random.nextInt(10) == 0 ? random.nextLong() | 1L : present[random.nextInt(present.length)];
+                keys[b][i] = key;
+                boxedKeys[b][i] = key;
+            }
+        }
+        positions = new int[batch];
+    }
+
+    @Benchmark
+    public long longLongFind() {
+        final long[] ks = keys[next = (next + 1) & (BATCHES - 1)];
+        long sum = 0L;
+        for (long key : ks) {
+            final int pos = longLongHash.find(key);
+            if (pos != -1) {
+                sum += longLongHash.getValue(pos);
+            }
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long longLongFindAll() {
+        final long[] ks = keys[next = (next + 1) & (BATCHES - 1)];
+        longLongHash.findAll(ks, positions);
+        long sum = 0L;
+        for (int pos : positions) {
+            if (pos != -1) {
+                sum += longLongHash.getValue(pos);
+            }
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long openHashFind() {
+        final Long[] ks = boxedKeys[next = (next + 1) & (BATCHES - 1)];
+        long sum = 0L;
+        for (Long key : ks) {
+            final int pos = openHash.find(key);
+            if (pos != -1) {
+                sum += openHash.getValue(pos);
+            }
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long openHashFindAll() {
+        final Long[] ks = boxedKeys[next = (next + 1) & (BATCHES - 1)];
+        openHash.findAll(ks, positions);
+        long sum = 0L;
+        for (int pos : positions) {
+            if (pos != -1) {
+                sum += openHash.getValue(pos);
+            }
+        }
+        return sum;
+    }
+
+    public static void main(String[] argv) throws RunnerException, IOException {
+        Main.main(new String[]{FixedCapOpenHashBatchBenchmark.class.getName()});
+    }
+}
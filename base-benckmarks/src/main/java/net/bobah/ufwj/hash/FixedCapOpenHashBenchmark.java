@@ -10,10 +10,14 @@ import org.openjdk.jmh.annotations.*;
 import org.openjdk.jmh.runner.RunnerException;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Random;
 import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+import java.util.function.IntBinaryOperator;
 
 import static java.util.stream.Collectors.toList;
 
@@ -23,7 +27,7 @@ import static java.util.stream.Collectors.toList;
 @OutputTimeUnit(TimeUnit.NANOSECONDS)
 @Warmup(iterations = 5)
 @Measurement(iterations = 5)
-public class FixedCapOpenHashBenchmark extends Main {
+public class FixedCapOpenHashBenchmark {
     private static final Random random = new Random(0);
 
     private static final List<Integer> keys
@@ -38,6 +42,8 @@ public class FixedCapOpenHashBenchmark extends Main {
 
     private HashMap<Integer, Integer> jdkHash;
 
+    private IntObjFixedCapOpenHash<Integer> intObjHash;
+
     private int posIdx = 0;
 
     private final Integer nextKey() {
@@ -48,6 +54,7 @@ public class FixedCapOpenHashBenchmark extends Main {
     public void setUpIteration() {
         openHash = new FixedCapOpenHash<>(2000);
         jdkHash = new HashMap<>(2000);
+        intObjHash = new IntObjFixedCapOpenHash<>(2000, 0);
     }
 
     @Benchmark
@@ -58,6 +65,14 @@ public class FixedCapOpenHashBenchmark extends Main {
         return pos;
     }
 
+    @Benchmark
+    public int writeIntObjOpenHash() {
+        final Integer key = nextKey();
+        final int pos = intObjHash.write(key);
+        intObjHash.setValue(pos, key);
+        return pos;
+    }
+
     @Benchmark
     public Integer writeJdkHashMap() {
         final Integer key = nextKey();
@@ -69,6 +84,199 @@ public class FixedCapOpenHashBenchmark extends Main {
         return nextKey();
     }
 
+    /**
+     * Steady state request/response correlation: every operation inserts a new sequential id
+     * and removes the one sent {@code IN_FLIGHT} operations ago.
+     */
+    @State(Scope.Thread)
+    public static class Churn {
+        private static final int IN_FLIGHT = 1500;
+
+        private final FixedCapOpenHash<Integer, Integer> openHash = new FixedCapOpenHash<>(2048);
+        private final IntObjFixedCapOpenHash<Integer> intObjHash = new IntObjFixedCapOpenHash<>(2048, -1);
+        private final HashMap<Integer, Integer> jdkHash = new HashMap<>(4096);
+        private final OffHeapFixedCapOpenHash offHeapHash = OffHeapFixedCapOpenHash.allocate(2048, 8, -1L);
+
+        private int nextId = 0;
+
+        @Setup(Level.Iteration)
+        public void setUpIteration() {
+            for (nextId = 0; nextId < IN_FLIGHT; ++nextId) {
+                openHash.setValue(openHash.write(nextId), nextId);
+                intObjHash.setValue(intObjHash.write(nextId), nextId);
+                jdkHash.put(nextId, nextId);
+                offHeapHash.setValue(offHeapHash.write(nextId), nextId);
+            }
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDownIteration() {
+            for (int id = nextId - IN_FLIGHT; id < nextId; ++id) {
+                openHash.drop(openHash.find(id));
+                intObjHash.drop(intObjHash.find(id));
+                offHeapHash.drop(offHeapHash.find(id));
+            }
+            jdkHash.clear();
+        }
+    }
+
+    @Benchmark
+    public Integer churnOpenHash(Churn churn) {
+        final int id = churn.nextId++;
+        final FixedCapOpenHash<Integer, Integer> hash = churn.openHash;
+        hash.setValue(hash.write(id), id);
+
+        final int pos = hash.find(id - Churn.IN_FLIGHT);
+        final Integer value = hash.getValue(pos);
+        hash.drop(pos);
+        return value;
+    }
+
+    @Benchmark
+    public Integer churnIntObjOpenHash(Churn churn) {
+        final int id = churn.nextId++;
+        final IntObjFixedCapOpenHash<Integer> hash = churn.intObjHash;
+        hash.setValue(hash.write(id), id);
+
+        final int pos = hash.find(id - Churn.IN_FLIGHT);
+        final Integer value = hash.getValue(pos);
+        hash.drop(pos);
+        return value;
+    }
+
+    @Benchmark
+    public long churnOffHeapOpenHash(Churn churn) {
+        final int id = churn.nextId++;
+        final OffHeapFixedCapOpenHash hash = churn.offHeapHash;
+        hash.setValue(hash.write(id), id);
+
+        final int pos = hash.find(id - Churn.IN_FLIGHT);
+        final long value = hash.getValue(pos);
+        hash.drop(pos);
+        return value;
+    }
+
+    @Benchmark
+    public Integer churnJdkHashMap(Churn churn) {
+        final int id = churn.nextId++;
+        churn.jdkHash.put(id, id);
+        return churn.jdkHash.remove(id - Churn.IN_FLIGHT);
+    }
+
+    /**
+     * A 75% full table populated from a given key distribution, probed with present and absent keys.
+     */
+    @State(Scope.Thread)
+    public static class Distribution {
+        private static final int CAPACITY = 1 << 12;
+        private static final int SIZE = CAPACITY * 3 / 4;
+
+        @Param({"random", "sequential", "aligned"})
+        private String keys;
+
+        @Param({"identity", "fibonacci", "murmur3"})
+        private String spreader;
+
+        @Param({"linear", "robinHood"})
+        private String probing;
+
+        private FixedCapOpenHash<Integer, Integer> openHash;
+        private Integer[] present;
+        private Integer[] absent;
+        private int idx = 0;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            final Integer[] all = new Integer[SIZE * 2];
+            final Random random = new Random(0);
+            for (int i = 0; i < all.length; ++i) {
+                switch (keys) {
+                    case "random": all[i] = random.nextInt(); break;
+                    case "sequential": all[i] = i; break;
+                    case "aligned": all[i] = i << 10; break;
+                    default: throw new IllegalArgumentException(keys);
+                }
+            }
+            Collections.shuffle(Arrays.asList(all), random);
+            present = Arrays.copyOfRange(all, 0, SIZE);
+            absent = Arrays.copyOfRange(all, SIZE, all.length);
+
+            openHash = new FixedCapOpenHash<>(CAPACITY, spreader(spreader), "robinHood".equals(probing));
+            for (Integer key : present) {
+                openHash.setValue(openHash.write(key), key);
+            }
+        }
+
+        private int nextIdx() {
+            return idx = (idx + 1) % SIZE;
+        }
+
+        private static IntBinaryOperator spreader(String name) {
+            switch (name) {
+                case "identity": return Hashing.IDENTITY;
+                case "fibonacci": return Hashing.FIBONACCI;
+                case "murmur3": return Hashing.MURMUR3;
+                default: throw new IllegalArgumentException(name);
+            }
+        }
+    }
+
+    @Benchmark
+    public int hitOpenHash(Distribution distribution) {
+        return distribution.openHash.find(distribution.present[distribution.nextIdx()]);
+    }
+
+    @Benchmark
+    public int missOpenHash(Distribution distribution) {
+        return distribution.openHash.find(distribution.absent[distribution.nextIdx()]);
+    }
+
+    /**
+     * Visiting all entries of a table filled to a given load factor.
+     */
+    @State(Scope.Thread)
+    public static class Iteration {
+        private static final int CAPACITY = 1 << 16;
+
+        @Param({"0.01", "0.1", "0.9"})
+        private double load;
+
+        private FixedCapOpenHash<Integer, Integer> openHash;
+        private IntConsumer summing;
+        private int sum;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            openHash = new FixedCapOpenHash<>(CAPACITY);
+            random.ints((int) (CAPACITY * load), 0, Integer.MAX_VALUE).distinct()
+                    .forEach(key -> openHash.setValue(openHash.write(key), key));
+            summing = pos -> sum += openHash.getValue(pos);
+        }
+    }
+
+    @Benchmark
+    public int iterateStream(Iteration iteration) {
+        final FixedCapOpenHash<Integer, Integer> hash = iteration.openHash;
+        return hash.stream().map(pos -> hash.getValue(pos)).sum();
+    }
+
+    @Benchmark
+    public int iterateForEach(Iteration iteration) {
+        iteration.sum = 0;
+        iteration.openHash.forEach(iteration.summing);
+        return iteration.sum;
+    }
+
+    @Benchmark
+    public int iterateCursor(Iteration iteration) {
+        final FixedCapOpenHash<Integer, Integer> hash = iteration.openHash;
+        int sum = 0;
+        for (int pos = hash.first(); pos != -1; pos = hash.next(pos)) {
+            sum += hash.getValue(pos);
+        }
+        return sum;
+    }
+
     public static void main(String[] argv) throws RunnerException, IOException {
         Main.main(new String[]{FixedCapOpenHashBenchmark.class.getName()});
     }
@@ -0,0 +1,228 @@
+/*
+ * Copyright (c) 2018 Vladimir Lysyy (mrbald@github)
+ * ALv2 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+package net.bobah.ufwj.queue;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * End-to-end latency of the queues at a fixed offered load, for the capacity planning, complements the JMH benchmarks
+ * which measure the cost of an operation at the saturation.
+ * <p>
+ * The producers send on a fixed schedule, each message carries the time it was due to be sent, and the single
+ * consumer records the time from then to its arrival into a {@link LatencyHistogram}. A producer stalled by the
+ * queue, e.g. suspended by the watermarks or blocked on a full queue, falls behind the schedule and all the messages
+ * it delays show the stall, so the result is free of the coordinated omission. A producer over its share of the rate
+ * does not skip messages to catch up, the achieved rate is reported next to the offered one.
+ * </p>
+ * <p>
+ * All combinations of the system properties below are run in turn, the latencies are in microseconds.
+ * </p>
+ * <pre>
+ * java -cp base-benckmarks.jar:base.jar net.bobah.ufwj.queue.LatencyHarness \
+ *     -Dtargets=WatermarkQueue,RingWatermarkQueue,WatermarkTracker,ArrayBlockingQueue,LinkedBlockingQueue \
+ *     -Dproducers=1,2,4,8 -Drates=100000,1000000,5000000 -Dwarmup=2 -Dduration=10
+ * </pre>
+ *
+ * @author Vladimir Lysyy (mrbald@github)
+ */
+public final class LatencyHarness {
+    private static final int CAPACITY = 8192;
+    private static final int LOWER_WATERMARK = 2000;
+    private static final int UPPER_WATERMARK = 8000;
+
+    /**
+     * Messages per producer, well over the most in flight, the queue capacity or the upper watermark plus one
+     * per producer, so a message is reused long after the consumer has read it.
+     */
+    private static final int POOL = 4 * CAPACITY;
+
+    private static final double[] PERCENTILES = {0.5, 0.9, 0.99, 0.999, 0.9999};
+
+    /**
+     * Preallocated by the producer and reused round robin, so the harness does not allocate per message.
+     */
+    private static final class Message {
+        private long due;
+    }
+
+    /**
+     * The queue under test, {@code put} waits while the producer is suspended or the queue is full,
+     * {@code poll} returns null if there is nothing to take.
+     */
+    private static final class Target {
+        private final Consumer<Message> put;
+        private final Supplier<Message> poll;
+
+        Target(Consumer<Message> put, Supplier<Message> poll) {
+            this.put = put;
+            this.poll = poll;
+        }
+    }
+
+    private LatencyHarness() {
+    }
+
+    public static void main(String[] argv) throws InterruptedException {
+        final String[] targets = System.getProperty("targets",
+                "WatermarkQueue,RingWatermarkQueue,WatermarkTracker,ArrayBlockingQueue,LinkedBlockingQueue").split(",");
+        final String[] producers = System.getProperty("producers", "1,2,4,8").split(",");
+        final String[] rates = System.getProperty("rates", "100000,1000000,5000000").split(",");
+        final long warmupNanos = TimeUnit.SECONDS.toNanos(Long.getLong("warmup", 2L));
+        final long durationNanos = TimeUnit.SECONDS.toNanos(Long.getLong("duration", 10L));
+
+        final StringBuilder header = new StringBuilder(String.format("%-20s %9s %10s %10s",
+                "target", "producers", "offered/s", "achieved/s"));
+        for (double q : PERCENTILES) {
+            header.append(String.format(" %10s", "p" + q * 100));
+        }
+        System.out.println(header.append(String.format(" %10s", "max")));
+
+        for (String target : targets) {
+            for (String p : producers) {
+                for (String rate : rates) {
+                    System.out.println(run(target, Integer.parseInt(p), Long.parseLong(rate),
+                            warmupNanos, durationNanos));
+                    System.gc();
+                }
+            }
+        }
+    }
+
+    private static String run(String name, int producers, long rate, long warmupNanos, long durationNanos)
+            throws InterruptedException {
+        final Target target = target(name, producers);
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final AtomicInteger running = new AtomicInteger(producers);
+
+        final double intervalNanos = 1e9 * producers / rate;
+        final long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        final long measureFrom = start + warmupNanos;
+        final long end = measureFrom + durationNanos;
+
+        final Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; ++p) {
+            // the producers interleave, together they send at the even intervals
+            final double offset = intervalNanos * p / producers;
+            threads[p] = new Thread(() -> {
+                final Message[] pool = new Message[POOL];
+                for (int i = 0; i < pool.length; ++i) {
+                    pool[i] = new Message();
+                }
+                try {
+                    for (long i = 0; ; ++i) {
+                        final long due = start + (long) (offset + i * intervalNanos);
+                        if (due >= end) {
+                            break;
+                        }
+                        while (System.nanoTime() < due) {
+                            Thread.yield();
+                        }
+                        final Message message = pool[(int) (i & (POOL - 1))];
+                        message.due = due;
+                        target.put.accept(message);
+                    }
+                } finally {
+                    running.decrementAndGet();
+                }
+            }, "producer-" + p);
+            threads[p].setDaemon(true);
+            threads[p].start();
+        }
+
+        long lastArrival = measureFrom;
+        for (;;) {
+            final Message message = target.poll.get();
+            if (message == null) {
+                // all puts are done once the producers are, so an empty queue then stays empty
+                if (running.get() == 0 && target.poll.get() == null) {
+                    break;
+                }
+                continue;
+            }
+            final long due = message.due;
+            final long now = System.nanoTime();
+            if (due >= measureFrom) {
+                histogram.record(now - due);
+                lastArrival = now;
+            }
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // the producers behind the schedule keep sending after the end of it
+        final long elapsed = Math.max(durationNanos, lastArrival - measureFrom);
+        final StringBuilder result = new StringBuilder(String.format("%-20s %9d %10d %10d",
+                name, producers, rate, (long) (histogram.count() * 1e9 / elapsed)));
+        for (double q : PERCENTILES) {
+            result.append(String.format(" %10.1f", histogram.percentile(q) / 1e3));
+        }
+        return result.append(String.format(" %10.1f", histogram.max() / 1e3)).toString();
+    }
+
+    private static Target target(String name, int producers) {
+        switch (name) {
+            case "WatermarkQueue": {
+                final WatermarkQueue<Message> queue = new WatermarkQueue<>(LOWER_WATERMARK, UPPER_WATERMARK, 1L,
+                        () -> {}, () -> {});
+                return new Target(e -> {
+                    while (queue.isProducerSuspended()) {
+                        Thread.yield();
+                    }
+                    queue.offer(e);
+                }, queue::poll);
+            }
+            case "RingWatermarkQueue": {
+                final RingWatermarkQueue<Message> queue = producers == 1
+                        ? RingWatermarkQueue.newSpsc(CAPACITY, LOWER_WATERMARK, UPPER_WATERMARK, () -> {}, () -> {})
+                        : RingWatermarkQueue.newMpsc(CAPACITY, LOWER_WATERMARK, UPPER_WATERMARK, () -> {}, () -> {});
+                return new Target(e -> {
+                    while (queue.isProducerSuspended() || !queue.offer(e)) {
+                        Thread.yield();
+                    }
+                }, queue::poll);
+            }
+            case "WatermarkTracker": {
+                final WatermarkTracker<Message, Void> tracker = WatermarkTracker.newMono(
+                        new LinkedBlockingQueue<>(), LOWER_WATERMARK, UPPER_WATERMARK, () -> {}, () -> {});
+                return new Target(e -> {
+                    while (tracker.isSuspended()) {
+                        Thread.yield();
+                    }
+                    tracker.add(e);
+                }, () -> {
+                    try {
+                        return tracker.poll(0L, TimeUnit.NANOSECONDS);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        return null;
+                    }
+                });
+            }
+            case "ArrayBlockingQueue":
+                return blocking(new ArrayBlockingQueue<>(CAPACITY));
+            case "LinkedBlockingQueue":
+                return blocking(new LinkedBlockingQueue<>(CAPACITY));
+            default:
+                throw new IllegalArgumentException(name);
+        }
+    }
+
+    private static Target blocking(BlockingQueue<Message> queue) {
+        return new Target(e -> {
+            while (!queue.offer(e)) {
+                Thread.yield();
+            }
+        }, queue::poll);
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2018 Vladimir Lysyy (mrbald@github)
+ * ALv2 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+package net.bobah.ufwj.queue;
+
+/**
+ * Log-linear histogram of non-negative longs in the HdrHistogram layout, 128 linear sub-buckets per power of two,
+ * so a recorded value is off by less than 1%. Preallocated, single writer.
+ *
+ * @author Vladimir Lysyy (mrbald@github)
+ */
+final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR = 2 * SUB_BUCKETS;
+    private static final int LINEAR_BITS = SUB_BUCKET_BITS + 1;
+
+    private final long[] counts = new long[LINEAR + (Long.SIZE - 1 - LINEAR_BITS) * SUB_BUCKETS];
+    private long count = 0L;
+    private long max = 0L;
+
+    void record(long value) {
+        assert value >= 0L;
+        ++counts[index(value)];
+        ++count;
+        if (value > max) {
+            max = value;
+        }
+    }
+
+    long count() {
+        return count;
+    }
+
+    long max() {
+        return max;
+    }
+
+    /**
+     * @return the highest value equivalent to the value at the quantile, 0 if empty
+     */
+    long percentile(double q) {
+        final long rank = Math.max(1L, (long) Math.ceil(q * count));
+        long seen = 0L;
+        for (int i = 0; i < counts.length; ++i) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(max, highest(i));
+            }
+        }
+        return 0L;
+    }
+
+    private static int index(long value) {
+        if (value < LINEAR) {
+            return (int) value;
+        }
+        final int magnitude = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        final int shift = magnitude - SUB_BUCKET_BITS;
+        return LINEAR + (magnitude - LINEAR_BITS) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    private static long highest(int index) {
+        if (index < LINEAR) {
+            return index;
+        }
+        final int magnitude = (index - LINEAR) / SUB_BUCKETS + LINEAR_BITS;
+        final int shift = magnitude - SUB_BUCKET_BITS;
+        final long sub = (index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+}
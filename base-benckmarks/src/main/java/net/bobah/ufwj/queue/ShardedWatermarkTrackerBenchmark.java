@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2018 Vladimir Lysyy (mrbald@github)
+ * ALv2 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+package net.bobah.ufwj.queue;
+
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.RunnerException;
+
+import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput of a batch of payloads from many sources through 1 to N shard consumers, each payload costs
+ * the consumer some CPU, so a single consumer is the bottleneck.
+ */
+@Fork(1)
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 5, time = 3)
+@Measurement(iterations = 5, time = 3)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class ShardedWatermarkTrackerBenchmark {
+    private static final int SOURCES = 64;
+    private static final int BATCH = 4096;
+
+    @Param({"1", "2", "4"})
+    private int shards;
+
+    @Param({"100"})
+    private int consumerTokens;
+
+    private final AtomicLong consumed = new AtomicLong();
+
+    private ShardedWatermarkTracker<Integer, Integer> tracker;
+    private Thread[] consumers;
+    private long produced = 0;
+
+    @Setup
+    public void setUp() {
+        tracker = ShardedWatermarkTracker.newSharded(shards, LinkedBlockingQueue::new,
+                BATCH, 2 * BATCH, x -> x, x -> {}, x -> {});
+        consumers = new Thread[shards];
+        for (int shard = 0; shard < shards; ++shard) {
+            consumers[shard] = new Thread(tracker.consumer(shard, x -> {
+                Blackhole.consumeCPU(consumerTokens);
+                consumed.incrementAndGet();
+            }, 64));
+            consumers[shard].setDaemon(true);
+            consumers[shard].start();
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        for (Thread consumer : consumers) {
+            consumer.interrupt();
+            consumer.join();
+        }
+    }
+
+    @Benchmark
+    public long batch() {
+        for (int i = 0; i < BATCH; ++i) {
+            tracker.add(i % SOURCES);
+        }
+        produced += BATCH;
+        while (consumed.get() < produced) {
+            Thread.yield();
+        }
+        return produced;
+    }
+
+    public static void main(String[] argv) throws RunnerException, IOException {
+        Main.main(new String[]{ShardedWatermarkTrackerBenchmark.class.getName()});
+    }
+}
@@ -43,6 +43,184 @@ public class WatermarkQueueBenchmark {
         }
     }
 
+    /**
+     * {@link Watermarked} with the metrics on, the difference is the metrics overhead.
+     */
+    @Fork(1)
+    @BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+    @Warmup(iterations = 5, time = 3)
+    @Measurement(iterations = 5, time = 3)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @State(Scope.Group)
+    public static class Metered {
+        @Param({"1024"})
+        private int sampleInterval;
+
+        private WatermarkQueue<Object> queue
+                = new WatermarkQueue<>(2000, 8000, 1000L, ()->{}, ()->{});
+
+        @Setup
+        public void setUp() {
+            queue.enableMetrics(sampleInterval);
+        }
+
+        @Benchmark
+        @Group("metered")
+        @GroupThreads(1)
+        public void produce() throws InterruptedException {
+            while (queue.isProducerSuspended()) {
+                Thread.yield();
+            }
+            queue.add(DUMMY);
+        }
+
+        @Benchmark
+        @Group("metered")
+        @GroupThreads(1)
+        public Object consume() throws InterruptedException {
+            return queue.poll();
+        }
+    }
+
+    @Fork(1)
+    @BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+    @Warmup(iterations = 5, time = 3)
+    @Measurement(iterations = 5, time = 3)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @State(Scope.Group)
+    public static class Spsc {
+        private RingWatermarkQueue<Object> queue
+                = RingWatermarkQueue.newSpsc(8192, 2000, 8000, ()->{}, ()->{});
+
+        @Benchmark
+        @Group("spsc")
+        @GroupThreads(1)
+        public void produce() throws InterruptedException {
+            while (queue.isProducerSuspended() || !queue.offer(DUMMY)) {
+                Thread.yield();
+            }
+        }
+
+        @Benchmark
+        @Group("spsc")
+        @GroupThreads(1)
+        public Object consume() throws InterruptedException {
+            return queue.poll();
+        }
+    }
+
+    @Fork(1)
+    @BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+    @Warmup(iterations = 5, time = 3)
+    @Measurement(iterations = 5, time = 3)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @State(Scope.Group)
+    public static class Mpsc {
+        private RingWatermarkQueue<Object> queue
+                = RingWatermarkQueue.newMpsc(8192, 2000, 8000, ()->{}, ()->{});
+
+        @Benchmark
+        @Group("mpsc")
+        @GroupThreads(2)
+        public void produce() throws InterruptedException {
+            while (queue.isProducerSuspended() || !queue.offer(DUMMY)) {
+                Thread.yield();
+            }
+        }
+
+        @Benchmark
+        @Group("mpsc")
+        @GroupThreads(1)
+        public Object consume() throws InterruptedException {
+            return queue.poll();
+        }
+    }
+
+    /**
+     * {@link Mpsc} with the preallocated events, {@code -prof gc} shows no allocation.
+     */
+    @Fork(1)
+    @BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+    @Warmup(iterations = 5, time = 3)
+    @Measurement(iterations = 5, time = 3)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @State(Scope.Group)
+    public static class Slots {
+        private static final class Event {
+            long value;
+        }
+
+        private SlotWatermarkQueue<Event> queue
+                = SlotWatermarkQueue.newMpsc(8192, 2000, 8000, Event::new, ()->{}, ()->{});
+
+        private long received = 0L;
+
+        @Benchmark
+        @Group("slots")
+        @GroupThreads(2)
+        public void produce() throws InterruptedException {
+            long sequence;
+            while (queue.isProducerSuspended() || (sequence = queue.claim()) < 0L) {
+                Thread.yield();
+            }
+            queue.get(sequence).value = sequence;
+            queue.publish(sequence);
+        }
+
+        @Benchmark
+        @Group("slots")
+        @GroupThreads(1)
+        public long consume() throws InterruptedException {
+            queue.drainTo(e -> received += e.value, 1);
+            return received;
+        }
+    }
+
+    @Fork(1)
+    @BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+    @Warmup(iterations = 5, time = 3)
+    @Measurement(iterations = 5, time = 3)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @State(Scope.Group)
+    public static class Waiting {
+        @Param({"busySpin", "spinThenYield", "spinThenPark", "blocking"})
+        private String waitStrategy;
+
+        private RingWatermarkQueue<Object> queue;
+
+        @Setup
+        public void setUp() {
+            queue = RingWatermarkQueue.newSpsc(8192, 2000, 8000, ()->{}, ()->{},
+                    waitStrategy(waitStrategy), waitStrategy(waitStrategy));
+        }
+
+        @Benchmark
+        @Group("waiting")
+        @GroupThreads(1)
+        public void produce() throws InterruptedException {
+            while (!queue.awaitResume(1, TimeUnit.SECONDS) || !queue.offer(DUMMY)) {
+                Thread.yield();
+            }
+        }
+
+        @Benchmark
+        @Group("waiting")
+        @GroupThreads(1)
+        public Object consume() throws InterruptedException {
+            return queue.poll(1, TimeUnit.SECONDS);
+        }
+
+        private static WaitStrategy waitStrategy(String name) {
+            switch (name) {
+                case "busySpin": return WaitStrategies.busySpin();
+                case "spinThenYield": return WaitStrategies.spinThenYield(100);
+                case "spinThenPark": return WaitStrategies.spinThenPark();
+                case "blocking": return WaitStrategies.blocking();
+                default: throw new IllegalArgumentException(name);
+            }
+        }
+    }
+
     public static void main(String[] argv) throws RunnerException, IOException {
         Main.main(new String[]{WatermarkQueueBenchmark.class.getName()});
     }
@@ -11,8 +11,9 @@ import org.openjdk.jmh.runner.RunnerException;
 
 import java.io.IOException;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
-public class WatermarkTrackerBenchmark extends Main {
+public class WatermarkTrackerBenchmark {
     private static final Object DUMMY = new Object();
 
     @Fork(1)
@@ -77,6 +78,128 @@ public class WatermarkTrackerBenchmark extends Main {
         }
     }
 
+    /**
+     * Market data fan-in: several producers feeding one consumer through a single source.
+     */
+    @Fork(1)
+    @BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+    @Warmup(iterations = 5, time = 3)
+    @Measurement(iterations = 5, time = 3)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @State(Scope.Group)
+    public static class MonoFanIn {
+        private BlockingQueue<Object> queue = new LinkedBlockingDeque<Object>();
+        private WatermarkTracker<Object, String> tracker
+                = WatermarkTracker.newMono(queue, 2000, 8000, ()->{}, ()->{});
+
+        @Benchmark
+        @Group("monoFanIn")
+        @GroupThreads(4)
+        public void produce() throws InterruptedException {
+            while (tracker.isSuspended(null)) {
+                Thread.yield();
+            }
+            tracker.add(DUMMY);
+        }
+
+        @Benchmark
+        @Group("monoFanIn")
+        @GroupThreads(1)
+        public Object consume() throws InterruptedException {
+            return tracker.poll(1, TimeUnit.HOURS);
+        }
+    }
+
+    /**
+     * Market data fan-in: several producers feeding one consumer, each producer is a separate source.
+     */
+    @Fork(1)
+    @BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+    @Warmup(iterations = 5, time = 3)
+    @Measurement(iterations = 5, time = 3)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @State(Scope.Group)
+    public static class MultiFanIn {
+        private final AtomicInteger sources = new AtomicInteger();
+
+        private BlockingQueue<String> queue = new LinkedBlockingDeque<String>();
+        private WatermarkTracker<String, String> tracker
+                = WatermarkTracker.newMulti(queue, 2000, 8000, x->x, x->{}, x->{});
+
+        @State(Scope.Thread)
+        public static class Source {
+            private String key;
+
+            @Setup
+            public void setUp(MultiFanIn benchmark) {
+                key = Integer.toString(benchmark.sources.getAndIncrement());
+            }
+        }
+
+        @Benchmark
+        @Group("multiFanIn")
+        @GroupThreads(4)
+        public void produce(Source source) throws InterruptedException {
+            while (tracker.isSuspended(source.key)) {
+                Thread.yield();
+            }
+            tracker.add(source.key);
+        }
+
+        @Benchmark
+        @Group("multiFanIn")
+        @GroupThreads(1)
+        public Object consume() throws InterruptedException {
+            return tracker.poll(1, TimeUnit.HOURS);
+        }
+    }
+
+    /**
+     * Same as {@link MultiFanIn} with the sources identified by dense int ids.
+     */
+    @Fork(1)
+    @BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+    @Warmup(iterations = 5, time = 3)
+    @Measurement(iterations = 5, time = 3)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @State(Scope.Group)
+    public static class IndexedFanIn {
+        private final AtomicInteger sources = new AtomicInteger();
+
+        private BlockingQueue<Integer> queue = new LinkedBlockingDeque<Integer>();
+        private WatermarkTracker<Integer, Integer> tracker
+                = WatermarkTracker.newIndexed(queue, 2000, 8000, x->x, 4, x->{}, x->{});
+
+        @State(Scope.Thread)
+        public static class Source {
+            private int id;
+            private Integer payload;
+
+            @Setup
+            public void setUp(IndexedFanIn benchmark) {
+                id = benchmark.sources.getAndIncrement();
+                payload = id;
+            }
+        }
+
+        @Benchmark
+        @Group("indexedFanIn")
+        @GroupThreads(4)
+        public void produce(Source source) throws InterruptedException {
+            while (tracker.isSourceSuspended(source.id)) {
+                Thread.yield();
+            }
+            tracker.add(source.payload);
+        }
+
+        @Benchmark
+        @Group("indexedFanIn")
+        @GroupThreads(1)
+        public Object consume() throws InterruptedException {
+            return tracker.poll(1, TimeUnit.HOURS);
+        }
+    }
+
     public static void main(String[] argv) throws RunnerException, IOException {
         Main.main(new String[]{WatermarkTrackerBenchmark.class.getName()});
     }
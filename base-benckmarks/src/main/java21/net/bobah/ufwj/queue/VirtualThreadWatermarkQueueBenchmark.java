@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2018 Vladimir Lysyy (mrbald@github)
+ * ALv2 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+package net.bobah.ufwj.queue;
+
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.RunnerException;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thousands of producer/consumer pairs, one {@link WatermarkQueue} each, the producers park in
+ * {@link WatermarkQueue#awaitResume(long, TimeUnit)} and the consumers in {@link WatermarkQueue#poll()}.
+ * With the virtual threads the carriers are not pinned by the parked pairs and a few of them serve all.
+ * Needs JDK 21, built by the {@code java21} profile.
+ */
+@Fork(1)
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 3)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class VirtualThreadWatermarkQueueBenchmark {
+    private static final int MESSAGES = 256;
+    private static final int LOWER_WATERMARK = 8;
+    private static final int UPPER_WATERMARK = 32;
+
+    @Param({"virtual", "platform"})
+    private String threads;
+
+    @Param({"1000", "5000"})
+    private int pairs;
+
+    private ExecutorService executor;
+
+    @Setup
+    public void setUp() {
+        executor = "virtual".equals(threads)
+                ? Executors.newVirtualThreadPerTaskExecutor()
+                : Executors.newThreadPerTaskExecutor(Thread.ofPlatform().daemon().factory());
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.close();
+    }
+
+    @Benchmark
+    public long pairs() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(2 * pairs);
+        for (int pair = 0; pair < pairs; ++pair) {
+            final WatermarkQueue<Integer> queue = new WatermarkQueue<>(LOWER_WATERMARK, UPPER_WATERMARK, 100L,
+                    () -> {}, () -> {});
+            executor.execute(() -> {
+                try {
+                    for (int i = 0; i < MESSAGES; ++i) {
+                        while (queue.isProducerSuspended()) {
+                            queue.awaitResume(100L, TimeUnit.MILLISECONDS);
+                        }
+                        queue.offer(i);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            });
+            executor.execute(() -> {
+                for (int n = 0; n < MESSAGES && !Thread.currentThread().isInterrupted(); ) {
+                    if (queue.poll() != null) {
+                        ++n;
+                    }
+                }
+                done.countDown();
+            });
+        }
+        done.await();
+        return (long) pairs * MESSAGES;
+    }
+
+    public static void main(String[] argv) throws RunnerException, IOException {
+        Main.main(new String[]{VirtualThreadWatermarkQueueBenchmark.class.getName()});
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2018 Vladimir Lysyy (mrbald@github)
+ * ALv2 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+package net.bobah.ufwj.hash;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.IntBinaryOperator;
+
+/**
+ * Fixed capacity open addressing hash table safe for concurrent use, lock-free.
+ * <p>
+ * Same preallocated linear probing layout as {@link FixedCapOpenHash}. Writers claim empty slots with a CAS and
+ * publish the value with a volatile store, readers validate the key again after reading the value. A removed key
+ * leaves a tombstone which the next insert probing through it reuses, so the table never needs a rebuild, and
+ * the lookups never probe past the longest distance of an insert from its home slot.
+ * </p>
+ * <p>
+ * No memory allocation after construction. A key must not be inserted by two threads concurrently,
+ * which holds for correlation ids generated by their sender.
+ * </p>
+ * @param <K> key data type
+ * @param <V> value data type
+ *
+ * @author Vladimir Lysyy (mrbald@github)
+ */
+public final class ConcurrentFixedCapOpenHash<K, V> {
+    private static final Object TOMBSTONE = new Object();
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<ConcurrentFixedCapOpenHash> MAX_PROBE
+            = AtomicIntegerFieldUpdater.newUpdater(ConcurrentFixedCapOpenHash.class, "maxProbe");
+
+    private final int modOp;
+    private final int shift;
+    private final IntBinaryOperator spreader;
+
+    private final AtomicReferenceArray<Object> keys;
+    private final AtomicReferenceArray<V> values;
+
+    private volatile int maxProbe = 0;
+
+    /**
+     * An instance of {@link ConcurrentFixedCapOpenHash} with capacity at least equal to the requested
+     * and {@link Hashing#FIBONACCI} hash spreading.
+     * @param requiredCap required capacity
+     */
+    public ConcurrentFixedCapOpenHash(int requiredCap) {
+        this(requiredCap, Hashing.FIBONACCI);
+    }
+
+    /**
+     * An instance of {@link ConcurrentFixedCapOpenHash} with capacity at least equal to the requested.
+     * @param requiredCap required capacity
+     * @param spreader hash code spreading function, see {@link Hashing}
+     */
+    public ConcurrentFixedCapOpenHash(int requiredCap, IntBinaryOperator spreader) {
+        assert requiredCap > 1;
+
+        int cap = 1 << (Integer.SIZE - Integer.numberOfLeadingZeros(requiredCap - 1));
+
+        this.modOp = cap - 1;
+        this.shift = Hashing.shift(cap);
+        this.spreader = spreader;
+        this.keys = new AtomicReferenceArray<>(cap);
+        this.values = new AtomicReferenceArray<>(cap);
+    }
+
+    /**
+     * @return the value for the key or null if the key is not in the table
+     */
+    public V get(K key) {
+        final int base = home(key);
+
+        retry:
+        for (;;) {
+            for (int dist = 0, limit = maxProbe; dist <= limit; ++dist) {
+                final int pos = cycled(base + dist);
+                final Object keyAtPos = keys.get(pos);
+                if (keyAtPos == null) {
+                    return null;
+                } else if (keyAtPos != TOMBSTONE && key.equals(keyAtPos)) {
+                    final V value = values.get(pos);
+                    if (keys.get(pos) != keyAtPos) {
+                        // the slot was removed and reused while reading
+                        continue retry;
+                    }
+                    return value;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Inserts the key if it is not in the table.
+     *
+     * @return the value already associated with the key or null if the value was inserted
+     * @throws IllegalStateException if the table is full
+     */
+    public V putIfAbsent(K key, V value) {
+        assert value != null;
+
+        final int base = home(key);
+
+        retry:
+        for (;;) {
+            int free = -1;
+            int freeDist = -1;
+
+            int dist = 0;
+            for (final int limit = maxProbe; dist <= limit; ++dist) {
+                final int pos = cycled(base + dist);
+                final Object keyAtPos = keys.get(pos);
+                if (keyAtPos == null) {
+                    break;
+                } else if (keyAtPos == TOMBSTONE) {
+                    if (free == -1) {
+                        free = pos;
+                        freeDist = dist;
+                    }
+                } else if (key.equals(keyAtPos)) {
+                    final V existing = values.get(pos);
+                    if (existing == null) {
+                        // being removed, let it complete
+                        continue retry;
+                    }
+                    return existing;
+                }
+            }
+
+            if (free == -1) {
+                // first empty or tombstone slot past the probe limit, wrapping around the whole table
+                // to catch the slots freed behind the scan above
+                for (final int end = dist + keys.length(); dist < end; ++dist) {
+                    final int pos = cycled(base + dist);
+                    final Object keyAtPos = keys.get(pos);
+                    if (keyAtPos == null || keyAtPos == TOMBSTONE) {
+                        free = pos;
+                        freeDist = cycled(dist);
+                        break;
+                    }
+                }
+                if (free == -1) {
+                    throw new IllegalStateException("table is full");
+                }
+            }
+
+            final Object expected = keys.get(free);
+            if ((expected != null && expected != TOMBSTONE) || !keys.compareAndSet(free, expected, key)) {
+                continue;
+            }
+
+            probed(freeDist);
+            values.set(free, value);
+
+            return null;
+        }
+    }
+
+    /**
+     * @return the removed value or null if the key is not in the table
+     */
+    public V remove(K key) {
+        final int base = home(key);
+
+        retry:
+        for (;;) {
+            for (int dist = 0, limit = maxProbe; dist <= limit; ++dist) {
+                final int pos = cycled(base + dist);
+                final Object keyAtPos = keys.get(pos);
+                if (keyAtPos == null) {
+                    return null;
+                } else if (keyAtPos != TOMBSTONE && key.equals(keyAtPos)) {
+                    final V value = values.get(pos);
+                    if (keys.get(pos) != keyAtPos) {
+                        continue retry;
+                    }
+                    if (value == null) {
+                        // being inserted or removed by another thread
+                        return null;
+                    }
+                    if (!values.compareAndSet(pos, value, null)) {
+                        continue retry;
+                    }
+                    keys.set(pos, TOMBSTONE);
+                    return value;
+                }
+            }
+            return null;
+        }
+    }
+
+    public int capacity() {
+        return keys.length();
+    }
+
+    private int cycled(int pos) {
+        return pos & modOp;
+    }
+
+    private int home(Object key) {
+        return cycled(spreader.applyAsInt(key.hashCode(), shift));
+    }
+
+    private void probed(int dist) {
+        int current;
+        while (dist > (current = maxProbe) && !MAX_PROBE.compareAndSet(this, current, dist)) {
+            // retry
+        }
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright (c) 2018 Vladimir Lysyy (mrbald@github)
+ * ALv2 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+package net.bobah.ufwj.hash;
+
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * Fixed capacity open addressing hash table with per-entry deadlines, for the request timeouts.
+ * <p>
+ * The slot position API of {@link FixedCapOpenHash} plus a deadline per slot. The scheduled slots are linked into
+ * the buckets of a hashed timing wheel, intrusive doubly linked lists in preallocated {@code int[]} arrays, so that
+ * {@link #expire(long, BiConsumer)} only visits the buckets of the elapsed ticks and not the whole table. Deadlines
+ * further than a wheel rotation away stay in their bucket and are skipped until due.
+ * </p>
+ * <p>
+ * Linear probing, {@link Hashing#fibonacci(int, int)} hash spreading, backward shift deletion relinking the moved
+ * slots.
+ * No memory allocation after construction.
+ * </p>
+ * @param <K> key data type
+ * @param <V> value data type
+ *
+ * @author Vladimir Lysyy (mrbald@github)
+ */
+public final class ExpiringFixedCapOpenHash<K, V> {
+    private static final int UNLINKED = -1;
+
+    private final int modOp;
+    private final int shift;
+
+    private final Object[] keys;
+    private final Object[] values;
+    private final long[] deadlines;
+
+    /**
+     * Wheel links, slots first, then one sentinel per bucket at {@code capacity + bucket}.
+     */
+    private final int[] next;
+    private final int[] prev;
+
+    private final long tickNanos;
+    private final int wheelMask;
+
+    private int size = 0;
+    private int maxProbe = 0;
+
+    /**
+     * The last tick {@link #expire(long, BiConsumer)} has processed.
+     */
+    private long expiredTick = Long.MIN_VALUE;
+
+    /**
+     * The next slot to visit in the bucket being expired, kept up to date by the backward shift.
+     */
+    private int expireCursor = UNLINKED;
+
+    /**
+     * An instance of {@link ExpiringFixedCapOpenHash} with capacity at least equal to the requested.
+     * @param requiredCap required capacity
+     * @param tickNanos resolution of the deadlines
+     * @param requiredWheelSize number of the wheel buckets, rounded up to a power of two, ideally covers
+     *                          the longest timeout
+     */
+    public ExpiringFixedCapOpenHash(int requiredCap, long tickNanos, int requiredWheelSize) {
+        assert requiredCap > 1 && tickNanos > 0 && requiredWheelSize > 0;
+
+        final int cap = 1 << (Integer.SIZE - Integer.numberOfLeadingZeros(requiredCap - 1));
+        final int wheelSize = requiredWheelSize == 1
+                ? 1 : 1 << (Integer.SIZE - Integer.numberOfLeadingZeros(requiredWheelSize - 1));
+
+        this.modOp = cap - 1;
+        this.shift = Hashing.shift(cap);
+        this.keys = new Object[cap];
+        this.values = new Object[cap];
+        this.deadlines = new long[cap];
+        this.next = new int[cap + wheelSize];
+        this.prev = new int[cap + wheelSize];
+        this.tickNanos = tickNanos;
+        this.wheelMask = wheelSize - 1;
+
+        Arrays.fill(next, 0, cap, UNLINKED);
+        for (int sentinel = cap; sentinel < next.length; ++sentinel) {
+            next[sentinel] = prev[sentinel] = sentinel;
+        }
+    }
+
+    /**
+     * Looks up the slot for the key for read or update operation.
+     *
+     * @return the position of the slot or -1 if key is not in the table
+     */
+    public int find(K key) {
+        final int base = home(key);
+
+        for (int dist = 0; dist <= maxProbe; ++dist) {
+            final int pos = cycled(base + dist);
+            final Object keyAtPos = keys[pos];
+            if (keyAtPos == null) {
+                return -1;
+            } else if (key.equals(keyAtPos)) {
+                return pos;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Looks up the slot for the key for insert or update operation, a new slot has no deadline.
+     *
+     * @return the position if the slot or -1 if the key is not in the table and the table is full
+     */
+    public int write(K key) {
+        final int base = home(key);
+
+        for (int dist = 0; dist < keys.length; ++dist) {
+            final int pos = cycled(base + dist);
+            final Object keyAtPos = keys[pos];
+            if (keyAtPos == null) {
+                keys[pos] = key;
+                ++size;
+                if (dist > maxProbe) {
+                    maxProbe = dist;
+                }
+                return pos;
+            } else if (dist <= maxProbe && key.equals(keyAtPos)) {
+                return pos;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * @return key of the slot at the specified position
+     */
+    @SuppressWarnings("unchecked")
+    public K getKey(int pos) {
+        assert 0 <= pos && pos < keys.length;
+        return (K)keys[pos];
+    }
+
+    /**
+     * @return value of the slot at the specified position
+     */
+    @SuppressWarnings("unchecked")
+    public V getValue(int pos) {
+        assert 0 <= pos && pos < keys.length;
+        return (V)values[pos];
+    }
+
+    public void setValue(int pos, V value) {
+        assert 0 <= pos && pos < keys.length;
+        values[pos] = value;
+    }
+
+    /**
+     * @return true if the slot at the specified position has a deadline
+     */
+    public boolean hasDeadline(int pos) {
+        assert 0 <= pos && pos < keys.length;
+        return next[pos] != UNLINKED;
+    }
+
+    /**
+     * @return deadline of the slot at the specified position, meaningful if {@link #hasDeadline(int)}
+     */
+    public long getDeadline(int pos) {
+        assert 0 <= pos && pos < keys.length;
+        return deadlines[pos];
+    }
+
+    /**
+     * Sets or moves the deadline of the slot at the specified position.
+     * @param deadlineNanos on the {@link System#nanoTime()} scale
+     */
+    public void setDeadline(int pos, long deadlineNanos) {
+        assert 0 <= pos && pos < keys.length && keys[pos] != null;
+
+        unlink(pos);
+        deadlines[pos] = deadlineNanos;
+
+        // a deadline in an already processed tick goes to the bucket processed next
+        final long tick = Math.max(Math.floorDiv(deadlineNanos, tickNanos), expiredTick);
+        final int sentinel = keys.length + (int) (tick & wheelMask);
+        final int last = prev[sentinel];
+        next[pos] = sentinel;
+        prev[pos] = last;
+        next[last] = pos;
+        prev[sentinel] = pos;
+    }
+
+    /**
+     * Removes the deadline of the slot at the specified position.
+     */
+    public void clearDeadline(int pos) {
+        assert 0 <= pos && pos < keys.length;
+        unlink(pos);
+    }
+
+    /**
+     * Removes the slot at the specified position.
+     * <p>
+     * Backward shift deletion, see {@link FixedCapOpenHash#drop(int)}.
+     * Positions of the other keys obtained before the call may be invalidated.
+     * </p>
+     */
+    public void drop(int pos) {
+        assert 0 <= pos && pos < keys.length && keys[pos] != null;
+
+        unlink(pos);
+
+        int hole = pos;
+        for (int cur = cycled(hole + 1); cur != pos && keys[cur] != null; cur = cycled(cur + 1)) {
+            if (cycled(cur - home(keys[cur])) >= cycled(cur - hole)) {
+                move(cur, hole);
+                hole = cur;
+            }
+        }
+
+        keys[hole] = null;
+        values[hole] = null;
+        --size;
+    }
+
+    /**
+     * Removes the entries with the deadline at or before {@code nowNanos}, visiting only the wheel buckets
+     * of the ticks elapsed since the previous call.
+     * @param nowNanos on the {@link System#nanoTime()} scale, not decreasing between the calls
+     * @param consumer receives the expired entries before they are removed, must not modify the table
+     * @return number of the expired entries
+     */
+    public int expire(long nowNanos, BiConsumer<? super K, ? super V> consumer) {
+        final long nowTick = Math.floorDiv(nowNanos, tickNanos);
+
+        int expired = 0;
+        for (long tick = Math.max(expiredTick, nowTick - wheelMask); tick <= nowTick; ++tick) {
+            final int sentinel = keys.length + (int) (tick & wheelMask);
+            for (int pos = next[sentinel]; pos != sentinel; pos = expireCursor) {
+                expireCursor = next[pos];
+                if (deadlines[pos] - nowNanos <= 0L) {
+                    consumer.accept(getKey(pos), getValue(pos));
+                    drop(pos);
+                    ++expired;
+                }
+            }
+        }
+
+        expireCursor = UNLINKED;
+        expiredTick = nowTick;
+
+        return expired;
+    }
+
+    public int capacity() {
+        return keys.length;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public IntStream stream() {
+        return IntStream.range(0, keys.length).filter(pos -> keys[pos] != null);
+    }
+
+    private int cycled(int pos) {
+        return pos & modOp;
+    }
+
+    private int home(Object key) {
+        return cycled(Hashing.fibonacci(key.hashCode(), shift));
+    }
+
+    private void unlink(int pos) {
+        final int after = next[pos];
+        if (after != UNLINKED) {
+            final int before = prev[pos];
+            next[before] = after;
+            prev[after] = before;
+            next[pos] = UNLINKED;
+        }
+    }
+
+    private void move(int from, int to) {
+        keys[to] = keys[from];
+        values[to] = values[from];
+        deadlines[to] = deadlines[from];
+
+        final int after = next[from];
+        next[to] = after;
+        if (after != UNLINKED) {
+            final int before = prev[from];
+            prev[to] = before;
+            next[before] = to;
+            prev[after] = to;
+            next[from] = UNLINKED;
+        }
+
+        if (expireCursor == from) {
+            expireCursor = to;
+        }
+    }
+}
@@ -5,6 +5,9 @@
 
 package net.bobah.ufwj.hash;
 
+import java.util.function.BiConsumer;
+import java.util.function.IntConsumer;
+import java.util.function.IntBinaryOperator;
 import java.util.stream.IntStream;
 
 /**
@@ -18,23 +21,57 @@ import java.util.stream.IntStream;
  * @author Vladimir Lysyy (mrbald@github)
  */
 public final class FixedCapOpenHash<K, V> {
+    private static final int UNRESOLVED = -2;
+
     private int modOp;
+    private final int shift;
+
+    private final IntBinaryOperator spreader;
+    private final boolean robinHood;
 
     private final Object[] keys;
     private final Object[] values;
 
     /**
-     * An instance of {@link FixedCapOpenHash} with capacity at least equal to the requested.
+     * One bit per slot, set if the slot is occupied, for the iteration skipping the empty slots a word at a time.
+     */
+    private final long[] occupied;
+
+    private int size = 0;
+
+    /**
+     * The longest distance of an entry from its home slot so far, no key is looked up past it.
+     */
+    private int maxProbe = 0;
+
+    /**
+     * An instance of {@link FixedCapOpenHash} with capacity at least equal to the requested,
+     * {@link Hashing#FIBONACCI} hash spreading and linear probing.
      * @param requiredCap required capacity
      */
     public FixedCapOpenHash(int requiredCap) {
+        this(requiredCap, Hashing.FIBONACCI, false);
+    }
+
+    /**
+     * An instance of {@link FixedCapOpenHash} with capacity at least equal to the requested.
+     * @param requiredCap required capacity
+     * @param spreader hash code spreading function, see {@link Hashing}
+     * @param robinHood if true, an insert takes the slot of an entry closer to its home slot and moves that entry
+     *                  further, which keeps the probe lengths even and lets a miss stop at the first such entry
+     */
+    public FixedCapOpenHash(int requiredCap, IntBinaryOperator spreader, boolean robinHood) {
         assert requiredCap > 1;
 
         int cap = 1 << (Integer.SIZE - Integer.numberOfLeadingZeros(requiredCap - 1));
 
         this.modOp = cap - 1;
+        this.shift = Hashing.shift(cap);
+        this.spreader = spreader;
+        this.robinHood = robinHood;
         this.keys = new Object[cap];
         this.values = new Object[cap];
+        this.occupied = new long[(cap + Long.SIZE - 1) >>> 6];
         assert keys.length == values.length;
     }
 
@@ -44,7 +81,60 @@ public final class FixedCapOpenHash<K, V> {
      * @return the position of the slot or -1 if key is not in the table
      */
     public int find(K key) {
-        return lookup(key, false);
+        return probe(key, home(key), 0);
+    }
+
+    /**
+     * Batch version of {@link #find(Object)}, see {@link #findAll(Object[], int, int[])}.
+     */
+    public int findAll(K[] batch, int[] positions) {
+        return findAll(batch, batch.length, positions);
+    }
+
+    /**
+     * Batch version of {@link #find(Object)} for the tables larger than the CPU caches.
+     * <p>
+     * The home slots of all keys are computed first, then probed in one pass, the loads of the independent keys do not
+     * wait for each other, so their cache misses overlap rather than add up as in a loop of {@link #find(Object)}.
+     * The keys not resolved at the home slot, a minority, continue along the cluster one by one, the next slots are
+     * mostly in the same or the adjacent cache line.
+     * </p>
+     *
+     * @param count number of the leading keys of the batch to look up
+     * @param positions receives the position of the slot of each key or -1 if the key is not in the table
+     * @return number of the keys found
+     */
+    public int findAll(K[] batch, int count, int[] positions) {
+        assert count <= batch.length && count <= positions.length;
+
+        for (int i = 0; i < count; ++i) {
+            positions[i] = home(batch[i]);
+        }
+
+        int found = 0;
+        for (int i = 0; i < count; ++i) {
+            final int pos = positions[i];
+            final Object keyAtPos = keys[pos];
+            if (keyAtPos == null) {
+                positions[i] = -1;
+            } else if (batch[i].equals(keyAtPos)) {
+                ++found;
+            } else {
+                // an unresolved key keeps its home slot encoded below -1
+                positions[i] = UNRESOLVED - pos;
+            }
+        }
+
+        for (int i = 0; i < count; ++i) {
+            if (positions[i] <= UNRESOLVED) {
+                positions[i] = probe(batch[i], UNRESOLVED - positions[i], 1);
+                if (positions[i] != -1) {
+                    ++found;
+                }
+            }
+        }
+
+        return found;
     }
 
     /**
@@ -53,13 +143,28 @@ public final class FixedCapOpenHash<K, V> {
      * @return the position if the slot or -1 if the key is not in the table and the table is full
      */
     public int write(K key) {
-        final int pos = lookup(key, true);
+        final int base = home(key);
 
-        if (pos != -1) {
-            keys[pos] = key;
+        for (int dist = 0; dist < keys.length; ++dist) {
+            final int pos = cycled(base + dist);
+            final Object keyAtPos = keys[pos];
+            if (keyAtPos == null) {
+                return insert(pos, dist, key);
+            } else if (dist <= maxProbe && key.equals(keyAtPos)) {
+                return pos;
+            } else if (robinHood) {
+                final int distAtPos = distance(keyAtPos, pos);
+                if (distAtPos < dist) {
+                    if (size == keys.length) {
+                        return -1;
+                    }
+                    displace(pos, distAtPos);
+                    return insert(pos, dist, key);
+                }
+            }
         }
 
-        return pos;
+        return -1;
     }
 
     /**
@@ -80,43 +185,185 @@ public final class FixedCapOpenHash<K, V> {
         return (V)values[pos];
     }
 
+    /**
+     * Removes the slot at the specified position.
+     * <p>
+     * Backward shift deletion: the following entries of the cluster which can not be found past the freed slot
+     * are moved back into it, so the probe chains stay intact and short without tombstones or rehashing.
+     * Positions of the other keys obtained before the call may be invalidated.
+     * </p>
+     */
     public void drop(int pos) {
-        assert 0 <= pos && pos < keys.length;
-        keys[pos] = null;
-        setValue(pos, null);
+        assert 0 <= pos && pos < keys.length && keys[pos] != null;
+
+        int hole = pos;
+        for (int next = cycled(hole + 1); next != pos && keys[next] != null; next = cycled(next + 1)) {
+            if (distance(keys[next], next) >= cycled(next - hole)) {
+                keys[hole] = keys[next];
+                values[hole] = values[next];
+                hole = next;
+            } else if (robinHood) {
+                // the rest of the cluster is sorted by the home slot and can't move either
+                break;
+            }
+        }
+
+        keys[hole] = null;
+        values[hole] = null;
+        occupied[hole >>> 6] &= ~(1L << hole);
+        --size;
     }
 
     public int capacity() {
         return keys.length;
     }
 
+    public int size() {
+        return size;
+    }
+
     public IntStream stream() {
         return IntStream.range(0, keys.length).filter(pos -> keys[pos] != null);
     }
 
+    /**
+     * Passes the positions of the occupied slots to the action, the table must not be modified meanwhile.
+     */
+    public void forEach(IntConsumer action) {
+        for (int word = 0; word < occupied.length; ++word) {
+            for (long bits = occupied[word]; bits != 0L; bits &= bits - 1) {
+                action.accept((word << 6) + Long.numberOfTrailingZeros(bits));
+            }
+        }
+    }
+
+    /**
+     * Passes the entries of the occupied slots to the action, the table must not be modified meanwhile.
+     */
+    @SuppressWarnings("unchecked")
+    public void forEachEntry(BiConsumer<? super K, ? super V> action) {
+        for (int word = 0; word < occupied.length; ++word) {
+            for (long bits = occupied[word]; bits != 0L; bits &= bits - 1) {
+                final int pos = (word << 6) + Long.numberOfTrailingZeros(bits);
+                action.accept((K)keys[pos], (V)values[pos]);
+            }
+        }
+    }
+
+    /**
+     * Cursor style iteration, {@code for (int pos = hash.first(); pos != -1; pos = hash.next(pos))},
+     * the table must not be modified meanwhile.
+     *
+     * @return position of the first occupied slot or -1 if the table is empty
+     */
+    public int first() {
+        return next(-1);
+    }
+
+    /**
+     * @return position of the first occupied slot after the specified position or -1 if there is none
+     */
+    public int next(int pos) {
+        assert -1 <= pos && pos < keys.length;
+
+        final int from = pos + 1;
+        if (from == keys.length) {
+            return -1;
+        }
+
+        int word = from >>> 6;
+        for (long bits = occupied[word] & (-1L << from); ; bits = occupied[word]) {
+            if (bits != 0L) {
+                return (word << 6) + Long.numberOfTrailingZeros(bits);
+            } else if (++word == occupied.length) {
+                return -1;
+            }
+        }
+    }
+
     public void setValue(int pos, V value) {
         assert 0 <= pos && pos < keys.length;
         values[pos] = value;
     }
 
+    /**
+     * Looks the key up from the distance {@code fromDist} from its home slot on.
+     */
+    private int probe(Object key, int base, int fromDist) {
+        for (int dist = fromDist; dist <= maxProbe; ++dist) {
+            final int pos = cycled(base + dist);
+            final Object keyAtPos = keys[pos];
+            if (keyAtPos == null) {
+                return -1;
+            } else if (key.equals(keyAtPos)) {
+                return pos;
+            } else if (robinHood && distance(keyAtPos, pos) < dist) {
+                return -1;
+            }
+        }
+
+        return -1;
+    }
+
     private int cycled(int pos) {
         return pos & modOp;
     }
 
-    private int lookup(K key, boolean forWrite) {
-        final int base = cycled(key.hashCode());
+    private int home(Object key) {
+        return cycled(spreader.applyAsInt(key.hashCode(), shift));
+    }
+
+    private int distance(Object keyAtPos, int pos) {
+        return cycled(pos - home(keyAtPos));
+    }
+
+    private int insert(int pos, int dist, K key) {
+        keys[pos] = key;
+        values[pos] = null;
+        occupied[pos >>> 6] |= 1L << pos;
+        ++size;
+        probed(dist);
+        return pos;
+    }
+
+    private void probed(int dist) {
+        if (dist > maxProbe) {
+            maxProbe = dist;
+        }
+    }
+
+    /**
+     * Moves the entry at {@code pos} and the following ones further along the cluster until
+     * an empty slot absorbs the shift, Robin Hood style.
+     */
+    private void displace(int pos, int dist) {
+        Object key = keys[pos];
+        Object value = values[pos];
+
+        for (;;) {
+            pos = cycled(pos + 1);
+            ++dist;
 
-        int pos = base;
-        do {
             final Object keyAtPos = keys[pos];
             if (keyAtPos == null) {
-                return forWrite ? pos : -1;
-            } else if (key.equals(keyAtPos)) {
-                return pos;
+                keys[pos] = key;
+                values[pos] = value;
+                occupied[pos >>> 6] |= 1L << pos;
+                probed(dist);
+                return;
             }
-            pos = cycled(pos + 1);
-        } while (pos != base);
 
-        return -1;
+            final int distAtPos = distance(keyAtPos, pos);
+            if (distAtPos < dist) {
+                final Object valueAtPos = values[pos];
+                keys[pos] = key;
+                values[pos] = value;
+                probed(dist);
+
+                key = keyAtPos;
+                value = valueAtPos;
+                dist = distAtPos;
+            }
+        }
     }
 }
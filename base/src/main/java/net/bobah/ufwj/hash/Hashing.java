@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2018 Vladimir Lysyy (mrbald@github)
+ * ALv2 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+package net.bobah.ufwj.hash;
+
+import java.util.function.IntBinaryOperator;
+
+/**
+ * Hash code spreading functions for the power-of-two tables.
+ * <p>
+ * A function takes the hash code and the {@link #shift(int)} of the table, {@code 32 - log2(capacity)}, and the
+ * table takes the low {@code log2(capacity)} bits of the result as the home slot.
+ * </p>
+ *
+ * @author Vladimir Lysyy (mrbald@github)
+ */
+public final class Hashing {
+    private static final int INT_PHI = 0x9e3779b9;
+
+    /**
+     * Raw {@link Object#hashCode()}, fine for random keys, clusters badly on sequential or aligned ones.
+     */
+    public static final IntBinaryOperator IDENTITY = (h, shift) -> h;
+
+    /**
+     * Multiplication by the golden ratio keeping the top bits of the product, one multiplication and a shift.
+     */
+    public static final IntBinaryOperator FIBONACCI = Hashing::fibonacci;
+
+    /**
+     * MurmurHash3 finalizer, full avalanche at the cost of two multiplications.
+     */
+    public static final IntBinaryOperator MURMUR3 = (h, shift) -> murmur3(h);
+
+    private Hashing() {
+    }
+
+    /**
+     * @return {@code 32 - log2(capacity)} of a power-of-two capacity
+     */
+    public static int shift(int capacity) {
+        return Integer.numberOfLeadingZeros(capacity - 1);
+    }
+
+    /**
+     * The top {@code 32 - shift} bits of the product, the low bits of a product only depend on the low bits of
+     * the hash code.
+     */
+    public static int fibonacci(int h, int shift) {
+        return (h * INT_PHI) >>> shift;
+    }
+
+    public static int murmur3(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -0,0 +1,383 @@
+/*
+ * Copyright (c) 2018 Vladimir Lysyy (mrbald@github)
+ * ALv2 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+package net.bobah.ufwj.hash;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.stream.IntStream;
+
+/**
+ * Fixed capacity open addressing hash table with {@code long} keys and fixed width values stored off-heap.
+ * <p>
+ * The same slot position API as {@link LongLongFixedCapOpenHash}, but the slots live in a direct or a memory mapped
+ * {@link ByteBuffer}, so a table of millions of entries adds nothing for the GC to scan. A slot is the key followed
+ * by {@code valueBytes} of the value, the first 8 of which are accessible as a {@code long}, the rest is
+ * addressed with {@link #valueOffset(int)} in {@link #buffer()}.
+ * </p>
+ * <p>
+ * A memory mapped table keeps its capacity, size and probe bound in the file header and can be reopened with
+ * {@link #map(Path, int, int, long)} after a process restart. Surviving an OS crash takes a {@link #force()}.
+ * </p>
+ * <p>
+ * An insert and a backward shift deletion move several slots, so the header has a dirty flag set for the duration
+ * of {@link #write(long)} of a new key and of {@link #drop(int)}. A table reopened with the flag set, after the
+ * process died in the middle of one of them, is rebuilt in place: every key is placed again from its home slot and
+ * the copies left by an interrupted shift are dropped. The interrupted operation is then either fully applied or
+ * not at all, the values written with {@link #setValue(int, long)} or {@link #buffer()} are not covered.
+ * </p>
+ * <p>
+ * Linear probing, {@link Hashing#fibonacci(int, int)} hash spreading, backward shift deletion.
+ * No memory allocation after construction.
+ * </p>
+ *
+ * @author Vladimir Lysyy (mrbald@github)
+ */
+public final class OffHeapFixedCapOpenHash {
+    /**
+     * Version 2 takes the home slot from the top bits of the Fibonacci product, a version 1 table is not reopened.
+     */
+    private static final long MAGIC = 0x7566776a4f484832L; // "ufwjOHH2"
+
+    private static final int MAGIC_OFFSET = 0;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int VALUE_BYTES_OFFSET = 12;
+    private static final int NO_KEY_OFFSET = 16;
+    static final int SIZE_OFFSET = 24;
+    private static final int MAX_PROBE_OFFSET = 28;
+    static final int DIRTY_OFFSET = 32;
+    private static final int HEADER_BYTES = 64;
+
+    private final ByteBuffer buffer;
+    private final int capacity;
+    private final int modOp;
+    private final int shift;
+    private final int slotBytes;
+    private final long noKey;
+
+    private int size;
+    private int maxProbe;
+
+    private OffHeapFixedCapOpenHash(ByteBuffer buffer, boolean fresh, int capacity, int valueBytes, long noKey) {
+        this.buffer = buffer.order(ByteOrder.nativeOrder());
+        this.capacity = capacity;
+        this.modOp = capacity - 1;
+        this.shift = Hashing.shift(capacity);
+        this.slotBytes = Long.BYTES + valueBytes;
+        this.noKey = noKey;
+
+        if (fresh) {
+            buffer.putInt(CAPACITY_OFFSET, capacity);
+            buffer.putInt(VALUE_BYTES_OFFSET, valueBytes);
+            buffer.putLong(NO_KEY_OFFSET, noKey);
+            buffer.putInt(SIZE_OFFSET, 0);
+            buffer.putInt(MAX_PROBE_OFFSET, 0);
+            buffer.putInt(DIRTY_OFFSET, 0);
+            if (noKey != 0L) {
+                for (int pos = 0; pos < capacity; ++pos) {
+                    buffer.putLong(offset(pos), noKey);
+                }
+            }
+            // the magic last, a table interrupted while initializing is not reopened
+            buffer.putLong(MAGIC_OFFSET, MAGIC);
+        }
+
+        this.size = buffer.getInt(SIZE_OFFSET);
+        this.maxProbe = buffer.getInt(MAX_PROBE_OFFSET);
+
+        if (buffer.getInt(DIRTY_OFFSET) != 0) {
+            rebuild();
+        }
+    }
+
+    /**
+     * A table in a direct buffer with capacity at least equal to the requested.
+     * @param requiredCap required capacity
+     * @param valueBytes value width, a positive multiple of 8
+     * @param noKey reserved key value marking empty slots, can not be stored in the table
+     */
+    public static OffHeapFixedCapOpenHash allocate(int requiredCap, int valueBytes, long noKey) {
+        final int capacity = capacityFor(requiredCap);
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(bytesFor(capacity, valueBytes));
+        return new OffHeapFixedCapOpenHash(buffer, true, capacity, valueBytes, noKey);
+    }
+
+    /**
+     * Maps the table stored in the file, creating the file if it does not exist.
+     * <p>
+     * An existing table is reopened with its content, its layout must match the requested one.
+     * The mapping stays valid after the method returns and is released when the table is garbage collected.
+     * </p>
+     * @param file the table file
+     * @param requiredCap required capacity
+     * @param valueBytes value width, a positive multiple of 8
+     * @param noKey reserved key value marking empty slots, can not be stored in the table
+     * @throws IOException if the file can not be mapped or contains an incompatible table
+     */
+    public static OffHeapFixedCapOpenHash map(Path file, int requiredCap, int valueBytes, long noKey)
+            throws IOException {
+        final int capacity = capacityFor(requiredCap);
+        final int bytes = bytesFor(capacity, valueBytes);
+
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final long existing = channel.size();
+            if (existing != 0L && existing != bytes) {
+                throw new IOException(file + ": size " + existing + " does not match the table layout " + bytes);
+            }
+
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0L, bytes);
+            buffer.order(ByteOrder.nativeOrder());
+
+            final long magic = buffer.getLong(MAGIC_OFFSET);
+            if (magic != 0L && magic != MAGIC) {
+                throw new IOException(file + ": not a table or a table of an incompatible version");
+            }
+
+            final boolean fresh = magic != MAGIC;
+            if (!fresh && (buffer.getInt(CAPACITY_OFFSET) != capacity
+                    || buffer.getInt(VALUE_BYTES_OFFSET) != valueBytes
+                    || buffer.getLong(NO_KEY_OFFSET) != noKey)) {
+                throw new IOException(file + ": table layout does not match the requested one");
+            }
+
+            return new OffHeapFixedCapOpenHash(buffer, fresh, capacity, valueBytes, noKey);
+        }
+    }
+
+    /**
+     * Looks up the slot for the key for read or update operation.
+     *
+     * @return the position of the slot or -1 if key is not in the table
+     */
+    public int find(long key) {
+        assert key != noKey;
+
+        final int base = home(key);
+        for (int dist = 0; dist <= maxProbe; ++dist) {
+            final int pos = cycled(base + dist);
+            final long keyAtPos = buffer.getLong(offset(pos));
+            if (keyAtPos == key) {
+                return pos;
+            } else if (keyAtPos == noKey) {
+                return -1;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Looks up the slot for the key for insert or update operation.
+     *
+     * @return the position if the slot or -1 if the key is not in the table and the table is full
+     */
+    public int write(long key) {
+        assert key != noKey;
+
+        final int base = home(key);
+        for (int dist = 0; dist < capacity; ++dist) {
+            final int pos = cycled(base + dist);
+            final long keyAtPos = buffer.getLong(offset(pos));
+            if (keyAtPos == key) {
+                return pos;
+            } else if (keyAtPos == noKey) {
+                buffer.putInt(DIRTY_OFFSET, 1);
+                place(pos, dist, key);
+                buffer.putInt(DIRTY_OFFSET, 0);
+                return pos;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * @return key of the slot at the specified position
+     */
+    public long getKey(int pos) {
+        assert 0 <= pos && pos < capacity;
+        return buffer.getLong(offset(pos));
+    }
+
+    /**
+     * @return first 8 bytes of the value of the slot at the specified position
+     */
+    public long getValue(int pos) {
+        assert 0 <= pos && pos < capacity;
+        return buffer.getLong(valueOffset(pos));
+    }
+
+    public void setValue(int pos, long value) {
+        assert 0 <= pos && pos < capacity;
+        buffer.putLong(valueOffset(pos), value);
+    }
+
+    /**
+     * @return offset of the value of the slot at the specified position in {@link #buffer()}
+     */
+    public int valueOffset(int pos) {
+        assert 0 <= pos && pos < capacity;
+        return offset(pos) + Long.BYTES;
+    }
+
+    /**
+     * @return the underlying buffer in the native byte order, for the access to the values wider than 8 bytes
+     */
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * Removes the slot at the specified position.
+     * <p>
+     * Backward shift deletion, see {@link FixedCapOpenHash#drop(int)}.
+     * Positions of the other keys obtained before the call may be invalidated.
+     * </p>
+     */
+    public void drop(int pos) {
+        assert 0 <= pos && pos < capacity && getKey(pos) != noKey;
+
+        buffer.putInt(DIRTY_OFFSET, 1);
+        int hole = pos;
+        for (int next = cycled(hole + 1); next != pos; next = cycled(next + 1)) {
+            final long keyAtNext = buffer.getLong(offset(next));
+            if (keyAtNext == noKey) {
+                break;
+            }
+            if (cycled(next - home(keyAtNext)) >= cycled(next - hole)) {
+                move(next, hole);
+                hole = next;
+            }
+        }
+
+        clear(hole);
+        buffer.putInt(SIZE_OFFSET, --size);
+        buffer.putInt(DIRTY_OFFSET, 0);
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public IntStream stream() {
+        return IntStream.range(0, capacity).filter(pos -> getKey(pos) != noKey);
+    }
+
+    /**
+     * Writes the content of a memory mapped table to the storage device, no-op for a direct buffer.
+     */
+    public void force() {
+        if (buffer instanceof MappedByteBuffer) {
+            ((MappedByteBuffer) buffer).force();
+        }
+    }
+
+    private static int capacityFor(int requiredCap) {
+        assert requiredCap > 1;
+        return 1 << (Integer.SIZE - Integer.numberOfLeadingZeros(requiredCap - 1));
+    }
+
+    private static int bytesFor(int capacity, int valueBytes) {
+        assert valueBytes > 0 && valueBytes % Long.BYTES == 0;
+
+        final long bytes = HEADER_BYTES + (long) capacity * (Long.BYTES + valueBytes);
+        if (bytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("table of " + capacity + " slots does not fit in a buffer");
+        }
+        return (int) bytes;
+    }
+
+    private int offset(int pos) {
+        return HEADER_BYTES + pos * slotBytes;
+    }
+
+    /**
+     * Moves every key to the first free slot on its probe path, starting past an empty slot so that a cluster is
+     * processed in the probe order, drops the duplicate keys and recounts the size and the probe bound. A key is
+     * copied before its old slot is cleared, a rebuild interrupted in turn is repeated on the next open.
+     */
+    private void rebuild() {
+        int start = 0;
+        while (start < capacity && getKey(start) != noKey) {
+            ++start;
+        }
+
+        size = 0;
+        maxProbe = 0;
+        for (int i = 1; i <= capacity; ++i) {
+            final int from = cycled(start + i);
+            final long key = getKey(from);
+            if (key == noKey) {
+                continue;
+            }
+
+            final int base = home(key);
+            for (int dist = 0; dist < capacity; ++dist) {
+                final int pos = cycled(base + dist);
+                final long keyAtPos = buffer.getLong(offset(pos));
+                if (pos == from) {
+                    ++size;
+                    maxProbe = Math.max(maxProbe, dist);
+                    break;
+                } else if (keyAtPos == key) {
+                    clear(from);
+                    break;
+                } else if (keyAtPos == noKey) {
+                    move(from, pos);
+                    clear(from);
+                    ++size;
+                    maxProbe = Math.max(maxProbe, dist);
+                    break;
+                }
+            }
+        }
+
+        buffer.putInt(SIZE_OFFSET, size);
+        buffer.putInt(MAX_PROBE_OFFSET, maxProbe);
+        buffer.putInt(DIRTY_OFFSET, 0);
+    }
+
+    private void place(int pos, int dist, long key) {
+        buffer.putLong(offset(pos), key);
+        buffer.putInt(SIZE_OFFSET, ++size);
+        if (dist > maxProbe) {
+            buffer.putInt(MAX_PROBE_OFFSET, maxProbe = dist);
+        }
+    }
+
+    private void clear(int pos) {
+        final int posOffset = offset(pos);
+        buffer.putLong(posOffset, noKey);
+        for (int i = Long.BYTES; i < slotBytes; i += Long.BYTES) {
+            buffer.putLong(posOffset + i, 0L);
+        }
+    }
+
+    private void move(int from, int to) {
+        final int fromOffset = offset(from);
+        final int toOffset = offset(to);
+        for (int i = 0; i < slotBytes; i += Long.BYTES) {
+            buffer.putLong(toOffset + i, buffer.getLong(fromOffset + i));
+        }
+    }
+
+    private int cycled(int pos) {
+        return pos & modOp;
+    }
+
+    private int home(long key) {
+        return cycled(Hashing.fibonacci(Long.hashCode(key), shift));
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2018 Vladimir Lysyy (mrbald@github)
+ * ALv2 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+package net.bobah.ufwj.queue;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moves the watermarks of a queue or a tracker to keep the queueing delay at a target.
+ * <p>
+ * Periodically measures the drain rate from the {@link WatermarkMetrics} of the instance and sets the upper watermark
+ * to the depth the consumer drains within the target delay (Little's law), the lower one to a fraction of it. When the
+ * latest sampled sojourn time is above the target the upper watermark is scaled down by the overshoot, like CoDel
+ * reacts to a standing queue, so the producers are suspended on latency even before the rate estimate catches up.
+ * The sojourn time is only used if a sample has been taken since the previous update, an old one no longer describes
+ * the queue. An empty queue means the consumer keeps up and the drain rate is the arrival rate, so the watermarks are
+ * not lowered.
+ * </p>
+ * <p>
+ * The rate is in the weight units of the instance, elements if it is not weighted, the watermarks are in the same
+ * units. For a multi-source tracker the rate is of all sources and the watermarks apply per source.
+ * </p>
+ *
+ * @author Vladimir Lysyy (mrbald@github)
+ */
+public final class AdaptiveWatermarks {
+    private static final double SMOOTHING = 0.3;
+
+    /**
+     * The instance the watermarks are set on, e.g. {@code queue::setWatermarks}.
+     */
+    @FunctionalInterface
+    public interface Target {
+        void setWatermarks(long lowerWatermark, long upperWatermark);
+    }
+
+    private final WatermarkMetrics metrics;
+    private final Target target;
+    private final long targetDelayNanos;
+    private final long minUpperWatermark;
+    private final long maxUpperWatermark;
+    private final double lowerRatio;
+
+    /**
+     * Weight units per nanosecond, smoothed, NaN until the second update.
+     */
+    private double rate = Double.NaN;
+    private boolean initialized = false;
+    private long lastNanos = 0L;
+    private long lastDequeued = 0L;
+    private long lastSojournSamples = 0L;
+
+    private volatile long lowerWatermark;
+    private volatile long upperWatermark;
+
+    /**
+     * @param metrics metrics of the instance, see {@code enableMetrics}
+     * @param lowerRatio lower watermark as a fraction of the upper, from 0 to 1 exclusive
+     */
+    public AdaptiveWatermarks(WatermarkMetrics metrics, Target target, long targetDelay, TimeUnit unit,
+                              long minUpperWatermark, long maxUpperWatermark, double lowerRatio) {
+        assert targetDelay > 0 && 0 < minUpperWatermark && minUpperWatermark <= maxUpperWatermark;
+        assert 0.0 <= lowerRatio && lowerRatio < 1.0;
+
+        this.metrics = metrics;
+        this.target = target;
+        this.targetDelayNanos = unit.toNanos(targetDelay);
+        this.minUpperWatermark = minUpperWatermark;
+        this.maxUpperWatermark = maxUpperWatermark;
+        this.lowerRatio = lowerRatio;
+        this.upperWatermark = maxUpperWatermark;
+        this.lowerWatermark = lower(maxUpperWatermark);
+    }
+
+    /**
+     * Runs {@link #update(long)} at a fixed rate, the period should be several times shorter than the target delay.
+     */
+    public ScheduledFuture<?> schedule(ScheduledExecutorService executor, long period, TimeUnit unit) {
+        return executor.scheduleAtFixedRate(() -> update(System.nanoTime()), period, period, unit);
+    }
+
+    /**
+     * Measures the drain rate since the previous call and moves the watermarks, for a single thread.
+     */
+    public void update(long nowNanos) {
+        final long dequeued = metrics.dequeuedWeight();
+        final long sojournSamples = metrics.getSojournSamples();
+        final boolean sojournFresh = sojournSamples != lastSojournSamples;
+        lastSojournSamples = sojournSamples;
+        final long elapsed = nowNanos - lastNanos;
+        final boolean first = !initialized;
+        initialized = true;
+        lastNanos = nowNanos;
+
+        if (first || elapsed <= 0L) {
+            lastDequeued = dequeued;
+            return;
+        }
+
+        final double sample = (double) (dequeued - lastDequeued) / elapsed;
+        lastDequeued = dequeued;
+        rate = Double.isNaN(rate) ? sample : rate + SMOOTHING * (sample - rate);
+
+        double upper = rate * targetDelayNanos;
+        final long sojourn = metrics.lastSojournNanos();
+        if (sojournFresh && sojourn > targetDelayNanos) {
+            upper = upper * targetDelayNanos / sojourn;
+        }
+
+        long newUpper = Math.max(minUpperWatermark, Math.min(maxUpperWatermark, (long) upper));
+        if (newUpper < upperWatermark && metrics.getDepth() == 0) {
+            newUpper = upperWatermark;
+        }
+
+        if (newUpper != upperWatermark) {
+            upperWatermark = newUpper;
+            lowerWatermark = lower(newUpper);
+            target.setWatermarks(lowerWatermark, newUpper);
+        }
+    }
+
+    /**
+     * @return smoothed drain rate in weight units per second
+     */
+    public double drainRate() {
+        return Double.isNaN(rate) ? 0.0 : rate * TimeUnit.SECONDS.toNanos(1);
+    }
+
+    public long lowerWatermark() {
+        return lowerWatermark;
+    }
+
+    public long upperWatermark() {
+        return upperWatermark;
+    }
+
+    private long lower(long upper) {
+        return Math.min(upper - 1, (long) (upper * lowerRatio));
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright (c) 2018 Vladimir Lysyy (mrbald@github)
+ * ALv2 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+package net.bobah.ufwj.queue;
+
+import net.bobah.ufwj.hash.FixedCapOpenHash;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Conflating version of {@link WatermarkQueue}, keeps only the latest element per key, for the updates where the
+ * consumer needs the current value only, like market data per instrument.
+ * <p>
+ * An element with a key already pending replaces the pending one in place and keeps its position, so a key is
+ * delivered in the order it first became pending, with the latest value. The keys index the pending elements in
+ * a {@link FixedCapOpenHash} of twice the ring size, so it is at most half full and the probes stay short, and wait
+ * for the consumer in a preallocated ring, no memory allocation after construction. The watermarks apply to the
+ * number of the distinct pending keys, a burst of updates for the same keys does not grow the queue and does not
+ * suspend the producer.
+ * </p>
+ * <p>
+ * Unlike {@link WatermarkQueue} the {@link #offer(Object)} of a new key fails if {@code maxKeys} keys are pending.
+ * </p>
+ *
+ * @param <K> key type
+ * @param <E> payload type
+ *
+ * @author Vladimir Lysyy (mrbald@github)
+ */
+public final class ConflatingWatermarkQueue<K, E> extends AbstractQueue<E> {
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Function<? super E, ? extends K> keyOf;
+
+    /**
+     * Pending element per key and the keys in the delivery order, guarded by the lock.
+     */
+    private final FixedCapOpenHash<K, E> pending;
+    private final Object[] order;
+    private int orderHead = 0;
+
+    private final int lowerWatermark;
+    private final int upperWatermark;
+    private final long maxWaitNanos;
+
+    private final Runnable onSuspend;
+    private final Runnable onResume;
+
+    private final WaitStrategy consumerWait;
+    private final WaitStrategy producerWait;
+    private final BooleanSupplier nonEmpty = () -> this.size != 0;
+    private final BooleanSupplier producerRunning = () -> !this.producerSuspended;
+
+    private volatile int size = 0;
+    private volatile boolean producerSuspended = false;
+    private volatile long conflated = 0L;
+
+    public ConflatingWatermarkQueue(int maxKeys, Function<? super E, ? extends K> keyOf,
+                                    int lowerWatermark, int upperWatermark, long maxWaitMs,
+                                    Runnable onSuspend, Runnable onResume) {
+        this(maxKeys, keyOf, lowerWatermark, upperWatermark, maxWaitMs, onSuspend, onResume,
+                WaitStrategies.blocking(), WaitStrategies.blocking());
+    }
+
+    /**
+     * @param maxKeys maximum number of the pending keys, rounded up to a power of two
+     * @param keyOf key of an element, not null
+     * @param consumerWait how {@link #poll()} waits up to {@code maxWaitMs} for the queue to become non-empty
+     * @param producerWait how {@link #awaitResume(long, TimeUnit)} waits for the producer to be resumed
+     */
+    public ConflatingWatermarkQueue(int maxKeys, Function<? super E, ? extends K> keyOf,
+                                    int lowerWatermark, int upperWatermark, long maxWaitMs,
+                                    Runnable onSuspend, Runnable onResume,
+                                    WaitStrategy consumerWait, WaitStrategy producerWait) {
+        assert maxKeys > 0;
+        this.order = new Object[1 << (Integer.SIZE - Integer.numberOfLeadingZeros(maxKeys - 1))];
+        this.pending = new FixedCapOpenHash<>(2 * order.length);
+        assert lowerWatermark >= 0 && lowerWatermark < upperWatermark && upperWatermark <= order.length;
+
+        this.keyOf = keyOf;
+        this.lowerWatermark = lowerWatermark;
+        this.upperWatermark = upperWatermark;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMs);
+        this.onSuspend = onSuspend;
+        this.onResume = onResume;
+        this.consumerWait = consumerWait;
+        this.producerWait = producerWait;
+    }
+
+    public int capacity() {
+        return order.length;
+    }
+
+    /**
+     * Snapshot in the delivery order.
+     */
+    @Override
+    public Iterator<E> iterator() {
+        final List<E> snapshot = new ArrayList<>();
+        lock.lock();
+        try {
+            for (int i = 0; i < pending.size(); ++i) {
+                snapshot.add(pending.getValue(pending.find(keyAt(i))));
+            }
+        } finally {
+            lock.unlock();
+        }
+        return snapshot.iterator();
+    }
+
+    /**
+     * @return number of the pending keys
+     */
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return number of the elements replaced by a newer one before the delivery
+     */
+    public long conflated() {
+        return conflated;
+    }
+
+    /**
+     * Replaces the pending element of the key or appends the key.
+     *
+     * @return false if the key is new and {@code maxKeys} keys are pending
+     */
+    @Override
+    public boolean offer(E e) {
+        final K key = keyOf.apply(e);
+        assert key != null;
+
+        final boolean wasEmpty;
+        lock.lock();
+        try {
+            wasEmpty = size == 0;
+            int pos = pending.find(key);
+            if (pos >= 0) {
+                pending.setValue(pos, e);
+                conflated = conflated + 1;
+                return true;
+            }
+
+            if (pending.size() == order.length || (pos = pending.write(key)) < 0) {
+                return false;
+            }
+            pending.setValue(pos, e);
+            order[index(pending.size() - 1)] = key;
+            size = pending.size();
+            grown();
+        } finally {
+            lock.unlock();
+        }
+
+        if (wasEmpty) {
+            consumerWait.signal();
+        }
+        return true;
+    }
+
+    @Override
+    public E poll() {
+        E e = tryPoll();
+
+        if (e == null && awaitNonEmpty()) {
+            e = tryPoll();
+        }
+
+        return e;
+    }
+
+    /**
+     * Batch version of {@link #poll()}, takes the lock and evaluates the watermarks once per batch.
+     * <p>
+     * The sink is called under the queue lock and should only hand the elements over.
+     * </p>
+     *
+     * @return number of elements passed to the sink
+     */
+    public int drainTo(Consumer<? super E> sink, int max) {
+        int n = tryDrainTo(sink, max);
+
+        if (n == 0 && awaitNonEmpty()) {
+            n = tryDrainTo(sink, max);
+        }
+
+        return n;
+    }
+
+    @Override
+    public E peek() {
+        lock.lock();
+        try {
+            return pending.size() == 0 ? null : pending.getValue(pending.find(keyAt(0)));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Blocks the suspended producer until resumed.
+     *
+     * @return true if the producer is not suspended, false on timeout
+     */
+    public boolean awaitResume(long timeout, TimeUnit unit) throws InterruptedException {
+        return producerWait.await(producerRunning, unit.toNanos(timeout));
+    }
+
+    /**
+     * @return true if the number of the pending keys has reached the upper watermark, the updates of the pending
+     * keys are still conflated without growing the queue
+     */
+    public boolean isProducerSuspended() {
+        return producerSuspended;
+    }
+
+    private E tryPoll() {
+        final E e;
+        final boolean resumed;
+        lock.lock();
+        try {
+            e = pending.size() == 0 ? null : take();
+            resumed = e != null && shrunk();
+        } finally {
+            lock.unlock();
+        }
+
+        if (resumed) {
+            producerWait.signal();
+        }
+        return e;
+    }
+
+    private int tryDrainTo(Consumer<? super E> sink, int max) {
+        int n = 0;
+        boolean resumed = false;
+        lock.lock();
+        try {
+            while (n < max && pending.size() != 0) {
+                final E e = take();
+                ++n;
+                sink.accept(e);
+            }
+        } finally {
+            // the keys taken before a failed sink are gone, account for them either way
+            try {
+                resumed = n != 0 && shrunk();
+            } finally {
+                lock.unlock();
+            }
+
+            if (resumed) {
+                producerWait.signal();
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Removes the first pending key and its element, called under the lock.
+     */
+    private E take() {
+        final K key = keyAt(0);
+        order[orderHead] = null;
+        orderHead = index(1);
+
+        final int pos = pending.find(key);
+        final E e = pending.getValue(pos);
+        pending.drop(pos);
+        return e;
+    }
+
+    private boolean awaitNonEmpty() {
+        try {
+            return consumerWait.await(nonEmpty, maxWaitNanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private K keyAt(int i) {
+        return (K) order[index(i)];
+    }
+
+    private int index(int i) {
+        return (orderHead + i) & (order.length - 1);
+    }
+
+    private void grown() {
+        if (!producerSuspended && size >= upperWatermark) {
+            producerSuspended = true;
+            onSuspend.run();
+        }
+    }
+
+    private boolean shrunk() {
+        size = pending.size();
+
+        if (producerSuspended && size <= lowerWatermark) {
+            producerSuspended = false;
+            onResume.run();
+            return true;
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,400 @@
+/*
+ * Copyright (c) 2018 Vladimir Lysyy (mrbald@github)
+ * ALv2 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+package net.bobah.ufwj.queue;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * A version of the indexed {@link WatermarkTracker} with a sub-queue per source drained in deficit round robin
+ * order, so that a noisy source does not hold the quiet ones behind its backlog.
+ * <p>
+ * Sources are identified by dense int ids from {@code 0} to {@code maxSources - 1}. Every visit of the consumer
+ * credits a source with a quantum of weight and takes its elements while the credit covers them, an idle source
+ * loses its credit. Only the sources with queued elements are in the visiting ring, the idle ones cost nothing.
+ * With the element counts as weights and the quantum of one this is a plain round robin.
+ * </p>
+ * <p>
+ * Multiple producers, single consumer. The sub-queues are guarded by the tracker lock, the callbacks are called
+ * under it. {@link #isSourceSuspended(int)} does not lock.
+ * </p>
+ *
+ * @param <E> payload type
+ *
+ * @author Vladimir Lysyy (mrbald@github)
+ */
+public final class FairWatermarkTracker<E> {
+    private static final ToLongFunction<Object> COUNT = e -> 1L;
+    private static final int NONE = -1;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Guarded by the lock.
+     */
+    private long lowerWatermark;
+    private long upperWatermark;
+    private final ToIntFunction<? super E> classifier;
+    private final ToLongFunction<? super E> weigher;
+    private final WatermarkBudget budget;
+    private final long quantum;
+    private final IntConsumer onLowerWatermarkCrossed;
+    private final IntConsumer onUpperWatermarkCrossed;
+    private final WaitStrategy consumerWait;
+    private final BooleanSupplier nonEmpty = () -> this.size != 0;
+
+    /**
+     * Created on the first message of the source, updated under the lock.
+     */
+    private final AtomicReferenceArray<Source> sources;
+
+    /**
+     * Ring of the sources with queued elements other than the one being served, guarded by the lock.
+     */
+    private final int[] ring;
+    private int ringHead = 0;
+    private int ringSize = 0;
+
+    /**
+     * The source being served by the consumer, guarded by the lock.
+     */
+    private int current = NONE;
+
+    private volatile int size = 0;
+
+    private final class Source extends WatermarkState {
+        private final int id;
+        private final ArrayDeque<E> queue = new ArrayDeque<>();
+
+        /**
+         * Written under the lock, read by {@link FairWatermarkTracker#isSourceSuspended(int)} and the crossing re-checks.
+         */
+        private volatile long depth = 0;
+
+        private long deficit = 0;
+
+        Source(int id) {
+            super(FairWatermarkTracker.this.lowerWatermark, FairWatermarkTracker.this.upperWatermark);
+            this.id = id;
+        }
+
+        @Override
+        long depth() {
+            return depth;
+        }
+
+        @Override
+        void onSuspend() {
+            onUpperWatermarkCrossed.accept(id);
+        }
+
+        @Override
+        void onResume() {
+            onLowerWatermarkCrossed.accept(id);
+        }
+    }
+
+    /**
+     * Round robin over the sources, one element per visit, the watermarks apply to the element counts.
+     */
+    public static <E> FairWatermarkTracker<E> newRoundRobin(
+            long lowerWatermark, long upperWatermark,
+            ToIntFunction<? super E> classifier, int maxSources,
+            IntConsumer onLowerWatermarkCrossed, IntConsumer onUpperWatermarkCrossed) {
+        return newDeficitRoundRobin(lowerWatermark, upperWatermark, classifier, maxSources, COUNT, 1L, null,
+                onLowerWatermarkCrossed, onUpperWatermarkCrossed);
+    }
+
+    /**
+     * Deficit round robin over the sources, the watermarks apply to the weights.
+     *
+     * @param weigher weight of a payload, must not change while the payload is in the queue
+     * @param quantum weight credited to a source per visit, ideally at least the typical payload weight
+     * @param budget optional global budget shared with other queues and trackers, see {@link WatermarkBudget}
+     */
+    public static <E> FairWatermarkTracker<E> newDeficitRoundRobin(
+            long lowerWatermark, long upperWatermark,
+            ToIntFunction<? super E> classifier, int maxSources,
+            ToLongFunction<? super E> weigher, long quantum, WatermarkBudget budget,
+            IntConsumer onLowerWatermarkCrossed, IntConsumer onUpperWatermarkCrossed) {
+        return new FairWatermarkTracker<>(lowerWatermark, upperWatermark, classifier, maxSources,
+                weigher, quantum, budget, onLowerWatermarkCrossed, onUpperWatermarkCrossed, WaitStrategies.blocking());
+    }
+
+    private FairWatermarkTracker(
+            long lowerWatermark, long upperWatermark,
+            ToIntFunction<? super E> classifier, int maxSources,
+            ToLongFunction<? super E> weigher, long quantum, WatermarkBudget budget,
+            IntConsumer onLowerWatermarkCrossed, IntConsumer onUpperWatermarkCrossed,
+            WaitStrategy consumerWait) {
+        assert lowerWatermark >= 0 && lowerWatermark < upperWatermark && maxSources > 0 && quantum > 0;
+
+        this.lowerWatermark = lowerWatermark;
+        this.upperWatermark = upperWatermark;
+        this.classifier = classifier;
+        this.weigher = weigher;
+        this.quantum = quantum;
+        this.budget = budget;
+        this.onLowerWatermarkCrossed = onLowerWatermarkCrossed;
+        this.onUpperWatermarkCrossed = onUpperWatermarkCrossed;
+        this.consumerWait = consumerWait;
+        this.sources = new AtomicReferenceArray<>(maxSources);
+        this.ring = new int[maxSources];
+    }
+
+    public void add(E e) {
+        final int source = classifier.applyAsInt(e);
+        final long w = weigher.applyAsLong(e);
+
+        int n = 0;
+        lock.lock();
+        final boolean wasEmpty = size == 0;
+        try {
+            final Source s = enqueue(source, e, w);
+            n = 1;
+            s.grown(s.depth);
+        } finally {
+            added(n, n == 0 ? 0L : w, wasEmpty);
+        }
+    }
+
+    /**
+     * Batch version of {@link #add(Object)}, takes the lock once per batch.
+     * <p>
+     * If the classifier, the weigher or a callback throws, the elements enqueued before stay enqueued.
+     * </p>
+     */
+    public void addAll(Collection<? extends E> es) {
+        int n = 0;
+        long total = 0;
+        lock.lock();
+        final boolean wasEmpty = size == 0;
+        try {
+            for (E e : es) {
+                final long w = weigher.applyAsLong(e);
+                final Source s = enqueue(classifier.applyAsInt(e), e, w);
+                ++n;
+                total += w;
+                s.grown(s.depth);
+            }
+        } finally {
+            added(n, total, wasEmpty);
+        }
+    }
+
+    /**
+     * Takes the next element in the deficit round robin order, waits up to the timeout if there is none.
+     */
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        E e = tryPoll();
+
+        if (e == null && consumerWait.await(nonEmpty, unit.toNanos(timeout))) {
+            e = tryPoll();
+        }
+
+        return e;
+    }
+
+    /**
+     * Batch version of {@link #poll(long, TimeUnit)}, does not wait, takes the lock once per batch.
+     *
+     * @return number of elements passed to the sink
+     */
+    public int drainTo(Consumer<? super E> sink, int max) {
+        int n = 0;
+        long total = 0;
+        lock.lock();
+        try {
+            for (E e; n < max && (e = next()) != null; ) {
+                total += weigher.applyAsLong(e);
+                ++n;
+                sink.accept(e);
+            }
+        } finally {
+            // the elements taken before a failed sink are gone, release them either way
+            lock.unlock();
+            released(total);
+        }
+        return n;
+    }
+
+    /**
+     * @return true if the source is above its watermark or the shared budget, if any, is exhausted
+     */
+    public boolean isSourceSuspended(int source) {
+        final Source s = sources.get(source);
+        return (s != null && s.isSuspended()) || (budget != null && budget.isExhausted());
+    }
+
+    /**
+     * @return queued weight of the source
+     */
+    public long depth(int source) {
+        final Source s = sources.get(source);
+        return s != null ? s.depth : 0L;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Moves the watermarks of all sources, see {@link AdaptiveWatermarks}, a crossing caused by the move is
+     * reported right away.
+     */
+    public void setWatermarks(long lowerWatermark, long upperWatermark) {
+        assert lowerWatermark >= 0 && lowerWatermark < upperWatermark;
+
+        lock.lock();
+        try {
+            this.lowerWatermark = lowerWatermark;
+            this.upperWatermark = upperWatermark;
+            for (int source = 0; source < sources.length(); ++source) {
+                final Source s = sources.get(source);
+                if (s != null) {
+                    s.setWatermarks(lowerWatermark, upperWatermark);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forgets an idle source, for the sources which come and go, like sessions.
+     *
+     * @return false if the source has queued elements and has not been forgotten
+     */
+    public boolean retireSource(int source) {
+        lock.lock();
+        try {
+            final Source s = sources.get(source);
+            if (s == null) {
+                return true;
+            } else if (!s.queue.isEmpty()) {
+                return false;
+            }
+            sources.set(source, null);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private E tryPoll() {
+        final E e;
+        lock.lock();
+        try {
+            e = next();
+        } finally {
+            lock.unlock();
+        }
+
+        if (e != null) {
+            released(weigher.applyAsLong(e));
+        }
+        return e;
+    }
+
+    /**
+     * Deficit round robin step, called under the lock.
+     *
+     * @return next element or null if there are none
+     */
+    private E next() {
+        for (;;) {
+            if (current == NONE) {
+                if (ringSize == 0) {
+                    return null;
+                }
+                current = ring[ringHead];
+                ringHead = ringHead + 1 == ring.length ? 0 : ringHead + 1;
+                --ringSize;
+                sources.get(current).deficit += quantum;
+            }
+
+            final Source s = sources.get(current);
+            final E e = s.queue.peek();
+            final long w = weigher.applyAsLong(e);
+            if (w > s.deficit) {
+                // not enough credit, to the back of the ring
+                push(current);
+                current = NONE;
+                continue;
+            }
+
+            s.queue.poll();
+            s.deficit -= w;
+            s.depth = s.depth - w;
+            if (s.queue.isEmpty()) {
+                s.deficit = 0;
+                current = NONE;
+            }
+            size = size - 1;
+            s.shrunk(s.depth);
+
+            return e;
+        }
+    }
+
+    /**
+     * Called under the lock, the caller accounts for the element and then checks the upper watermark.
+     */
+    private Source enqueue(int source, E e, long w) {
+        Source s = sources.get(source);
+        if (s == null) {
+            s = new Source(source);
+            sources.set(source, s);
+        }
+
+        // the source being served has elements, so an empty source is not in the ring
+        if (s.queue.isEmpty()) {
+            push(source);
+        }
+        s.queue.offer(e);
+        s.depth = s.depth + w;
+        return s;
+    }
+
+    /**
+     * Accounts for the elements enqueued by the caller and releases the lock taken by it.
+     */
+    private void added(int n, long weight, boolean wasEmpty) {
+        size = size + n;
+        lock.unlock();
+
+        acquired(weight);
+        if (wasEmpty && n != 0) {
+            consumerWait.signal();
+        }
+    }
+
+    private void push(int source) {
+        final int tail = ringHead + ringSize;
+        ring[tail < ring.length ? tail : tail - ring.length] = source;
+        ++ringSize;
+    }
+
+    private void acquired(long weight) {
+        if (budget != null) {
+            budget.acquire(weight);
+        }
+    }
+
+    private void released(long weight) {
+        if (budget != null) {
+            budget.release(weight);
+        }
+    }
+}
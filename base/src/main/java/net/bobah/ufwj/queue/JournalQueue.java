@@ -0,0 +1,417 @@
+/*
+ * Copyright (c) 2018 Vladimir Lysyy (mrbald@github)
+ * ALv2 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+package net.bobah.ufwj.queue;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Unbounded FIFO queue journaled to memory mapped segment files, not thread-safe.
+ * <p>
+ * Elements are serialized into fixed size segment files in a directory, a record is an {@code int} length
+ * followed by the payload, the length is written last so that a torn record is ignored. The writer rolls to a new
+ * segment when a record does not fit, the reader deletes the segments it has read through. The read position is
+ * kept in a mapped file next to the segments, reopening the directory replays the unconsumed elements. Delivery
+ * is at least once, an element consumed right before a crash may be replayed.
+ * </p>
+ * <p>
+ * Survives a process crash, surviving an OS crash takes a {@link #force()}. Heap use does not depend on the
+ * queue depth, so it is meant as the backing queue of {@link WatermarkQueue} for durable buffering during
+ * the downstream outages.
+ * </p>
+ *
+ * @param <E> element type
+ *
+ * @author Vladimir Lysyy (mrbald@github)
+ */
+public final class JournalQueue<E> extends AbstractQueue<E> implements Closeable {
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String POSITION_FILE = "position";
+
+    private static final int HEADER_BYTES = Integer.BYTES;
+    private static final int END_OF_SEGMENT = -1;
+
+    /**
+     * Releases a mapping right away rather than when the buffer is garbage collected, so that a deleted segment
+     * does not hold its disk space, or fail to delete on Windows, until the next GC. A no-op on a JVM providing
+     * neither way to do it. The buffer must not be accessed afterwards, the access would crash the JVM.
+     */
+    private static final Consumer<MappedByteBuffer> UNMAPPER = unmapper();
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final Serializer<E> serializer;
+
+    /**
+     * Read segment first, write segment last.
+     */
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+
+    /**
+     * Read segment index and read offset.
+     */
+    private final MappedByteBuffer position;
+
+    private int readOffset;
+    private int writeOffset;
+    private int size;
+    private boolean closed = false;
+
+    private static final class Segment {
+        final long index;
+        final Path file;
+        final MappedByteBuffer writeView;
+        final ByteBuffer readView;
+
+        Segment(long index, Path file, MappedByteBuffer writeView) {
+            this.index = index;
+            this.file = file;
+            this.writeView = writeView;
+            this.readView = writeView.duplicate().order(writeView.order());
+        }
+    }
+
+    private JournalQueue(Path dir, int segmentBytes, Serializer<E> serializer) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.serializer = serializer;
+        this.position = map(dir.resolve(POSITION_FILE), Long.BYTES + Integer.BYTES);
+    }
+
+    /**
+     * Opens the journal in the directory, creating it if needed, and recovers the unconsumed elements.
+     * @param dir journal directory, used by a single queue
+     * @param segmentBytes segment file size, the largest serialized element must fit in a segment
+     * @param serializer element binary form
+     */
+    public static <E> JournalQueue<E> open(Path dir, int segmentBytes, Serializer<E> serializer)
+            throws IOException {
+        assert segmentBytes > HEADER_BYTES;
+
+        Files.createDirectories(dir);
+        final JournalQueue<E> journal = new JournalQueue<>(dir, segmentBytes, serializer);
+        journal.recover();
+        return journal;
+    }
+
+    @Override
+    public boolean offer(E e) {
+        ensureOpen();
+        for (boolean rolled = false; ; rolled = true) {
+            final MappedByteBuffer buffer = writer().writeView;
+            final int recordOffset = writeOffset;
+            if (segmentBytes - recordOffset > HEADER_BYTES) {
+                try {
+                    buffer.limit(segmentBytes).position(recordOffset + HEADER_BYTES);
+                    serializer.write(e, buffer);
+                    final int end = buffer.position();
+                    if (segmentBytes - end >= HEADER_BYTES) {
+                        // terminates the recovery scan in front of the leftovers of a torn record
+                        buffer.putInt(end, 0);
+                    }
+                    buffer.putInt(recordOffset, end - recordOffset);
+                    writeOffset = end;
+                    ++size;
+                    return true;
+                } catch (BufferOverflowException overflow) {
+                    if (rolled) {
+                        throw new IllegalArgumentException("element does not fit in a segment: " + e, overflow);
+                    }
+                }
+            }
+            roll();
+        }
+    }
+
+    @Override
+    public E poll() {
+        final int recordOffset = nextRecord();
+        if (recordOffset == -1) {
+            return null;
+        }
+
+        final ByteBuffer buffer = reader().readView;
+        final int recordBytes = buffer.getInt(recordOffset);
+        final E e = read(buffer, recordOffset, recordBytes);
+
+        readOffset = recordOffset + recordBytes;
+        position.putInt(Long.BYTES, readOffset);
+        --size;
+
+        return e;
+    }
+
+    @Override
+    public E peek() {
+        final int recordOffset = nextRecord();
+        if (recordOffset == -1) {
+            return null;
+        }
+
+        final ByteBuffer buffer = reader().readView;
+        return read(buffer, recordOffset, buffer.getInt(recordOffset));
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return elements in the queue order, for diagnostics, deserializes every element
+     */
+    @Override
+    public Iterator<E> iterator() {
+        ensureOpen();
+        final List<E> snapshot = new ArrayList<>(size);
+        int offset = readOffset;
+        for (Segment segment : segments) {
+            final ByteBuffer buffer = segment.readView;
+            for (int recordBytes; segmentBytes - offset > HEADER_BYTES
+                    && (recordBytes = buffer.getInt(offset)) > 0; offset += recordBytes) {
+                snapshot.add(read(buffer, offset, recordBytes));
+            }
+            offset = 0;
+        }
+
+        return Collections.unmodifiableList(snapshot).iterator();
+    }
+
+    /**
+     * Writes the journal content to the storage device.
+     */
+    public void force() {
+        ensureOpen();
+        for (Segment segment : segments) {
+            segment.writeView.force();
+        }
+        position.force();
+    }
+
+    /**
+     * Forces the content and releases the mappings, the queue can not be used afterwards.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+
+        force();
+        closed = true;
+        size = 0;
+        for (Segment segment; (segment = segments.pollFirst()) != null; ) {
+            UNMAPPER.accept(segment.writeView);
+        }
+        UNMAPPER.accept(position);
+    }
+
+    private Segment reader() {
+        return segments.peekFirst();
+    }
+
+    private Segment writer() {
+        return segments.peekLast();
+    }
+
+    /**
+     * @return offset of the next record in the read segment, moving to the next segment if needed,
+     * or -1 if the queue is empty
+     */
+    private int nextRecord() {
+        ensureOpen();
+        if (size == 0) {
+            return -1;
+        }
+
+        for (;;) {
+            final Segment segment = reader();
+            if (segmentBytes - readOffset > HEADER_BYTES) {
+                final int recordBytes = segment.readView.getInt(readOffset);
+                if (recordBytes > 0) {
+                    return readOffset;
+                }
+                assert recordBytes == END_OF_SEGMENT;
+            }
+            reclaim();
+        }
+    }
+
+    private E read(ByteBuffer buffer, int recordOffset, int recordBytes) {
+        buffer.limit(recordOffset + recordBytes).position(recordOffset + HEADER_BYTES);
+        try {
+            return serializer.read(buffer);
+        } finally {
+            buffer.limit(segmentBytes);
+        }
+    }
+
+    private void roll() {
+        final Segment current = writer();
+        if (segmentBytes - writeOffset >= HEADER_BYTES) {
+            current.writeView.putInt(writeOffset, END_OF_SEGMENT);
+        }
+
+        try {
+            segments.addLast(segment(current.index + 1));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        writeOffset = 0;
+    }
+
+    private void reclaim() {
+        final Segment done = segments.pollFirst();
+        final Segment next = reader();
+        assert next != null;
+
+        // offset first, a crash in between replays the reclaimed segment rather than skips the next one
+        readOffset = 0;
+        position.putInt(Long.BYTES, 0);
+        position.putLong(0, next.index);
+
+        UNMAPPER.accept(done.writeView);
+        try {
+            Files.deleteIfExists(done.file);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void recover() throws IOException {
+        final List<Long> indices = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                final String name = file.getFileName().toString();
+                indices.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+            }
+        }
+        indices.sort(null);
+
+        final long readIndex = position.getLong(0);
+        readOffset = position.getInt(Long.BYTES);
+
+        // the reclaim persists the position before deleting the segment, a crash in between leaves the segments
+        // read through behind the read segment
+        for (long index : indices) {
+            if (index < readIndex) {
+                Files.delete(segmentFile(index));
+            } else {
+                segments.addLast(segment(index));
+            }
+        }
+
+        if (segments.isEmpty() || reader().index != readIndex) {
+            // a new journal, or a new position file next to the existing segments, reads from the first one
+            readOffset = 0;
+            if (segments.isEmpty()) {
+                segments.addLast(segment(readIndex));
+            }
+            position.putLong(0, reader().index);
+            position.putInt(Long.BYTES, 0);
+        }
+
+        size = 0;
+        int offset = readOffset;
+        for (Segment segment : segments) {
+            final ByteBuffer buffer = segment.readView;
+            int recordBytes = 0;
+            while (segmentBytes - offset > HEADER_BYTES && (recordBytes = buffer.getInt(offset)) > 0) {
+                offset += recordBytes;
+                ++size;
+            }
+            writeOffset = recordBytes == END_OF_SEGMENT ? segmentBytes : offset;
+            offset = 0;
+        }
+    }
+
+    private Segment segment(long index) throws IOException {
+        final Path file = segmentFile(index);
+        return new Segment(index, file, map(file, segmentBytes));
+    }
+
+    private Path segmentFile(long index) {
+        return dir.resolve(String.format("%020d%s", index, SEGMENT_SUFFIX));
+    }
+
+    private void ensureOpen() {
+        if (closed) {
+            throw new IllegalStateException("closed journal " + dir);
+        }
+    }
+
+    private static Consumer<MappedByteBuffer> unmapper() {
+        try {
+            // java 9+, sun.misc is exported by jdk.unsupported
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            final Object unsafe = theUnsafe.get(null);
+            return buffer -> invoke(invokeCleaner, unsafe, buffer);
+        } catch (ReflectiveOperationException | RuntimeException notJava9) {
+            try {
+                // java 8
+                final Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+                final Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+                return buffer -> invoke(clean, invoke(cleaner, buffer));
+            } catch (ReflectiveOperationException | RuntimeException notJava8) {
+                return buffer -> { };
+            }
+        }
+    }
+
+    private static Object invoke(Method method, Object target, Object... args) {
+        try {
+            return method.invoke(target, args);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private static MappedByteBuffer map(Path file, int bytes) throws IOException {
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0L, bytes);
+            buffer.order(ByteOrder.nativeOrder());
+            return buffer;
+        }
+    }
+
+    /**
+     * Discards the elements without deserializing them.
+     */
+    @Override
+    public void clear() {
+        while (nextRecord() != -1) {
+            readOffset += reader().readView.getInt(readOffset);
+            position.putInt(Long.BYTES, readOffset);
+            --size;
+        }
+    }
+}
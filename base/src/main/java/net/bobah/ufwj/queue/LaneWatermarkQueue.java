@@ -0,0 +1,360 @@
+/*
+ * Copyright (c) 2018 Vladimir Lysyy (mrbald@github)
+ * ALv2 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+package net.bobah.ufwj.queue;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.ToIntFunction;
+
+/**
+ * Version of {@link WatermarkQueue} with several FIFO lanes drained in priority order, so that the control traffic,
+ * like heartbeats or cancels, is not queued behind a burst of data and is not suspended with it.
+ * <p>
+ * The classifier maps an element to its lane, {@code 0} is the highest priority. The consumer always takes from
+ * the highest non-empty lane. Each lane has its own watermarks on the number of its elements and suspends and
+ * resumes on its own, a lane with the {@link #EXEMPT} upper watermark is never suspended.
+ * </p>
+ *
+ * <pre>{@code
+ * final LaneWatermarkQueue<Message> queue = new LaneWatermarkQueue<>(
+ *         m -> m.isAdmin() || m.isCancel() ? 0 : 1,
+ *         new long[]{0, 2000}, new long[]{LaneWatermarkQueue.EXEMPT, 8000}, 100L,
+ *         lane -> reader.suspend(), lane -> reader.resume());
+ * }</pre>
+ *
+ * @param <E> payload type
+ *
+ * @author Vladimir Lysyy (mrbald@github)
+ */
+public final class LaneWatermarkQueue<E> extends AbstractQueue<E> {
+    /**
+     * Upper watermark of a lane which is never suspended.
+     */
+    public static final long EXEMPT = Long.MAX_VALUE;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final ToIntFunction<? super E> classifier;
+    private final Lane[] lanes;
+    private final long maxWaitNanos;
+
+    private final IntConsumer onSuspend;
+    private final IntConsumer onResume;
+
+    private final WaitStrategy consumerWait;
+    private final WaitStrategy producerWait;
+    private final BooleanSupplier nonEmpty = () -> this.size != 0;
+
+    private volatile int size = 0;
+
+    private static final class Lane {
+        private final int id;
+        private final ArrayDeque<Object> queue = new ArrayDeque<>();
+
+        /**
+         * Guarded by the lock.
+         */
+        private long lowerWatermark;
+        private long upperWatermark;
+
+        private volatile boolean suspended = false;
+
+        Lane(int id, long lowerWatermark, long upperWatermark) {
+            this.id = id;
+            this.lowerWatermark = lowerWatermark;
+            this.upperWatermark = upperWatermark;
+        }
+    }
+
+    public LaneWatermarkQueue(ToIntFunction<? super E> classifier,
+                              long[] lowerWatermarks, long[] upperWatermarks, long maxWaitMs,
+                              IntConsumer onSuspend, IntConsumer onResume) {
+        this(classifier, lowerWatermarks, upperWatermarks, maxWaitMs, onSuspend, onResume,
+                WaitStrategies.blocking(), WaitStrategies.blocking());
+    }
+
+    /**
+     * @param classifier lane of an element, from {@code 0}, the highest priority, to the number of lanes minus one
+     * @param lowerWatermarks per lane, the number of lanes
+     * @param upperWatermarks per lane, {@link #EXEMPT} for the lanes never suspended
+     * @param onSuspend called with the lane when it reaches its upper watermark
+     * @param onResume called with the lane when it drops to its lower watermark
+     * @param consumerWait how {@link #poll()} waits up to {@code maxWaitMs} for the queue to become non-empty
+     * @param producerWait how {@link #awaitResume(int, long, TimeUnit)} waits for the lane to be resumed
+     */
+    public LaneWatermarkQueue(ToIntFunction<? super E> classifier,
+                              long[] lowerWatermarks, long[] upperWatermarks, long maxWaitMs,
+                              IntConsumer onSuspend, IntConsumer onResume,
+                              WaitStrategy consumerWait, WaitStrategy producerWait) {
+        assert lowerWatermarks.length > 0 && lowerWatermarks.length == upperWatermarks.length;
+
+        this.classifier = classifier;
+        this.lanes = new Lane[lowerWatermarks.length];
+        for (int lane = 0; lane < lanes.length; ++lane) {
+            assert lowerWatermarks[lane] >= 0 && lowerWatermarks[lane] < upperWatermarks[lane];
+            lanes[lane] = new Lane(lane, lowerWatermarks[lane], upperWatermarks[lane]);
+        }
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMs);
+        this.onSuspend = onSuspend;
+        this.onResume = onResume;
+        this.consumerWait = consumerWait;
+        this.producerWait = producerWait;
+    }
+
+    public int lanes() {
+        return lanes.length;
+    }
+
+    /**
+     * Snapshot in the consumer order.
+     */
+    @Override
+    public Iterator<E> iterator() {
+        final List<E> snapshot = new ArrayList<>();
+        lock.lock();
+        try {
+            for (Lane lane : lanes) {
+                for (Object e : lane.queue) {
+                    snapshot.add(cast(e));
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return snapshot.iterator();
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return number of elements in the lane
+     */
+    public int size(int lane) {
+        lock.lock();
+        try {
+            return lanes[lane].queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(E e) {
+        final Lane lane = lanes[classifier.applyAsInt(e)];
+
+        final boolean wasEmpty;
+        lock.lock();
+        try {
+            wasEmpty = size == 0;
+            lane.queue.offer(e);
+            size = size + 1;
+            grown(lane);
+        } finally {
+            lock.unlock();
+        }
+
+        if (wasEmpty) {
+            consumerWait.signal();
+        }
+        return true;
+    }
+
+    /**
+     * Takes the head of the highest priority non-empty lane, waits up to {@code maxWaitMs} if there is none.
+     */
+    @Override
+    public E poll() {
+        E e = tryPoll();
+
+        if (e == null && awaitNonEmpty()) {
+            e = tryPoll();
+        }
+
+        return e;
+    }
+
+    /**
+     * Batch version of {@link #poll()}, takes the lock once per batch, a higher lane is drained before a lower one.
+     * <p>
+     * The sink is called under the queue lock and should only hand the elements over.
+     * </p>
+     *
+     * @return number of elements passed to the sink
+     */
+    public int drainTo(Consumer<? super E> sink, int max) {
+        int n = tryDrainTo(sink, max);
+
+        if (n == 0 && awaitNonEmpty()) {
+            n = tryDrainTo(sink, max);
+        }
+
+        return n;
+    }
+
+    @Override
+    public E peek() {
+        lock.lock();
+        try {
+            for (Lane lane : lanes) {
+                if (!lane.queue.isEmpty()) {
+                    return cast(lane.queue.peek());
+                }
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isLaneSuspended(int lane) {
+        return lanes[lane].suspended;
+    }
+
+    /**
+     * @return true if the lane of the element is suspended
+     */
+    public boolean isSuspended(E e) {
+        return lanes[classifier.applyAsInt(e)].suspended;
+    }
+
+    /**
+     * Blocks the producer of the suspended lane until resumed.
+     *
+     * @return true if the lane is not suspended, false on timeout
+     */
+    public boolean awaitResume(int lane, long timeout, TimeUnit unit) throws InterruptedException {
+        final Lane l = lanes[lane];
+        return producerWait.await(() -> !l.suspended, unit.toNanos(timeout));
+    }
+
+    /**
+     * Moves the watermarks of the lane, see {@link AdaptiveWatermarks}, a crossing caused by the move is reported
+     * right away.
+     */
+    public void setWatermarks(int lane, long lowerWatermark, long upperWatermark) {
+        assert lowerWatermark >= 0 && lowerWatermark < upperWatermark;
+
+        final Lane l = lanes[lane];
+        final boolean resumed;
+        lock.lock();
+        try {
+            l.lowerWatermark = lowerWatermark;
+            l.upperWatermark = upperWatermark;
+            grown(l);
+            resumed = shrunk(l);
+        } finally {
+            lock.unlock();
+        }
+
+        if (resumed) {
+            producerWait.signal();
+        }
+    }
+
+    private E tryPoll() {
+        E e = null;
+        boolean resumed = false;
+        lock.lock();
+        try {
+            for (Lane lane : lanes) {
+                if (!lane.queue.isEmpty()) {
+                    e = cast(lane.queue.poll());
+                    size = size - 1;
+                    resumed = shrunk(lane);
+                    break;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (resumed) {
+            producerWait.signal();
+        }
+        return e;
+    }
+
+    private int tryDrainTo(Consumer<? super E> sink, int max) {
+        int n = 0;
+        boolean resumed = false;
+        lock.lock();
+        try {
+            for (int i = 0; i < lanes.length && n < max; ++i) {
+                final Lane lane = lanes[i];
+                int taken = 0;
+                try {
+                    for (Object e; n < max && (e = lane.queue.poll()) != null; ) {
+                        ++n;
+                        ++taken;
+                        sink.accept(cast(e));
+                    }
+                } finally {
+                    // the elements taken before a failed sink are gone, account for them either way
+                    if (taken != 0) {
+                        size = size - taken;
+                        resumed |= shrunk(lane);
+                    }
+                }
+            }
+        } finally {
+            lock.unlock();
+
+            if (resumed) {
+                producerWait.signal();
+            }
+        }
+        return n;
+    }
+
+    private boolean awaitNonEmpty() {
+        try {
+            return consumerWait.await(nonEmpty, maxWaitNanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Called under the lock.
+     */
+    private void grown(Lane lane) {
+        if (!lane.suspended && lane.queue.size() >= lane.upperWatermark) {
+            lane.suspended = true;
+            onSuspend.accept(lane.id);
+        }
+    }
+
+    /**
+     * Called under the lock.
+     *
+     * @return true if the lane has been resumed
+     */
+    private boolean shrunk(Lane lane) {
+        if (lane.suspended && lane.queue.size() <= lane.lowerWatermark) {
+            lane.suspended = false;
+            onResume.accept(lane.id);
+            return true;
+        }
+        return false;
+    }
+
+    @SuppressWarnings("unchecked")
+    private E cast(Object e) {
+        return (E) e;
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2018 Vladimir Lysyy (mrbald@github)
+ * ALv2 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+package net.bobah.ufwj.queue;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Preallocated histogram of non-negative values with power of two buckets, for the latencies in nanoseconds.
+ * <p>
+ * Bucket {@code i} counts the values in {@code [2^(i-1), 2^i)}, bucket 0 counts zeroes. Percentiles are reported
+ * as the bucket upper bounds, so within a factor of two. Thread-safe, no memory allocation after construction.
+ * </p>
+ *
+ * @author Vladimir Lysyy (mrbald@github)
+ */
+final class Log2Histogram {
+    private final AtomicLongArray buckets = new AtomicLongArray(Long.SIZE);
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long value) {
+        assert value >= 0;
+
+        buckets.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(value));
+        for (long was; value > (was = max.get()) && !max.compareAndSet(was, value); ) {
+            // retry
+        }
+    }
+
+    long count() {
+        long count = 0;
+        for (int i = 0; i < buckets.length(); ++i) {
+            count += buckets.get(i);
+        }
+        return count;
+    }
+
+    long max() {
+        return max.get();
+    }
+
+    /**
+     * @param quantile from 0 to 1
+     * @return upper bound of the bucket with the quantile, capped by the max, 0 if empty
+     */
+    long percentile(double quantile) {
+        assert 0.0 <= quantile && quantile <= 1.0;
+
+        final long count = count();
+        if (count == 0) {
+            return 0L;
+        }
+
+        final long rank = Math.max(1L, (long) Math.ceil(quantile * count));
+        long seen = 0;
+        for (int i = 0; i < buckets.length(); ++i) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return Math.min(i == 0 ? 0L : (1L << i) - 1, max());
+            }
+        }
+        return max();
+    }
+}
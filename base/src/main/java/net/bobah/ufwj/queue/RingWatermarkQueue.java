@@ -0,0 +1,391 @@
+/*
+ * Copyright (c) 2018 Vladimir Lysyy (mrbald@github)
+ * ALv2 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+package net.bobah.ufwj.queue;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Lock-free bounded counterpart of {@link WatermarkQueue} on top of a preallocated power-of-two ring buffer.
+ * <p>
+ * Producer and consumer positions are padded sequences, the queue depth and the watermark crossings are derived
+ * from the sequence difference. The suspend/resume callbacks have the same semantics as in {@link WatermarkQueue}:
+ * the producer is suspended when the depth reaches the upper watermark and resumed when it drops to the lower one.
+ * </p>
+ * <p>
+ * Unlike {@link WatermarkQueue} the {@link #offer(Object)} fails when the ring is full and {@link #poll()} does
+ * not wait, the waiting versions are {@link #poll(long, TimeUnit)} and {@link #awaitResume(long, TimeUnit)}.
+ * No memory allocation after construction.
+ * </p>
+ * @param <E> payload type
+ *
+ * @author Vladimir Lysyy (mrbald@github)
+ */
+public abstract class RingWatermarkQueue<E> extends AbstractQueue<E> {
+    final AtomicReferenceArray<E> buffer;
+    final int mask;
+
+    final Sequence head = new Sequence();
+    final Sequence tail = new Sequence();
+
+    final WatermarkState watermarks;
+
+    final WaitStrategy consumerWait;
+    final WaitStrategy producerWait;
+    private final BooleanSupplier nonEmpty = () -> !isEmpty();
+    private final BooleanSupplier producerRunning = () -> !isProducerSuspended();
+
+    /**
+     * Single producer single consumer queue.
+     */
+    public static <E> RingWatermarkQueue<E> newSpsc(int requiredCap, int lowerWatermark, int upperWatermark,
+                                                    Runnable onSuspend, Runnable onResume) {
+        return newSpsc(requiredCap, lowerWatermark, upperWatermark, onSuspend, onResume,
+                WaitStrategies.spinThenPark(), WaitStrategies.spinThenPark());
+    }
+
+    /**
+     * Single producer single consumer queue.
+     *
+     * @param consumerWait how {@link #poll(long, TimeUnit)} waits for the queue to become non-empty
+     * @param producerWait how {@link #awaitResume(long, TimeUnit)} waits for the producer to be resumed
+     */
+    public static <E> RingWatermarkQueue<E> newSpsc(int requiredCap, int lowerWatermark, int upperWatermark,
+                                                    Runnable onSuspend, Runnable onResume,
+                                                    WaitStrategy consumerWait, WaitStrategy producerWait) {
+        return new Spsc<>(requiredCap, lowerWatermark, upperWatermark, onSuspend, onResume,
+                consumerWait, producerWait);
+    }
+
+    /**
+     * Multiple producers single consumer queue.
+     */
+    public static <E> RingWatermarkQueue<E> newMpsc(int requiredCap, int lowerWatermark, int upperWatermark,
+                                                    Runnable onSuspend, Runnable onResume) {
+        return newMpsc(requiredCap, lowerWatermark, upperWatermark, onSuspend, onResume,
+                WaitStrategies.spinThenPark(), WaitStrategies.spinThenPark());
+    }
+
+    /**
+     * Multiple producers single consumer queue.
+     *
+     * @param consumerWait how {@link #poll(long, TimeUnit)} waits for the queue to become non-empty
+     * @param producerWait how {@link #awaitResume(long, TimeUnit)} waits for the producers to be resumed
+     */
+    public static <E> RingWatermarkQueue<E> newMpsc(int requiredCap, int lowerWatermark, int upperWatermark,
+                                                    Runnable onSuspend, Runnable onResume,
+                                                    WaitStrategy consumerWait, WaitStrategy producerWait) {
+        return new Mpsc<>(requiredCap, lowerWatermark, upperWatermark, onSuspend, onResume,
+                consumerWait, producerWait);
+    }
+
+    RingWatermarkQueue(int requiredCap, int lowerWatermark, int upperWatermark,
+                       Runnable onSuspend, Runnable onResume,
+                       WaitStrategy consumerWait, WaitStrategy producerWait) {
+        assert requiredCap > 1;
+
+        final int cap = 1 << (Integer.SIZE - Integer.numberOfLeadingZeros(requiredCap - 1));
+        assert upperWatermark <= cap;
+
+        this.buffer = new AtomicReferenceArray<>(cap);
+        this.mask = cap - 1;
+        this.consumerWait = consumerWait;
+        this.producerWait = producerWait;
+        this.watermarks = new WatermarkState(lowerWatermark, upperWatermark) {
+            @Override
+            long depth() {
+                return tail.get() - head.get();
+            }
+
+            @Override
+            void onSuspend() {
+                onSuspend.run();
+            }
+
+            @Override
+            void onResume() {
+                onResume.run();
+                producerWait.signal();
+            }
+        };
+    }
+
+    public int capacity() {
+        return buffer.length();
+    }
+
+    @Override
+    public int size() {
+        long h = head.get();
+        for (;;) {
+            final long t = tail.get();
+            final long h2 = head.get();
+            if (h == h2) {
+                return (int) Math.min(Math.max(t - h, 0L), capacity());
+            }
+            h = h2;
+        }
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return head.get() >= tail.get();
+    }
+
+    /**
+     * Weakly consistent snapshot, for diagnostics only.
+     */
+    @Override
+    public Iterator<E> iterator() {
+        final List<E> snapshot = new ArrayList<>();
+        for (long pos = head.get(), end = tail.get(); pos < end; ++pos) {
+            final E e = buffer.get(index(pos));
+            if (e != null) {
+                snapshot.add(e);
+            }
+        }
+        return snapshot.iterator();
+    }
+
+    /**
+     * Single consumer only.
+     */
+    @Override
+    public E poll() {
+        final long h = head.get();
+        final int idx = index(h);
+
+        E e = buffer.get(idx);
+        if (e == null) {
+            if (h >= tail.get()) {
+                return null;
+            }
+            // claimed by a producer, but not yet published
+            do {
+                e = buffer.get(idx);
+            } while (e == null);
+        }
+
+        buffer.lazySet(idx, null);
+        consumed(h + 1);
+
+        return e;
+    }
+
+    /**
+     * Waiting version of {@link #poll()}. Single consumer only.
+     *
+     * @return the head of the queue or null on timeout
+     */
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        final E e = poll();
+        if (e != null || !consumerWait.await(nonEmpty, unit.toNanos(timeout))) {
+            return e;
+        }
+        return poll();
+    }
+
+    /**
+     * Blocks the suspended producer until resumed.
+     *
+     * @return true if the producer is not suspended, false on timeout
+     */
+    public boolean awaitResume(long timeout, TimeUnit unit) throws InterruptedException {
+        return producerWait.await(producerRunning, unit.toNanos(timeout));
+    }
+
+    /**
+     * Batch version of {@link #poll()}, publishes the consumer position and evaluates the watermarks once per batch.
+     * Single consumer only.
+     *
+     * @return number of elements passed to the sink
+     */
+    public int drainTo(Consumer<? super E> sink, int max) {
+        final long h = head.get();
+        final long available = Math.min(tail.get() - h, max);
+
+        int n = 0;
+        for (; n < available; ++n) {
+            final int idx = index(h + n);
+
+            E e = buffer.get(idx);
+            while (e == null) {
+                // claimed by a producer, but not yet published
+                e = buffer.get(idx);
+            }
+
+            buffer.lazySet(idx, null);
+            sink.accept(e);
+        }
+
+        if (n != 0) {
+            consumed(h + n);
+        }
+
+        return n;
+    }
+
+    /**
+     * Batch version of {@link #offer(Object)}, claims and publishes the slots and evaluates the watermarks
+     * once per batch.
+     *
+     * @return number of leading elements of the batch that were offered, less than the batch length if the ring
+     * filled up
+     */
+    public abstract int offerAll(E[] es);
+
+    /**
+     * Single consumer only.
+     */
+    @Override
+    public E peek() {
+        return buffer.get(index(head.get()));
+    }
+
+    public boolean isProducerSuspended() {
+        return watermarks.isSuspended();
+    }
+
+    /**
+     * Moves the watermarks, for a single adjusting thread, see {@link AdaptiveWatermarks}.
+     */
+    public void setWatermarks(long lowerWatermark, long upperWatermark) {
+        assert upperWatermark <= capacity();
+        watermarks.setWatermarks(lowerWatermark, upperWatermark);
+    }
+
+    final int index(long pos) {
+        return (int) pos & mask;
+    }
+
+    final void consumed(long newHead) {
+        final long depth = tail.get() - newHead;
+        if (depth <= watermarks.lowerWatermark) {
+            head.set(newHead);
+            watermarks.shrunk(depth);
+        } else {
+            head.lazySet(newHead);
+        }
+    }
+
+    private static final class Spsc<E> extends RingWatermarkQueue<E> {
+        private long headCache = 0L;
+
+        Spsc(int requiredCap, int lowerWatermark, int upperWatermark, Runnable onSuspend, Runnable onResume,
+             WaitStrategy consumerWait, WaitStrategy producerWait) {
+            super(requiredCap, lowerWatermark, upperWatermark, onSuspend, onResume, consumerWait, producerWait);
+        }
+
+        /**
+         * Single producer only.
+         */
+        @Override
+        public boolean offer(E e) {
+            assert e != null;
+
+            final long t = tail.get();
+            if (t - headCache >= capacity() && t - (headCache = head.get()) >= capacity()) {
+                return false;
+            }
+
+            buffer.lazySet(index(t), e);
+            published(t + 1, t + 1 - headCache);
+
+            return true;
+        }
+
+        /**
+         * Single producer only.
+         */
+        @Override
+        public int offerAll(E[] es) {
+            final long t = tail.get();
+            if (t - headCache + es.length > capacity()) {
+                headCache = head.get();
+            }
+
+            final int n = (int) Math.min(es.length, capacity() - (t - headCache));
+            for (int i = 0; i < n; ++i) {
+                assert es[i] != null;
+                buffer.lazySet(index(t + i), es[i]);
+            }
+
+            if (n != 0) {
+                published(t + n, t + n - headCache);
+            }
+
+            return n;
+        }
+
+        private void published(long newTail, long depth) {
+            if (depth >= watermarks.upperWatermark) {
+                tail.set(newTail);
+                watermarks.grown(depth);
+            } else {
+                tail.lazySet(newTail);
+            }
+            consumerWait.signal();
+        }
+    }
+
+    private static final class Mpsc<E> extends RingWatermarkQueue<E> {
+        Mpsc(int requiredCap, int lowerWatermark, int upperWatermark, Runnable onSuspend, Runnable onResume,
+             WaitStrategy consumerWait, WaitStrategy producerWait) {
+            super(requiredCap, lowerWatermark, upperWatermark, onSuspend, onResume, consumerWait, producerWait);
+        }
+
+        @Override
+        public boolean offer(E e) {
+            assert e != null;
+
+            long t;
+            long h;
+            do {
+                t = tail.get();
+                h = head.get();
+                if (t - h >= capacity()) {
+                    return false;
+                }
+            } while (!tail.compareAndSet(t, t + 1));
+
+            buffer.lazySet(index(t), e);
+            watermarks.grown(t + 1 - h);
+            consumerWait.signal();
+
+            return true;
+        }
+
+        @Override
+        public int offerAll(E[] es) {
+            long t;
+            long h;
+            int n;
+            do {
+                t = tail.get();
+                h = head.get();
+                n = (int) Math.min(es.length, capacity() - (t - h));
+                if (n <= 0) {
+                    return 0;
+                }
+            } while (!tail.compareAndSet(t, t + n));
+
+            for (int i = 0; i < n; ++i) {
+                assert es[i] != null;
+                buffer.lazySet(index(t + i), es[i]);
+            }
+            watermarks.grown(t + n - h);
+            consumerWait.signal();
+
+            return n;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2018 Vladimir Lysyy (mrbald@github)
+ * ALv2 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+package net.bobah.ufwj.queue;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+abstract class SequenceLhsPadding {
+    protected long p1, p2, p3, p4, p5, p6, p7;
+}
+
+abstract class SequenceValue extends SequenceLhsPadding {
+    protected volatile long value;
+}
+
+/**
+ * A cache line padded sequence counter.
+ * <p>
+ * Keeps producer and consumer positions of the lock-free structures on separate cache lines.
+ * </p>
+ *
+ * @author Vladimir Lysyy (mrbald@github)
+ */
+final class Sequence extends SequenceValue {
+    private static final AtomicLongFieldUpdater<SequenceValue> VALUE
+            = AtomicLongFieldUpdater.newUpdater(SequenceValue.class, "value");
+
+    protected long p9, p10, p11, p12, p13, p14, p15;
+
+    Sequence() {
+        this(0L);
+    }
+
+    Sequence(long initial) {
+        this.value = initial;
+    }
+
+    long get() {
+        return value;
+    }
+
+    void set(long value) {
+        this.value = value;
+    }
+
+    /**
+     * Ordered store, cheaper than {@link #set(long)}, but does not prevent subsequent loads from being reordered
+     * ahead of it.
+     */
+    void lazySet(long value) {
+        VALUE.lazySet(this, value);
+    }
+
+    boolean compareAndSet(long expected, long value) {
+        return VALUE.compareAndSet(this, expected, value);
+    }
+
+    long getAndAdd(long delta) {
+        return VALUE.getAndAdd(this, delta);
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright (c) 2018 Vladimir Lysyy (mrbald@github)
+ * ALv2 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+package net.bobah.ufwj.queue;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Binary form of the elements of a {@link JournalQueue}.
+ *
+ * @param <E> element type
+ *
+ * @author Vladimir Lysyy (mrbald@github)
+ */
+public interface Serializer<E> {
+    /**
+     * Writes the element at the buffer position, advancing it.
+     *
+     * @throws BufferOverflowException if the element does not fit before the buffer limit
+     */
+    void write(E e, ByteBuffer buffer);
+
+    /**
+     * Reads the element written by {@link #write(Object, ByteBuffer)}, the buffer is positioned
+     * at its first byte and limited by its last.
+     */
+    E read(ByteBuffer buffer);
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2018 Vladimir Lysyy (mrbald@github)
+ * ALv2 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+package net.bobah.ufwj.queue;
+
+import net.bobah.ufwj.hash.Hashing;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * Multi-source {@link WatermarkTracker} sharded by the source key over several queues, one consumer thread
+ * per shard.
+ * <p>
+ * A source always maps to the same shard, so its payloads keep their order and its watermarks work as in a single
+ * tracker. The consumer of shard {@code i} polls {@link #shard(int)} or runs {@link #consumer(int, Consumer, int)}
+ * on a thread of its own, pinning the thread to a core is up to the thread factory. The suspension checks, the
+ * watermark updates and the metrics cover all shards.
+ * </p>
+ *
+ * @param <E> payload type
+ * @param <S> logical source key type
+ *
+ * @author Vladimir Lysyy (mrbald@github)
+ */
+public final class ShardedWatermarkTracker<E, S> {
+    private final Function<E, S> classifier;
+    private final WatermarkTracker<E, S>[] shards;
+
+    private volatile WatermarkMetrics metrics = null;
+
+    public static <E, S> ShardedWatermarkTracker<E, S> newSharded(
+            int shards, Supplier<? extends BlockingQueue<E>> queueFactory,
+            long lowerWatermark, long upperWatermark,
+            Function<E, S> classifier,
+            Consumer<S> onLowerWatermarkCrossed, Consumer<S> onUpperWatermarkCrossed) {
+        return newSharded(shards, queueFactory, lowerWatermark, upperWatermark, classifier, e -> 1L, null,
+                onLowerWatermarkCrossed, onUpperWatermarkCrossed);
+    }
+
+    /**
+     * Weighted version of
+     * {@link #newSharded(int, Supplier, long, long, Function, Consumer, Consumer)},
+     * see {@link WatermarkTracker#newMulti(BlockingQueue, long, long, Function, ToLongFunction, WatermarkBudget,
+     * Consumer, Consumer)}.
+     */
+    public static <E, S> ShardedWatermarkTracker<E, S> newSharded(
+            int shards, Supplier<? extends BlockingQueue<E>> queueFactory,
+            long lowerWatermark, long upperWatermark,
+            Function<E, S> classifier,
+            ToLongFunction<? super E> weigher, WatermarkBudget budget,
+            Consumer<S> onLowerWatermarkCrossed, Consumer<S> onUpperWatermarkCrossed) {
+        assert shards > 0;
+
+        final WatermarkTracker<E, S>[] trackers = newTrackers(shards);
+        for (int i = 0; i < shards; ++i) {
+            trackers[i] = WatermarkTracker.newMulti(queueFactory.get(), lowerWatermark, upperWatermark,
+                    classifier, weigher, budget, onLowerWatermarkCrossed, onUpperWatermarkCrossed);
+        }
+        return new ShardedWatermarkTracker<>(classifier, trackers);
+    }
+
+    private ShardedWatermarkTracker(Function<E, S> classifier, WatermarkTracker<E, S>[] shards) {
+        this.classifier = classifier;
+        this.shards = shards;
+    }
+
+    public int shards() {
+        return shards.length;
+    }
+
+    /**
+     * @return the tracker of the shard, to be consumed by a single thread
+     */
+    public WatermarkTracker<E, S> shard(int shard) {
+        return shards[shard];
+    }
+
+    /**
+     * @return the shard of the source
+     */
+    public int shardOf(S key) {
+        // the top bits of the product scaled to the number of shards, no division
+        return (int) (((Hashing.fibonacci(key.hashCode(), 0) & 0xffffffffL) * shards.length) >>> Integer.SIZE);
+    }
+
+    /**
+     * The classifier is called here to pick the shard and again by the shard tracker, it should be cheap.
+     */
+    public void add(E e) {
+        shards[shardOf(classifier.apply(e))].add(e);
+    }
+
+    /**
+     * Batch version of {@link #add(Object)}, groups the payloads by the shard keeping their order and adds each
+     * group with one {@link WatermarkTracker#addAll(Collection)}, which updates the counters once per run
+     * of consecutive payloads from the same source.
+     *
+     * @throws IllegalStateException if a shard queue is full, the groups of the shards before it and the payloads
+     * of the group added before are accounted for
+     */
+    public void addAll(Collection<? extends E> es) {
+        if (shards.length == 1) {
+            shards[0].addAll(es);
+            return;
+        }
+
+        final List<List<E>> groups = new ArrayList<>(shards.length);
+        for (int i = 0; i < shards.length; ++i) {
+            groups.add(null);
+        }
+        for (E e : es) {
+            final int shard = shardOf(classifier.apply(e));
+            List<E> group = groups.get(shard);
+            if (group == null) {
+                groups.set(shard, group = new ArrayList<>());
+            }
+            group.add(e);
+        }
+
+        for (int i = 0; i < shards.length; ++i) {
+            final List<E> group = groups.get(i);
+            if (group != null) {
+                shards[i].addAll(group);
+            }
+        }
+    }
+
+    public boolean isSuspended(S key) {
+        return shards[shardOf(key)].isSuspended(key);
+    }
+
+    /**
+     * @return true if any source of any shard is suspended
+     */
+    public boolean isAnySuspended() {
+        for (WatermarkTracker<E, S> shard : shards) {
+            if (shard.isAnySuspended()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return total depth of the shard queues
+     */
+    public int size() {
+        int size = 0;
+        for (WatermarkTracker<E, S> shard : shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    public boolean retire(S key) {
+        return shards[shardOf(key)].retire(key);
+    }
+
+    /**
+     * Moves the watermarks of all sources of all shards, see {@link WatermarkTracker#setWatermarks(long, long)}.
+     */
+    public void setWatermarks(long lowerWatermark, long upperWatermark) {
+        for (WatermarkTracker<E, S> shard : shards) {
+            shard.setWatermarks(lowerWatermark, upperWatermark);
+        }
+    }
+
+    /**
+     * Turns the metrics on for all shards, reported together, the counters are striped and the shards do not
+     * contend on them.
+     *
+     * @return the metrics, the same instance on the repeated calls
+     */
+    public synchronized WatermarkMetrics enableMetrics(int sampleInterval) {
+        if (metrics == null) {
+            final WatermarkMetrics m = new WatermarkMetrics(sampleInterval, this::size, this::sourceDepths);
+            for (WatermarkTracker<E, S> shard : shards) {
+                shard.useMetrics(m);
+            }
+            metrics = m;
+        }
+        return metrics;
+    }
+
+    /**
+     * Consumer loop of a shard for a dedicated thread, runs until the thread is interrupted.
+     *
+     * @param batch maximum number of payloads passed to the sink per queue operation
+     */
+    public Runnable consumer(int shard, Consumer<? super E> sink, int batch) {
+        assert batch > 0;
+
+        final WatermarkTracker<E, S> tracker = shards[shard];
+        return () -> {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    final E e = tracker.poll(100, TimeUnit.MILLISECONDS);
+                    if (e != null) {
+                        sink.accept(e);
+                        if (batch > 1) {
+                            tracker.drainTo(sink, batch - 1);
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+    }
+
+    private Map<String, Long> sourceDepths() {
+        final Map<String, Long> depths = new LinkedHashMap<>();
+        for (WatermarkTracker<E, S> shard : shards) {
+            depths.putAll(shard.sourceDepths());
+        }
+        return depths;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <E, S> WatermarkTracker<E, S>[] newTrackers(int shards) {
+        return (WatermarkTracker<E, S>[]) new WatermarkTracker<?, ?>[shards];
+    }
+}
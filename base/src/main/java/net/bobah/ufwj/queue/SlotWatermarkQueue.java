@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) 2018 Vladimir Lysyy (mrbald@github)
+ * ALv2 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+package net.bobah.ufwj.queue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BiConsumer;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Version of {@link RingWatermarkQueue} with the events preallocated in the ring slots and reused, like in
+ * the LMAX Disruptor, so the steady state messaging allocates nothing.
+ * <p>
+ * A producer claims a slot with {@link #claim()}, fills the event it gets from {@link #get(long)} and publishes it
+ * with {@link #publish(long)}, or does all three with {@link #offer(BiConsumer, Object)}. The consumer reads the
+ * published events in the claim order with {@link #drainTo(Consumer, int)}, the slots are released to the producers
+ * when the sink returns, so the sink copies out what it needs and does not keep the event.
+ * </p>
+ * <p>
+ * The depth is the claim sequence minus the release sequence, the suspend/resume callbacks have the same semantics
+ * as in {@link WatermarkQueue}. Multiple producers, single consumer.
+ * </p>
+ *
+ * <pre>{@code
+ * final SlotWatermarkQueue<MutableMessage> queue = SlotWatermarkQueue.newMpsc(8192, 2000, 8000,
+ *         MutableMessage::new, reader::suspend, reader::resume);
+ * queue.offer(MutableMessage::copyFrom, bytes);
+ * queue.drainTo(handler::onMessage, 256);
+ * }</pre>
+ *
+ * @param <E> mutable event type
+ *
+ * @author Vladimir Lysyy (mrbald@github)
+ */
+public final class SlotWatermarkQueue<E> {
+    private final Object[] slots;
+    private final int mask;
+
+    /**
+     * Sequence last published in the slot, -1 if none.
+     */
+    private final AtomicLongArray published;
+
+    private final Sequence head = new Sequence();
+    private final Sequence tail = new Sequence();
+
+    private final WatermarkState watermarks;
+
+    private final WaitStrategy consumerWait;
+    private final WaitStrategy producerWait;
+    private final BooleanSupplier nonEmpty = () -> !isEmpty();
+    private final BooleanSupplier producerRunning = () -> !isProducerSuspended();
+
+    public static <E> SlotWatermarkQueue<E> newMpsc(int requiredCap, int lowerWatermark, int upperWatermark,
+                                                    Supplier<? extends E> factory,
+                                                    Runnable onSuspend, Runnable onResume) {
+        return newMpsc(requiredCap, lowerWatermark, upperWatermark, factory, onSuspend, onResume,
+                WaitStrategies.spinThenPark(), WaitStrategies.spinThenPark());
+    }
+
+    /**
+     * @param factory creates the events, called {@link #capacity()} times by the constructor
+     * @param consumerWait how {@link #awaitNonEmpty(long, TimeUnit)} waits for an event
+     * @param producerWait how {@link #awaitResume(long, TimeUnit)} waits for the producers to be resumed
+     */
+    public static <E> SlotWatermarkQueue<E> newMpsc(int requiredCap, int lowerWatermark, int upperWatermark,
+                                                    Supplier<? extends E> factory,
+                                                    Runnable onSuspend, Runnable onResume,
+                                                    WaitStrategy consumerWait, WaitStrategy producerWait) {
+        return new SlotWatermarkQueue<>(requiredCap, lowerWatermark, upperWatermark, factory, onSuspend, onResume,
+                consumerWait, producerWait);
+    }
+
+    private SlotWatermarkQueue(int requiredCap, int lowerWatermark, int upperWatermark,
+                               Supplier<? extends E> factory,
+                               Runnable onSuspend, Runnable onResume,
+                               WaitStrategy consumerWait, WaitStrategy producerWait) {
+        assert requiredCap > 1;
+
+        final int cap = 1 << (Integer.SIZE - Integer.numberOfLeadingZeros(requiredCap - 1));
+        assert upperWatermark <= cap;
+
+        this.slots = new Object[cap];
+        this.published = new AtomicLongArray(cap);
+        for (int i = 0; i < cap; ++i) {
+            slots[i] = factory.get();
+            published.set(i, -1L);
+        }
+        this.mask = cap - 1;
+        this.consumerWait = consumerWait;
+        this.producerWait = producerWait;
+        this.watermarks = new WatermarkState(lowerWatermark, upperWatermark) {
+            @Override
+            long depth() {
+                return tail.get() - head.get();
+            }
+
+            @Override
+            void onSuspend() {
+                onSuspend.run();
+            }
+
+            @Override
+            void onResume() {
+                onResume.run();
+                producerWait.signal();
+            }
+        };
+    }
+
+    public int capacity() {
+        return slots.length;
+    }
+
+    /**
+     * @return number of claimed and not yet released slots
+     */
+    public int size() {
+        return (int) Math.min(Math.max(tail.get() - head.get(), 0L), capacity());
+    }
+
+    public boolean isEmpty() {
+        return head.get() >= tail.get();
+    }
+
+    /**
+     * Claims the next slot for a producer, which then must publish it.
+     *
+     * @return sequence of the slot or -1 if the ring is full
+     */
+    public long claim() {
+        long t;
+        long h;
+        do {
+            t = tail.get();
+            h = head.get();
+            if (t - h >= capacity()) {
+                return -1L;
+            }
+        } while (!tail.compareAndSet(t, t + 1));
+
+        watermarks.grown(t + 1 - h);
+        return t;
+    }
+
+    /**
+     * @return the event in the slot, to be filled by the producer between {@link #claim()} and
+     * {@link #publish(long)}
+     */
+    @SuppressWarnings("unchecked")
+    public E get(long sequence) {
+        return (E) slots[index(sequence)];
+    }
+
+    /**
+     * Makes the event in the claimed slot visible to the consumer.
+     */
+    public void publish(long sequence) {
+        published.lazySet(index(sequence), sequence);
+        consumerWait.signal();
+    }
+
+    /**
+     * Claims a slot, fills the event with the translator and publishes it. A non-capturing translator with the
+     * data passed as the argument does not allocate.
+     *
+     * @return false if the ring is full
+     */
+    public <A> boolean offer(BiConsumer<? super E, ? super A> translator, A arg) {
+        final long sequence = claim();
+        if (sequence < 0L) {
+            return false;
+        }
+
+        try {
+            translator.accept(get(sequence), arg);
+        } finally {
+            publish(sequence);
+        }
+        return true;
+    }
+
+    /**
+     * Passes the published events to the sink in the claim order, stops at the first claimed but not yet published
+     * one, releases the slots and evaluates the watermarks once per batch. Single consumer only.
+     *
+     * @return number of events passed to the sink
+     */
+    public int drainTo(Consumer<? super E> sink, int max) {
+        final long h = head.get();
+        final long available = Math.min(tail.get() - h, max);
+
+        int n = 0;
+        for (; n < available; ++n) {
+            final int idx = index(h + n);
+            if (published.get(idx) != h + n) {
+                break;
+            }
+            sink.accept(get(h + n));
+        }
+
+        if (n != 0) {
+            released(h + n);
+        }
+
+        return n;
+    }
+
+    /**
+     * Blocks the consumer until there is a claimed slot, which may still be being filled.
+     *
+     * @return true if the queue is non-empty, false on timeout
+     */
+    public boolean awaitNonEmpty(long timeout, TimeUnit unit) throws InterruptedException {
+        return consumerWait.await(nonEmpty, unit.toNanos(timeout));
+    }
+
+    /**
+     * Blocks the suspended producer until resumed.
+     *
+     * @return true if the producer is not suspended, false on timeout
+     */
+    public boolean awaitResume(long timeout, TimeUnit unit) throws InterruptedException {
+        return producerWait.await(producerRunning, unit.toNanos(timeout));
+    }
+
+    public boolean isProducerSuspended() {
+        return watermarks.isSuspended();
+    }
+
+    /**
+     * Moves the watermarks, for a single adjusting thread, see {@link AdaptiveWatermarks}.
+     */
+    public void setWatermarks(long lowerWatermark, long upperWatermark) {
+        assert upperWatermark <= capacity();
+        watermarks.setWatermarks(lowerWatermark, upperWatermark);
+    }
+
+    private int index(long sequence) {
+        return (int) sequence & mask;
+    }
+
+    private void released(long newHead) {
+        final long depth = tail.get() - newHead;
+        if (depth <= watermarks.lowerWatermark) {
+            head.set(newHead);
+            watermarks.shrunk(depth);
+        } else {
+            head.lazySet(newHead);
+        }
+    }
+}
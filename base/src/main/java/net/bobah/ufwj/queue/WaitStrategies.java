@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2018 Vladimir Lysyy (mrbald@github)
+ * ALv2 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+package net.bobah.ufwj.queue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+/**
+ * {@link WaitStrategy} implementations, from the lowest latency to the lowest CPU usage.
+ *
+ * @author Vladimir Lysyy (mrbald@github)
+ */
+public final class WaitStrategies {
+    private static final int DEFAULT_SPINS = 100;
+    private static final int DEFAULT_YIELDS = 10;
+    private static final long DEFAULT_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private WaitStrategies() {
+    }
+
+    /**
+     * Burns the CPU until the condition holds, for the dedicated (pinned) cores.
+     */
+    public static WaitStrategy busySpin() {
+        return new SpinThenPark(Integer.MAX_VALUE, 0, 0L);
+    }
+
+    /**
+     * Spins, then yields the CPU to other runnable threads.
+     */
+    public static WaitStrategy spinThenYield(int spins) {
+        return new SpinThenPark(spins, Integer.MAX_VALUE, 0L);
+    }
+
+    /**
+     * Spins, yields, then parks for {@code parkNanos} at a time, does not need a signal.
+     */
+    public static WaitStrategy spinThenPark(int spins, int yields, long parkNanos) {
+        assert parkNanos > 0L;
+        return new SpinThenPark(spins, yields, parkNanos);
+    }
+
+    public static WaitStrategy spinThenPark() {
+        return spinThenPark(DEFAULT_SPINS, DEFAULT_YIELDS, DEFAULT_PARK_NANOS);
+    }
+
+    /**
+     * Blocks on a lock condition until signalled, for the mostly idle queues. Signalling costs an atomic
+     * exchange and only takes the lock if there is a waiter.
+     */
+    public static WaitStrategy blocking() {
+        return new Blocking();
+    }
+
+    private static final class SpinThenPark implements WaitStrategy {
+        private final int spins;
+        private final int yields;
+        private final long parkNanos;
+
+        SpinThenPark(int spins, int yields, long parkNanos) {
+            this.spins = spins;
+            this.yields = yields;
+            this.parkNanos = parkNanos;
+        }
+
+        @Override
+        public boolean await(BooleanSupplier condition, long timeoutNanos) throws InterruptedException {
+            final long deadline = System.nanoTime() + timeoutNanos;
+
+            for (int counter = 0; !condition.getAsBoolean(); ) {
+                if (counter < spins) {
+                    if ((++counter & 0xff) != 0) {
+                        continue;
+                    }
+                } else if (counter - spins < yields) {
+                    if (counter != Integer.MAX_VALUE) {
+                        ++counter;
+                    }
+                    Thread.yield();
+                } else if (parkNanos != 0L) {
+                    LockSupport.parkNanos(this, parkNanos);
+                }
+
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                if (deadline - System.nanoTime() <= 0L) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        @Override
+        public void signal() {
+        }
+    }
+
+    private static final class Blocking implements WaitStrategy {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition signalled = lock.newCondition();
+        private final AtomicBoolean signalNeeded = new AtomicBoolean(false);
+
+        @Override
+        public boolean await(BooleanSupplier condition, long timeoutNanos) throws InterruptedException {
+            if (condition.getAsBoolean()) {
+                return true;
+            }
+
+            long remaining = timeoutNanos;
+            lock.lockInterruptibly();
+            try {
+                for (;;) {
+                    signalNeeded.set(true);
+                    if (condition.getAsBoolean()) {
+                        return true;
+                    }
+                    if (remaining <= 0L) {
+                        return false;
+                    }
+                    remaining = signalled.awaitNanos(remaining);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void signal() {
+            if (signalNeeded.getAndSet(false)) {
+                lock.lock();
+                try {
+                    signalled.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+}
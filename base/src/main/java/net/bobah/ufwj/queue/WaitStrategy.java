@@ -0,0 +1,32 @@
+/*
+ * Copyright (c) 2018 Vladimir Lysyy (mrbald@github)
+ * ALv2 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+package net.bobah.ufwj.queue;
+
+import java.util.function.BooleanSupplier;
+
+/**
+ * How a consumer waits for the queue to become non-empty or a suspended producer waits to be resumed.
+ * <p>
+ * Instances keep no per-wait state and can be shared between the waiting and the signalling threads of
+ * a single queue side. See {@link WaitStrategies} for the implementations.
+ * </p>
+ *
+ * @author Vladimir Lysyy (mrbald@github)
+ */
+public interface WaitStrategy {
+    /**
+     * Waits until the condition holds or the timeout expires.
+     *
+     * @param condition checked by the waiting thread, should be allocation-free and must not block
+     * @return true if the condition holds, false on timeout
+     */
+    boolean await(BooleanSupplier condition, long timeoutNanos) throws InterruptedException;
+
+    /**
+     * Wakes up the waiters, called after the condition has been made true.
+     */
+    void signal();
+}
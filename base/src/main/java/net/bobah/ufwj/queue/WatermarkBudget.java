@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2018 Vladimir Lysyy (mrbald@github)
+ * ALv2 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+package net.bobah.ufwj.queue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Global weight budget shared by several {@link WatermarkQueue}s and {@link WatermarkTracker}s, like a limit
+ * on the bytes buffered by a process.
+ * <p>
+ * The participants add the weights of their elements to the budget on top of their own watermarks, once the
+ * total crosses the upper watermark all of them report the producers as suspended until it falls to the lower one.
+ * </p>
+ *
+ * @author Vladimir Lysyy (mrbald@github)
+ */
+public final class WatermarkBudget {
+    private static final AtomicLongFieldUpdater<WatermarkBudget> USED
+            = AtomicLongFieldUpdater.newUpdater(WatermarkBudget.class, "used");
+
+    private final Runnable onExhausted;
+    private final Runnable onReplenished;
+    private final List<Runnable> resumeListeners = new CopyOnWriteArrayList<>();
+
+    private final WatermarkState state;
+
+    private volatile long used = 0;
+
+    /**
+     * @param onExhausted called when the total weight reaches the upper watermark
+     * @param onReplenished called when the total weight falls to the lower watermark
+     */
+    public WatermarkBudget(long lowerWatermark, long upperWatermark, Runnable onExhausted, Runnable onReplenished) {
+        this.onExhausted = onExhausted;
+        this.onReplenished = onReplenished;
+        this.state = new WatermarkState(lowerWatermark, upperWatermark) {
+            @Override
+            long depth() {
+                return used;
+            }
+
+            @Override
+            void onSuspend() {
+                WatermarkBudget.this.onExhausted.run();
+            }
+
+            @Override
+            void onResume() {
+                try {
+                    WatermarkBudget.this.onReplenished.run();
+                } finally {
+                    for (Runnable listener : resumeListeners) {
+                        listener.run();
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * @return total weight of the elements buffered by the participants
+     */
+    public long used() {
+        return used;
+    }
+
+    public boolean isExhausted() {
+        return state.isSuspended();
+    }
+
+    void acquire(long weight) {
+        if (weight != 0L) {
+            state.grown(USED.addAndGet(this, weight));
+        }
+    }
+
+    void release(long weight) {
+        if (weight != 0L) {
+            state.shrunk(USED.addAndGet(this, -weight));
+        }
+    }
+
+    /**
+     * Registers a participant callback to wake up its producers when the budget is replenished.
+     */
+    void addResumeListener(Runnable listener) {
+        resumeListeners.add(listener);
+    }
+
+    /**
+     * Removes a callback registered by {@link #addResumeListener(Runnable)}, by identity.
+     */
+    void removeResumeListener(Runnable listener) {
+        resumeListeners.removeIf(l -> l == listener);
+    }
+}
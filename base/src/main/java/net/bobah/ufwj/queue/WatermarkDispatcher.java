@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) 2018 Vladimir Lysyy (mrbald@github)
+ * ALv2 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+package net.bobah.ufwj.queue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+/**
+ * Moves the watermark callbacks off the producer and consumer threads to an {@link Executor}.
+ * <p>
+ * A channel per source stands in for the callbacks of {@link WatermarkQueue}, {@link WatermarkTracker},
+ * {@link FairWatermarkTracker} or {@link WatermarkBudget}. A crossing publishes the new state of the source
+ * with a volatile write and submits the channel to the executor unless it is already submitted. The channel
+ * runs on one executor thread at a time and delivers the latest state only if it differs from the last
+ * delivered, so the crossings which cancel out before the delivery are dropped and the per-source order is kept.
+ * </p>
+ *
+ * <pre>{@code
+ * final WatermarkDispatcher dispatcher = new WatermarkDispatcher(Executors.newSingleThreadExecutor());
+ * final WatermarkDispatcher.Channel channel = dispatcher.channel(reader::resume, reader::suspend);
+ * final WatermarkQueue<Message> queue = new WatermarkQueue<>(1000, 5000, 100L,
+ *         channel::upperCrossed, channel::lowerCrossed);
+ * }</pre>
+ *
+ * @author Vladimir Lysyy (mrbald@github)
+ */
+public final class WatermarkDispatcher {
+    private static final int RUNNING = 0;
+    private static final int SUSPENDED = 1;
+
+    private static final AtomicIntegerFieldUpdater<Channel> SCHEDULED
+            = AtomicIntegerFieldUpdater.newUpdater(Channel.class, "scheduled");
+
+    private final Executor executor;
+
+    public WatermarkDispatcher(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Coalescing dispatch of the crossings of a single source.
+     */
+    public final class Channel implements Runnable {
+        private final Runnable onLowerWatermarkCrossed;
+        private final Runnable onUpperWatermarkCrossed;
+
+        private volatile int latest = RUNNING;
+
+        /**
+         * Set while the channel is submitted to or running on the executor.
+         */
+        volatile int scheduled = 0;
+
+        /**
+         * Written by the executor thread running the channel only, before the flag is cleared.
+         */
+        private int delivered = RUNNING;
+
+        Channel(Runnable onLowerWatermarkCrossed, Runnable onUpperWatermarkCrossed) {
+            this.onLowerWatermarkCrossed = onLowerWatermarkCrossed;
+            this.onUpperWatermarkCrossed = onUpperWatermarkCrossed;
+        }
+
+        /**
+         * To be passed as the resume callback.
+         *
+         * @throws RejectedExecutionException from the executor, the state is published and is delivered after
+         * the next crossing the executor accepts
+         */
+        public void lowerCrossed() {
+            publish(RUNNING);
+        }
+
+        /**
+         * To be passed as the suspend callback.
+         *
+         * @throws RejectedExecutionException from the executor, see {@link #lowerCrossed()}
+         */
+        public void upperCrossed() {
+            publish(SUSPENDED);
+        }
+
+        /**
+         * @return the latest published state, may not have been delivered yet
+         */
+        public boolean isSuspended() {
+            return latest == SUSPENDED;
+        }
+
+        /**
+         * For the owner of the channel while no crossing is published, the state delivered before the flag was
+         * cleared is visible once the flag is seen cleared.
+         *
+         * @return true if the channel is not scheduled and has delivered the latest state
+         */
+        private boolean isIdle() {
+            return scheduled == 0 && latest == delivered;
+        }
+
+        private void publish(int state) {
+            latest = state;
+            if (scheduled == 0 && SCHEDULED.compareAndSet(this, 0, 1)) {
+                try {
+                    executor.execute(this);
+                } catch (RuntimeException | Error e) {
+                    // not submitted, the next crossing submits the channel again
+                    scheduled = 0;
+                    throw e;
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (;;) {
+                    final int state = latest;
+                    if (state != delivered) {
+                        delivered = state;
+                        (state == SUSPENDED ? onUpperWatermarkCrossed : onLowerWatermarkCrossed).run();
+                    }
+
+                    // a state published after the flag is cleared is either seen below or submits the channel again
+                    scheduled = 0;
+                    if (latest == delivered || !SCHEDULED.compareAndSet(this, 0, 1)) {
+                        return;
+                    }
+                }
+            } catch (RuntimeException | Error e) {
+                scheduled = 0;
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Channels of the sources identified by the keys, created on the first crossing.
+     * <p>
+     * The crossings and the retirements take a lock, so that a source is only forgotten once its channel is idle
+     * and a later crossing of the key does not create a channel running next to the old one.
+     * </p>
+     */
+    public final class KeyedChannels<S> {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Map<S, Channel> channels = new HashMap<>();
+        private final Consumer<S> onLowerWatermarkCrossed;
+        private final Consumer<S> onUpperWatermarkCrossed;
+
+        KeyedChannels(Consumer<S> onLowerWatermarkCrossed, Consumer<S> onUpperWatermarkCrossed) {
+            this.onLowerWatermarkCrossed = onLowerWatermarkCrossed;
+            this.onUpperWatermarkCrossed = onUpperWatermarkCrossed;
+        }
+
+        public void lowerCrossed(S key) {
+            lock.lock();
+            try {
+                channel(key).lowerCrossed();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public void upperCrossed(S key) {
+            lock.lock();
+            try {
+                channel(key).upperCrossed();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Forgets the channel of a retired source once it has delivered the latest crossing.
+         *
+         * @return false if the channel is scheduled or has a crossing not delivered yet and has not been forgotten
+         */
+        public boolean retire(S key) {
+            lock.lock();
+            try {
+                final Channel channel = channels.get(key);
+                if (channel != null && !channel.isIdle()) {
+                    return false;
+                }
+                channels.remove(key);
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Called under the lock.
+         */
+        private Channel channel(S key) {
+            return channels.computeIfAbsent(key, k -> new Channel(
+                    () -> onLowerWatermarkCrossed.accept(k), () -> onUpperWatermarkCrossed.accept(k)));
+        }
+    }
+
+    /**
+     * Channels of the sources identified by dense int ids, created on the first crossing.
+     */
+    public final class IndexedChannels {
+        private final AtomicReferenceArray<Channel> channels;
+        private final IntConsumer onLowerWatermarkCrossed;
+        private final IntConsumer onUpperWatermarkCrossed;
+
+        IndexedChannels(int maxSources, IntConsumer onLowerWatermarkCrossed, IntConsumer onUpperWatermarkCrossed) {
+            this.channels = new AtomicReferenceArray<>(maxSources);
+            this.onLowerWatermarkCrossed = onLowerWatermarkCrossed;
+            this.onUpperWatermarkCrossed = onUpperWatermarkCrossed;
+        }
+
+        public void lowerCrossed(int source) {
+            channel(source).lowerCrossed();
+        }
+
+        public void upperCrossed(int source) {
+            channel(source).upperCrossed();
+        }
+
+        private Channel channel(int source) {
+            for (;;) {
+                final Channel channel = channels.get(source);
+                if (channel != null) {
+                    return channel;
+                }
+                final Channel created = new Channel(
+                        () -> onLowerWatermarkCrossed.accept(source), () -> onUpperWatermarkCrossed.accept(source));
+                if (channels.compareAndSet(source, null, created)) {
+                    return created;
+                }
+            }
+        }
+    }
+
+    public Channel channel(Runnable onLowerWatermarkCrossed, Runnable onUpperWatermarkCrossed) {
+        return new Channel(onLowerWatermarkCrossed, onUpperWatermarkCrossed);
+    }
+
+    public <S> KeyedChannels<S> keyed(Consumer<S> onLowerWatermarkCrossed, Consumer<S> onUpperWatermarkCrossed) {
+        return new KeyedChannels<>(onLowerWatermarkCrossed, onUpperWatermarkCrossed);
+    }
+
+    public IndexedChannels indexed(int maxSources,
+                                   IntConsumer onLowerWatermarkCrossed, IntConsumer onUpperWatermarkCrossed) {
+        assert maxSources > 0;
+        return new IndexedChannels(maxSources, onLowerWatermarkCrossed, onUpperWatermarkCrossed);
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright (c) 2018 Vladimir Lysyy (mrbald@github)
+ * ALv2 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+package net.bobah.ufwj.queue;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Counters of a {@link WatermarkQueue} or a {@link WatermarkTracker}, created by their {@code enableMetrics}.
+ * <p>
+ * The rates are striped {@link LongAdder}s, the producers and the consumers do not contend on them. The depths are
+ * read from the instance on demand. Sojourn time is measured on a sample of the elements, one in
+ * {@code sampleInterval} on average, at most one in flight: the producer stamps the element so that the stamp is
+ * visible to the consumer taking it and withdraws the stamp if the element is not enqueued, the consumer recognizes
+ * it by identity and records the time into a preallocated {@link Log2Histogram}.
+ * </p>
+ * <p>
+ * Read through {@link #snapshot()} or JMX after {@link #register(String)}.
+ * </p>
+ *
+ * @author Vladimir Lysyy (mrbald@github)
+ */
+public final class WatermarkMetrics implements WatermarkMetricsMXBean {
+    private static final AtomicReferenceFieldUpdater<WatermarkMetrics, Object> SAMPLE
+            = AtomicReferenceFieldUpdater.newUpdater(WatermarkMetrics.class, Object.class, "sample");
+
+    private final int sampleMask;
+    private final LongSupplier depth;
+    private final Supplier<Map<String, Long>> sourceDepths;
+
+    private final LongAdder enqueued = new LongAdder();
+    private final LongAdder dequeued = new LongAdder();
+    private final LongAdder dequeuedWeight = new LongAdder();
+    private final LongAdder crossings = new LongAdder();
+
+    /**
+     * Total length of the closed suspensions and the start of the open ones by the source, guarded by the instance,
+     * the crossings are rare.
+     */
+    private long suspendedNanos = 0L;
+    private final Map<Object, Long> suspendedSince = new IdentityHashMap<>();
+
+    private final Log2Histogram sojourn = new Log2Histogram();
+
+    private volatile Object sample = null;
+    private volatile long sampleStamp = 0L;
+    private volatile long lastSojournNanos = 0L;
+
+    private volatile ObjectName objectName = null;
+
+    /**
+     * @param sampleInterval average number of elements per sojourn time sample, rounded up to a power of two
+     */
+    WatermarkMetrics(int sampleInterval, LongSupplier depth, Supplier<Map<String, Long>> sourceDepths) {
+        assert sampleInterval > 0;
+
+        this.sampleMask = sampleInterval == 1
+                ? 0 : (1 << (Integer.SIZE - Integer.numberOfLeadingZeros(sampleInterval - 1))) - 1;
+        this.depth = depth;
+        this.sourceDepths = sourceDepths;
+    }
+
+    /**
+     * Immutable copy of the counters.
+     */
+    public static final class Snapshot {
+        private final long enqueued;
+        private final long dequeued;
+        private final long depth;
+        private final Map<String, Long> sourceDepths;
+        private final long crossings;
+        private final long suspendedNanos;
+        private final long sojournSamples;
+        private final long sojournP50Nanos;
+        private final long sojournP99Nanos;
+        private final long sojournP999Nanos;
+        private final long sojournMaxNanos;
+
+        Snapshot(WatermarkMetrics metrics) {
+            this.enqueued = metrics.getEnqueued();
+            this.dequeued = metrics.getDequeued();
+            this.depth = metrics.getDepth();
+            this.sourceDepths = metrics.getSourceDepths();
+            this.crossings = metrics.getCrossings();
+            this.suspendedNanos = metrics.getSuspendedNanos();
+            this.sojournSamples = metrics.getSojournSamples();
+            this.sojournP50Nanos = metrics.getSojournP50Nanos();
+            this.sojournP99Nanos = metrics.getSojournP99Nanos();
+            this.sojournP999Nanos = metrics.getSojournP999Nanos();
+            this.sojournMaxNanos = metrics.getSojournMaxNanos();
+        }
+
+        public long getEnqueued() {
+            return enqueued;
+        }
+
+        public long getDequeued() {
+            return dequeued;
+        }
+
+        public long getDepth() {
+            return depth;
+        }
+
+        public Map<String, Long> getSourceDepths() {
+            return sourceDepths;
+        }
+
+        public long getCrossings() {
+            return crossings;
+        }
+
+        public long getSuspendedNanos() {
+            return suspendedNanos;
+        }
+
+        public long getSojournSamples() {
+            return sojournSamples;
+        }
+
+        public long getSojournP50Nanos() {
+            return sojournP50Nanos;
+        }
+
+        public long getSojournP99Nanos() {
+            return sojournP99Nanos;
+        }
+
+        public long getSojournP999Nanos() {
+            return sojournP999Nanos;
+        }
+
+        public long getSojournMaxNanos() {
+            return sojournMaxNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "enqueued=" + enqueued + ", dequeued=" + dequeued + ", depth=" + depth
+                    + ", sourceDepths=" + sourceDepths + ", crossings=" + crossings
+                    + ", suspendedNanos=" + suspendedNanos + ", sojournSamples=" + sojournSamples
+                    + ", sojournP50Nanos=" + sojournP50Nanos + ", sojournP99Nanos=" + sojournP99Nanos
+                    + ", sojournP999Nanos=" + sojournP999Nanos + ", sojournMaxNanos=" + sojournMaxNanos;
+        }
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /**
+     * Registers with the platform MBean server as {@code net.bobah.ufwj:type=WatermarkMetrics,name=<name>}.
+     */
+    public synchronized void register(String name) throws JMException {
+        assert objectName == null;
+
+        final ObjectName on = new ObjectName("net.bobah.ufwj:type=WatermarkMetrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+        objectName = on;
+    }
+
+    public synchronized void unregister() throws JMException {
+        if (objectName != null) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            objectName = null;
+        }
+    }
+
+    @Override
+    public long getEnqueued() {
+        return enqueued.sum();
+    }
+
+    @Override
+    public long getDequeued() {
+        return dequeued.sum();
+    }
+
+    @Override
+    public long getDepth() {
+        return depth.getAsLong();
+    }
+
+    @Override
+    public Map<String, Long> getSourceDepths() {
+        return sourceDepths.get();
+    }
+
+    @Override
+    public long getCrossings() {
+        return crossings.sum();
+    }
+
+    @Override
+    public synchronized long getSuspendedNanos() {
+        final long now = System.nanoTime();
+        long nanos = suspendedNanos;
+        for (long since : suspendedSince.values()) {
+            nanos += now - since;
+        }
+        return nanos;
+    }
+
+    @Override
+    public long getSojournSamples() {
+        return sojourn.count();
+    }
+
+    @Override
+    public long getSojournP50Nanos() {
+        return sojourn.percentile(0.5);
+    }
+
+    @Override
+    public long getSojournP99Nanos() {
+        return sojourn.percentile(0.99);
+    }
+
+    @Override
+    public long getSojournP999Nanos() {
+        return sojourn.percentile(0.999);
+    }
+
+    @Override
+    public long getSojournMaxNanos() {
+        return sojourn.max();
+    }
+
+    /**
+     * @return total weight of the dequeued elements, the number of them if the instance is not weighted
+     */
+    long dequeuedWeight() {
+        return dequeuedWeight.sum();
+    }
+
+    /**
+     * @return sojourn time of the latest sample, 0 if none
+     */
+    long lastSojournNanos() {
+        return lastSojournNanos;
+    }
+
+    /**
+     * To be called by the producer before the element becomes visible to the consumer, followed by
+     * {@link #withdraw(Object)} if the element is not enqueued after all.
+     */
+    void stamp(Object e) {
+        if (sample == null && (ThreadLocalRandom.current().nextInt() & sampleMask) == 0
+                && SAMPLE.compareAndSet(this, null, e)) {
+            sampleStamp = System.nanoTime();
+        }
+    }
+
+    /**
+     * To be called by the consumer after the element is dequeued.
+     */
+    void unstamp(Object e) {
+        if (sample == e && e != null) {
+            final long nanos = Math.max(0L, System.nanoTime() - sampleStamp);
+            sojourn.record(nanos);
+            lastSojournNanos = nanos;
+            sample = null;
+        }
+    }
+
+    /**
+     * To be called by the producer if the element stamped has not been enqueued, does not record a sample.
+     */
+    void withdraw(Object e) {
+        if (sample == e && e != null) {
+            SAMPLE.compareAndSet(this, e, null);
+        }
+    }
+
+    void enqueued(long n) {
+        enqueued.add(n);
+    }
+
+    void dequeued(long n, long weight) {
+        dequeued.add(n);
+        dequeuedWeight.add(weight);
+    }
+
+    /**
+     * @param source the queue or the tracker of the source crossing the upper watermark
+     */
+    synchronized void suspended(Object source) {
+        crossings.increment();
+        suspendedSince.putIfAbsent(source, System.nanoTime());
+    }
+
+    synchronized void resumed(Object source) {
+        crossings.increment();
+        final Long since = suspendedSince.remove(source);
+        if (since != null) {
+            suspendedNanos += System.nanoTime() - since;
+        }
+    }
+}
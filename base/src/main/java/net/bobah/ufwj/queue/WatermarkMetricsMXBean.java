@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2018 Vladimir Lysyy (mrbald@github)
+ * ALv2 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+package net.bobah.ufwj.queue;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link WatermarkMetrics}.
+ *
+ * @author Vladimir Lysyy (mrbald@github)
+ */
+public interface WatermarkMetricsMXBean {
+    long getEnqueued();
+
+    long getDequeued();
+
+    long getDepth();
+
+    /**
+     * @return depth per source of a multi-source tracker, by the source key string, empty for a queue
+     */
+    Map<String, Long> getSourceDepths();
+
+    /**
+     * @return number of the upper and the lower watermark crossings, of all sources
+     */
+    long getCrossings();
+
+    /**
+     * @return total time the sources have spent suspended, approximate while a crossing is in progress
+     */
+    long getSuspendedNanos();
+
+    long getSojournSamples();
+
+    long getSojournP50Nanos();
+
+    long getSojournP99Nanos();
+
+    long getSojournP999Nanos();
+
+    long getSojournMaxNanos();
+}
@@ -6,86 +6,511 @@
 package net.bobah.ufwj.queue;
 
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
 
 public final class WatermarkQueue<E> extends AbstractQueue<E> {
+    private static final ToLongFunction<Object> COUNT = e -> 1L;
+
     private final Queue<E> queue;
 
-    private final int lowerWatermark;
-    private final int upperWatermark;
-    private final long maxWaitMs;
+    /**
+     * Not a monitor, a virtual thread blocked on a {@link ReentrantLock} unmounts from its carrier.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Guarded by the lock.
+     */
+    private long lowerWatermark;
+    private long upperWatermark;
+    private final long maxWaitNanos;
+
+    private final ToLongFunction<? super E> weigher;
+    private final WatermarkBudget budget;
+    private final Runnable budgetReplenished;
 
     private final Runnable onSuspend;
     private final Runnable onResume;
 
-    private boolean producerSuspended = false;
+    private final WaitStrategy consumerWait;
+    private final WaitStrategy producerWait;
+    private final BooleanSupplier nonEmpty = () -> this.size != 0;
+    private final BooleanSupplier producerRunning = () -> !isProducerSuspended();
+
+    private volatile int size = 0;
+    private volatile boolean producerSuspended = false;
+
+    /**
+     * Total weight of the elements, guarded by the lock.
+     */
+    private long weight = 0L;
+
+    private volatile WatermarkMetrics metrics = null;
 
     public WatermarkQueue(int lowerWatermark, int upperWatermark, long maxWaitMs,
                           Runnable onSuspend, Runnable onResume) {
-        this.queue = new ArrayDeque<>(lowerWatermark + upperWatermark);
-        this.lowerWatermark =lowerWatermark;
+        this(lowerWatermark, upperWatermark, maxWaitMs, onSuspend, onResume,
+                WaitStrategies.blocking(), WaitStrategies.blocking());
+    }
+
+    /**
+     * @param consumerWait how {@link #poll()} waits up to {@code maxWaitMs} for the queue to become non-empty
+     * @param producerWait how {@link #awaitResume(long, TimeUnit)} waits for the producer to be resumed
+     */
+    public WatermarkQueue(int lowerWatermark, int upperWatermark, long maxWaitMs,
+                          Runnable onSuspend, Runnable onResume,
+                          WaitStrategy consumerWait, WaitStrategy producerWait) {
+        this(new ArrayDeque<>(lowerWatermark + upperWatermark), lowerWatermark, upperWatermark, maxWaitMs,
+                onSuspend, onResume, consumerWait, producerWait);
+    }
+
+    /**
+     * @param queue backing queue, only accessed under the lock, may be non-empty, like a reopened
+     *              {@link JournalQueue}, in which case the upper watermark is checked right away
+     */
+    public WatermarkQueue(Queue<E> queue, int lowerWatermark, int upperWatermark, long maxWaitMs,
+                          Runnable onSuspend, Runnable onResume,
+                          WaitStrategy consumerWait, WaitStrategy producerWait) {
+        this(queue, lowerWatermark, upperWatermark, COUNT, null, maxWaitMs,
+                onSuspend, onResume, consumerWait, producerWait);
+    }
+
+    /**
+     * Watermarks on the total weight of the elements rather than their number, e.g. on their size in bytes.
+     *
+     * @param weigher weight of an element, must not change while the element is in the queue
+     * @param budget optional global budget shared with other queues and trackers, a producer is also suspended
+     *               while the budget is exhausted
+     */
+    public WatermarkQueue(Queue<E> queue, long lowerWatermark, long upperWatermark,
+                          ToLongFunction<? super E> weigher, WatermarkBudget budget, long maxWaitMs,
+                          Runnable onSuspend, Runnable onResume,
+                          WaitStrategy consumerWait, WaitStrategy producerWait) {
+        this.queue = queue;
+        this.lowerWatermark = lowerWatermark;
         this.upperWatermark = upperWatermark;
-        this.maxWaitMs = maxWaitMs;
+        this.weigher = weigher;
+        this.budget = budget;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMs);
         this.onSuspend = onSuspend;
         this.onResume = onResume;
+        this.consumerWait = consumerWait;
+        this.producerWait = producerWait;
+        this.budgetReplenished = producerWait::signal;
+
+        long initialWeight = 0L;
+        lock.lock();
+        try {
+            for (E e : queue) {
+                initialWeight += weigher.applyAsLong(e);
+            }
+            weight = initialWeight;
+            grown();
+        } finally {
+            lock.unlock();
+        }
+
+        if (budget != null) {
+            budget.addResumeListener(budgetReplenished);
+            budget.acquire(initialWeight);
+        }
     }
 
     @Override
-    public synchronized Iterator<E> iterator() {
-        return new ArrayList<>(queue).iterator();
+    public Iterator<E> iterator() {
+        lock.lock();
+        try {
+            return new ArrayList<>(queue).iterator();
+        } finally {
+            lock.unlock();
+        }
     }
 
     @Override
-    public synchronized int size() {
-        return queue.size();
+    public int size() {
+        return size;
     }
 
+    /**
+     * @return false if the backing queue refuses the element
+     */
     @Override
-    public synchronized boolean offer(E e) {
-        final int queueSizeWas = queue.size();
+    public boolean offer(E e) {
+        final long w = weigher.applyAsLong(e);
+        final WatermarkMetrics m = metrics;
 
-        queue.offer(e);
-        if (queueSizeWas == 0) {
-            notify();
+        final int queueSizeWas;
+        lock.lock();
+        try {
+            queueSizeWas = queue.size();
+            if (!queue.offer(e)) {
+                return false;
+            }
+            // under the lock, the consumer can not take the element before it is stamped
+            if (m != null) {
+                m.stamp(e);
+            }
+            weight += w;
+            grown();
+        } finally {
+            lock.unlock();
         }
 
-        if (!producerSuspended && queueSizeWas == upperWatermark - 1) {
-            producerSuspended = true;
-            onSuspend.run();
+        if (m != null) {
+            m.enqueued(1);
+        }
+        acquired(w);
+        if (queueSizeWas == 0) {
+            consumerWait.signal();
         }
 
         return true;
     }
 
-    @Override
-    public synchronized E poll() {
-        final int queueSizeWas = queue.size();
+    /**
+     * Batch version of {@link #offer(Object)}, takes the lock and evaluates the watermarks once per batch.
+     * <p>
+     * Only the elements accepted by the backing queue, a prefix of the batch, are accounted for.
+     * </p>
+     *
+     * @return number of elements offered
+     * @throws NullPointerException if the batch contains a null, nothing is offered then
+     */
+    public int offerAll(E[] es) {
+        for (E e : es) {
+            Objects.requireNonNull(e);
+        }
 
-        if (queueSizeWas == 0) {
-            try {
-                wait(maxWaitMs);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                return null;
+        final WatermarkMetrics m = metrics;
+        int n = 0;
+        long w = 0L;
+        boolean wasEmpty = false;
+        lock.lock();
+        try {
+            wasEmpty = queue.isEmpty();
+            for (; n < es.length; ++n) {
+                final E e = es[n];
+                final long we = weigher.applyAsLong(e);
+                if (!queue.offer(e)) {
+                    break;
+                }
+                w += we;
+                if (m != null) {
+                    m.stamp(e);
+                }
             }
+        } finally {
+            offered(m, n, w, wasEmpty);
         }
 
-        final E e = queue.poll();
-        if (e != null) {
-            if (producerSuspended && queueSizeWas == lowerWatermark + 1) {
-                producerSuspended = false;
-                onResume.run();
+        return n;
+    }
+
+    /**
+     * Batch version of {@link #offer(Object)}, takes the lock and evaluates the watermarks once per batch.
+     * <p>
+     * Only the elements accepted by the backing queue, a prefix of the batch, are accounted for.
+     * </p>
+     *
+     * @return number of elements offered
+     * @throws NullPointerException if the batch contains a null, nothing is offered then
+     */
+    public int offerAll(Collection<? extends E> es) {
+        for (E e : es) {
+            Objects.requireNonNull(e);
+        }
+
+        final WatermarkMetrics m = metrics;
+        int n = 0;
+        long w = 0L;
+        boolean wasEmpty = false;
+        lock.lock();
+        try {
+            wasEmpty = queue.isEmpty();
+            for (E e : es) {
+                final long we = weigher.applyAsLong(e);
+                if (!queue.offer(e)) {
+                    break;
+                }
+                ++n;
+                w += we;
+                if (m != null) {
+                    m.stamp(e);
+                }
             }
+        } finally {
+            offered(m, n, w, wasEmpty);
+        }
+
+        return n;
+    }
+
+    @Override
+    public E poll() {
+        E e = tryPoll();
+
+        if (e == null && awaitNonEmpty()) {
+            e = tryPoll();
         }
 
         return e;
     }
 
+    /**
+     * Batch version of {@link #poll()}, takes the lock and evaluates the watermarks once per batch.
+     * <p>
+     * The sink is called under the queue lock and should only hand the elements over.
+     * </p>
+     *
+     * @return number of elements passed to the sink
+     */
+    public int drainTo(Consumer<? super E> sink, int max) {
+        int n = tryDrainTo(sink, max);
+
+        if (n == 0 && awaitNonEmpty()) {
+            n = tryDrainTo(sink, max);
+        }
+
+        return n;
+    }
+
+    /**
+     * Blocks the consumer until the queue is non-empty, for the consumers which wait longer than {@code maxWaitMs}.
+     *
+     * @return true if the queue is non-empty, false on timeout
+     */
+    public boolean awaitNonEmpty(long timeout, TimeUnit unit) throws InterruptedException {
+        return consumerWait.await(nonEmpty, unit.toNanos(timeout));
+    }
+
+    /**
+     * Blocks the suspended producer until resumed.
+     *
+     * @return true if the producer is not suspended, false on timeout
+     */
+    public boolean awaitResume(long timeout, TimeUnit unit) throws InterruptedException {
+        return producerWait.await(producerRunning, unit.toNanos(timeout));
+    }
+
     @Override
-    public synchronized E peek() {
-        return queue.peek();
+    public E peek() {
+        lock.lock();
+        try {
+            return queue.peek();
+        } finally {
+            lock.unlock();
+        }
     }
 
-    public synchronized boolean isProducerSuspended() {
-        return producerSuspended;
+    /**
+     * Stops waking up the producers of this queue when the shared budget is replenished, for a queue which is no
+     * longer used, so that a long-lived budget does not keep it reachable. The elements still in the queue keep
+     * their weight in the budget until they are taken.
+     */
+    public void detach() {
+        if (budget != null) {
+            budget.removeResumeListener(budgetReplenished);
+        }
+    }
+
+    /**
+     * @return true if the producer is suspended by the queue watermarks or by the exhausted global budget
+     */
+    public boolean isProducerSuspended() {
+        return producerSuspended || (budget != null && budget.isExhausted());
+    }
+
+    /**
+     * @return total weight of the elements, their number unless constructed with a weigher
+     */
+    public long weight() {
+        lock.lock();
+        try {
+            return weight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves the watermarks, see {@link AdaptiveWatermarks}, a crossing caused by the move is reported right away.
+     */
+    public void setWatermarks(long lowerWatermark, long upperWatermark) {
+        assert lowerWatermark >= 0 && lowerWatermark < upperWatermark;
+
+        final boolean resumed;
+        lock.lock();
+        try {
+            this.lowerWatermark = lowerWatermark;
+            this.upperWatermark = upperWatermark;
+            grown();
+            resumed = shrunk();
+        } finally {
+            lock.unlock();
+        }
+
+        if (resumed) {
+            producerWait.signal();
+        }
+    }
+
+    /**
+     * Turns the metrics of this queue on, the producers and the consumer do not pay for them otherwise.
+     *
+     * @param sampleInterval average number of elements per sojourn time sample
+     * @return the metrics, the same instance on the repeated calls
+     */
+    public WatermarkMetrics enableMetrics(int sampleInterval) {
+        lock.lock();
+        try {
+            if (metrics == null) {
+                final WatermarkMetrics m = new WatermarkMetrics(sampleInterval, () -> size, Collections::emptyMap);
+                if (producerSuspended) {
+                    m.suspended(this);
+                }
+                metrics = m;
+            }
+            return metrics;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private E tryPoll() {
+        final E e;
+        long w = 0L;
+        boolean resumed = false;
+        lock.lock();
+        try {
+            e = queue.poll();
+            if (e != null) {
+                weight -= (w = weigher.applyAsLong(e));
+                resumed = shrunk();
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        final WatermarkMetrics m = metrics;
+        if (m != null && e != null) {
+            m.unstamp(e);
+            m.dequeued(1, w);
+        }
+        released(w);
+        if (resumed) {
+            producerWait.signal();
+        }
+
+        return e;
+    }
+
+    private int tryDrainTo(Consumer<? super E> sink, int max) {
+        final WatermarkMetrics m = metrics;
+        int n = 0;
+        long w = 0L;
+        boolean resumed = false;
+        lock.lock();
+        try {
+            for (E e; n < max && (e = queue.poll()) != null; ) {
+                w += weigher.applyAsLong(e);
+                ++n;
+                if (m != null) {
+                    m.unstamp(e);
+                }
+                sink.accept(e);
+            }
+        } finally {
+            // the elements taken before a failed sink are gone, account for them either way
+            try {
+                weight -= w;
+                resumed = n != 0 && shrunk();
+            } finally {
+                lock.unlock();
+            }
+
+            if (m != null) {
+                m.dequeued(n, w);
+            }
+            released(w);
+            if (resumed) {
+                producerWait.signal();
+            }
+        }
+
+        return n;
+    }
+
+    private boolean awaitNonEmpty() {
+        try {
+            return consumerWait.await(nonEmpty, maxWaitNanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Accounts for the first {@code n} elements of a batch, called under the lock, releases it.
+     */
+    private void offered(WatermarkMetrics m, int n, long w, boolean wasEmpty) {
+        try {
+            weight += w;
+            grown();
+        } finally {
+            lock.unlock();
+        }
+
+        if (m != null) {
+            m.enqueued(n);
+        }
+        acquired(w);
+        if (wasEmpty && n != 0) {
+            consumerWait.signal();
+        }
+    }
+
+    private void acquired(long w) {
+        if (budget != null) {
+            budget.acquire(w);
+        }
+    }
+
+    private void released(long w) {
+        if (budget != null) {
+            budget.release(w);
+        }
+    }
+
+    private void grown() {
+        size = queue.size();
+
+        if (!producerSuspended && weight >= upperWatermark) {
+            producerSuspended = true;
+            final WatermarkMetrics m = metrics;
+            if (m != null) {
+                m.suspended(this);
+            }
+            onSuspend.run();
+        }
+    }
+
+    private boolean shrunk() {
+        size = queue.size();
+
+        if (producerSuspended && weight <= lowerWatermark) {
+            producerSuspended = false;
+            final WatermarkMetrics m = metrics;
+            if (m != null) {
+                m.resumed(this);
+            }
+            onResume.run();
+            return true;
+        }
+
+        return false;
     }
 }
\ No newline at end of file
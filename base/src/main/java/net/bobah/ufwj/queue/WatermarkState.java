@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2018 Vladimir Lysyy (mrbald@github)
+ * ALv2 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+package net.bobah.ufwj.queue;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Lock-free producer suspend/resume state machine driven by the depth of a queue or a stream.
+ * <p>
+ * A crossing is claimed by a CAS into an intermediate SUSPENDING/RESUMING state, the winner runs the callback
+ * and publishes the final state, so callbacks never overlap and fire exactly once per crossing, in order.
+ * The winner re-checks the depth afterwards to settle crossings which happened while the callback was running.
+ * </p>
+ * <p>
+ * Callers must publish the depth change with a volatile write (or a CAS) before calling
+ * {@link #grown(long)} or {@link #shrunk(long)}, otherwise a concurrent re-check may miss it.
+ * </p>
+ *
+ * @author Vladimir Lysyy (mrbald@github)
+ */
+abstract class WatermarkState {
+    private static final int RUNNING = 0;
+    private static final int SUSPENDING = 1;
+    private static final int SUSPENDED = 2;
+    private static final int RESUMING = 3;
+
+    private static final AtomicIntegerFieldUpdater<WatermarkState> STATE
+            = AtomicIntegerFieldUpdater.newUpdater(WatermarkState.class, "state");
+
+    volatile long lowerWatermark;
+    volatile long upperWatermark;
+
+    private volatile int state = RUNNING;
+
+    WatermarkState(long lowerWatermark, long upperWatermark) {
+        assert lowerWatermark >= 0 && lowerWatermark < upperWatermark;
+        this.lowerWatermark = lowerWatermark;
+        this.upperWatermark = upperWatermark;
+    }
+
+    /**
+     * @return current depth, must read the same memory the callers publish the depth changes to
+     */
+    abstract long depth();
+
+    abstract void onSuspend();
+
+    abstract void onResume();
+
+    /**
+     * To be called after the depth has increased to {@code depth}.
+     */
+    final void grown(long depth) {
+        if (depth >= upperWatermark && state == RUNNING) {
+            settle();
+        }
+    }
+
+    /**
+     * To be called after the depth has decreased to {@code depth}.
+     */
+    final void shrunk(long depth) {
+        if (depth <= lowerWatermark && state == SUSPENDED) {
+            settle();
+        }
+    }
+
+    /**
+     * Moves the watermarks and settles the crossing the move may have caused, for a single adjusting thread.
+     * <p>
+     * The watermarks are written in the order which keeps {@code lowerWatermark < upperWatermark} for the
+     * concurrent readers.
+     * </p>
+     */
+    final void setWatermarks(long lowerWatermark, long upperWatermark) {
+        assert lowerWatermark >= 0 && lowerWatermark < upperWatermark;
+
+        if (upperWatermark > this.upperWatermark) {
+            this.upperWatermark = upperWatermark;
+            this.lowerWatermark = lowerWatermark;
+        } else {
+            this.lowerWatermark = lowerWatermark;
+            this.upperWatermark = upperWatermark;
+        }
+
+        final long depth = depth();
+        grown(depth);
+        shrunk(depth);
+    }
+
+    /**
+     * @return true from the moment the upper watermark crossing is claimed until the lower watermark crossing is,
+     * so that the resume callback can already wake up the producer
+     */
+    final boolean isSuspended() {
+        final int s = state;
+        return s == SUSPENDING || s == SUSPENDED;
+    }
+
+    private void settle() {
+        for (;;) {
+            final int s = state;
+            if (s == RUNNING) {
+                if (depth() < upperWatermark || !STATE.compareAndSet(this, RUNNING, SUSPENDING)) {
+                    return;
+                }
+                try {
+                    onSuspend();
+                } finally {
+                    state = SUSPENDED;
+                }
+            } else if (s == SUSPENDED) {
+                if (depth() > lowerWatermark || !STATE.compareAndSet(this, SUSPENDED, RESUMING)) {
+                    return;
+                }
+                try {
+                    onResume();
+                } finally {
+                    state = RUNNING;
+                }
+            } else {
+                // the transition owner re-checks the depth when done
+                return;
+            }
+        }
+    }
+}
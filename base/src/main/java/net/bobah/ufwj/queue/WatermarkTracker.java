@@ -5,12 +5,23 @@
 
 package net.bobah.ufwj.queue;
 
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
 
 /**
  * A blocking queue wrapper implementing watermarks-based back pressure propagation
@@ -22,39 +33,110 @@ import java.util.function.Function;
  * @author Vladimir Lysyy (mrbald@github)
  */
 public class WatermarkTracker<E,S> {
+    private static final ToLongFunction<Object> COUNT = e -> 1L;
+
     private final BlockingQueue<E> queue;
-    private final long lowerWatermark;
-    private final long upperWatermark;
+    private volatile long lowerWatermark;
+    private volatile long upperWatermark;
+    private final ToLongFunction<? super E> weigher;
+    private final WatermarkBudget budget;
     private final Consumer<S> onLowerWatermarkCrossed;
     private final Consumer<S> onUpperWatermarkCrossed;
-    private final Function<E, S> classifier;
+    private final Function<E, StreamTracker> payloadTracker;
     private final Function<S, StreamTracker> trackerSupplier;
+    private final Predicate<S> retirer;
+
+    /**
+     * Trackers of the multi-source mode by the source key, null in the other modes.
+     */
+    private final Map<S, StreamTracker> trackerMap;
+
+    /**
+     * Trackers of the indexed mode by the source id, null in the other modes.
+     */
+    private final AtomicReferenceArray<StreamTracker> indexedTrackers;
+    private final IntConsumer onLowerIndexedCrossed;
+    private final IntConsumer onUpperIndexedCrossed;
+
+    private volatile WatermarkMetrics metrics = null;
+
+    /**
+     * Reused by {@link #drainTo(Consumer, int)}.
+     */
+    private final Drain drain = new Drain();
 
-    class StreamTracker {
+    /**
+     * Lock-free per-source counter, the crossings are settled by {@link WatermarkState}.
+     */
+    @SuppressWarnings("rawtypes")
+    private static final AtomicLongFieldUpdater<WatermarkTracker.StreamTracker> COUNTER
+            = AtomicLongFieldUpdater.newUpdater(WatermarkTracker.StreamTracker.class, "counter");
+
+    class StreamTracker extends WatermarkState {
         private final S key;
-        long counter = 0;
-        private boolean suspended = false;
+        volatile long counter = 0;
 
         StreamTracker(S key) {
+            super(WatermarkTracker.this.lowerWatermark, WatermarkTracker.this.upperWatermark);
             this.key = key;
         }
 
-        synchronized void incoming(int n) {
-            if ((counter += n) >= upperWatermark && !suspended) {
-                suspended = true;
-                onUpperWatermarkCrossed.accept(key);
+        void incoming(long n) {
+            grown(COUNTER.addAndGet(this, n));
+        }
+
+        void outgoing(long n) {
+            shrunk(COUNTER.addAndGet(this, -n));
+        }
+
+        @Override
+        long depth() {
+            return counter;
+        }
+
+        @Override
+        final void onSuspend() {
+            final WatermarkMetrics m = metrics;
+            if (m != null) {
+                m.suspended(this);
             }
+            suspend();
         }
 
-        synchronized void outgoing(int n) {
-            if ((counter -= n) == lowerWatermark && suspended) {
-                suspended = false;
-                onLowerWatermarkCrossed.accept(key);
+        @Override
+        final void onResume() {
+            final WatermarkMetrics m = metrics;
+            if (m != null) {
+                m.resumed(this);
             }
+            resume();
+        }
+
+        void suspend() {
+            onUpperWatermarkCrossed.accept(key);
+        }
+
+        void resume() {
+            onLowerWatermarkCrossed.accept(key);
+        }
+    }
+
+    private final class IndexedTracker extends StreamTracker {
+        private final int source;
+
+        IndexedTracker(int source) {
+            super(null);
+            this.source = source;
+        }
+
+        @Override
+        void suspend() {
+            onUpperIndexedCrossed.accept(source);
         }
 
-        synchronized boolean isSuspended() {
-            return suspended;
+        @Override
+        void resume() {
+            onLowerIndexedCrossed.accept(source);
         }
     }
 
@@ -62,7 +144,22 @@ public class WatermarkTracker<E,S> {
             BlockingQueue<E> queue,
             long lowerWatermark, long upperWatermark,
             Runnable onLowerWatermarkCrossed, Runnable onUpperWatermarkCrossed) {
-        return new WatermarkTracker<E, Void>(queue, lowerWatermark, upperWatermark, onLowerWatermarkCrossed, onUpperWatermarkCrossed);
+        return newMono(queue, lowerWatermark, upperWatermark, COUNT, null, onLowerWatermarkCrossed, onUpperWatermarkCrossed);
+    }
+
+    /**
+     * Watermarks on the total weight of the payloads rather than their number, e.g. on their size in bytes.
+     *
+     * @param weigher weight of a payload, must not change while the payload is in the queue
+     * @param budget optional global budget shared with other queues and trackers, all sources are reported
+     *               suspended while the budget is exhausted
+     */
+    public static <E, Void> WatermarkTracker<E, Void> newMono(
+            BlockingQueue<E> queue,
+            long lowerWatermark, long upperWatermark,
+            ToLongFunction<? super E> weigher, WatermarkBudget budget,
+            Runnable onLowerWatermarkCrossed, Runnable onUpperWatermarkCrossed) {
+        return new WatermarkTracker<E, Void>(queue, lowerWatermark, upperWatermark, weigher, budget, onLowerWatermarkCrossed, onUpperWatermarkCrossed);
     }
 
     public static <E, S> WatermarkTracker<E, S> newMulti(
@@ -70,75 +167,522 @@ public class WatermarkTracker<E,S> {
             long lowerWatermark, long upperWatermark,
             Function<E, S> classifier,
             Consumer<S> onLowerWatermarkCrossed, Consumer<S> onUpperWatermarkCrossed) {
-        return new WatermarkTracker<>(queue, lowerWatermark, upperWatermark, classifier, onLowerWatermarkCrossed, onUpperWatermarkCrossed);
+        return newMulti(queue, lowerWatermark, upperWatermark, classifier, COUNT, null, onLowerWatermarkCrossed, onUpperWatermarkCrossed);
+    }
+
+    /**
+     * Weighted version of {@link #newMulti(BlockingQueue, long, long, Function, Consumer, Consumer)},
+     * see {@link #newMono(BlockingQueue, long, long, ToLongFunction, WatermarkBudget, Runnable, Runnable)}.
+     */
+    public static <E, S> WatermarkTracker<E, S> newMulti(
+            BlockingQueue<E> queue,
+            long lowerWatermark, long upperWatermark,
+            Function<E, S> classifier,
+            ToLongFunction<? super E> weigher, WatermarkBudget budget,
+            Consumer<S> onLowerWatermarkCrossed, Consumer<S> onUpperWatermarkCrossed) {
+        return new WatermarkTracker<>(queue, lowerWatermark, upperWatermark, classifier, weigher, budget, onLowerWatermarkCrossed, onUpperWatermarkCrossed);
+    }
+
+    /**
+     * Multiple sources identified by dense int ids from {@code 0} to {@code maxSources - 1}, looked up without
+     * hashing or boxing. A source tracker is created on the first message and can be dropped with
+     * {@link #retireSource(int)}.
+     */
+    public static <E> WatermarkTracker<E, Integer> newIndexed(
+            BlockingQueue<E> queue,
+            long lowerWatermark, long upperWatermark,
+            ToIntFunction<? super E> classifier, int maxSources,
+            IntConsumer onLowerWatermarkCrossed, IntConsumer onUpperWatermarkCrossed) {
+        return newIndexed(queue, lowerWatermark, upperWatermark, classifier, maxSources, COUNT, null, onLowerWatermarkCrossed, onUpperWatermarkCrossed);
+    }
+
+    /**
+     * Weighted version of {@link #newIndexed(BlockingQueue, long, long, ToIntFunction, int, IntConsumer, IntConsumer)},
+     * see {@link #newMono(BlockingQueue, long, long, ToLongFunction, WatermarkBudget, Runnable, Runnable)}.
+     */
+    public static <E> WatermarkTracker<E, Integer> newIndexed(
+            BlockingQueue<E> queue,
+            long lowerWatermark, long upperWatermark,
+            ToIntFunction<? super E> classifier, int maxSources,
+            ToLongFunction<? super E> weigher, WatermarkBudget budget,
+            IntConsumer onLowerWatermarkCrossed, IntConsumer onUpperWatermarkCrossed) {
+        return new WatermarkTracker<>(queue, lowerWatermark, upperWatermark, classifier, maxSources, weigher, budget, onLowerWatermarkCrossed, onUpperWatermarkCrossed);
     }
 
     private WatermarkTracker(
             BlockingQueue<E> queue,
             long lowerWatermark, long upperWatermark,
             Function<E, S> classifier,
+            ToLongFunction<? super E> weigher, WatermarkBudget budget,
             Consumer<S> onLowerWatermarkCrossed, Consumer<S> onUpperWatermarkCrossed) {
         assert lowerWatermark >= 0 && lowerWatermark < upperWatermark;
 
         this.queue = queue;
         this.lowerWatermark = lowerWatermark;
         this.upperWatermark = upperWatermark;
-        this.classifier = classifier;
+        this.weigher = weigher;
+        this.budget = budget;
         this.onLowerWatermarkCrossed = onLowerWatermarkCrossed;
         this.onUpperWatermarkCrossed = onUpperWatermarkCrossed;
+        this.indexedTrackers = null;
+        this.onLowerIndexedCrossed = null;
+        this.onUpperIndexedCrossed = null;
 
         final Map<S, StreamTracker> trackerMap = new ConcurrentHashMap<>();
 
+        this.trackerMap = trackerMap;
         this.trackerSupplier = key -> trackerMap.computeIfAbsent(key, StreamTracker::new);
+        this.payloadTracker = e -> trackerSupplier.apply(classifier.apply(e));
+        this.retirer = key -> {
+            final StreamTracker tracker = trackerMap.get(key);
+            return tracker == null || (tracker.counter == 0 && trackerMap.remove(key, tracker));
+        };
     }
 
     private WatermarkTracker(
             BlockingQueue<E> queue,
             long lowerWatermark, long upperWatermark,
+            ToIntFunction<? super E> classifier, int maxSources,
+            ToLongFunction<? super E> weigher, WatermarkBudget budget,
+            IntConsumer onLowerWatermarkCrossed, IntConsumer onUpperWatermarkCrossed) {
+        assert lowerWatermark >= 0 && lowerWatermark < upperWatermark && maxSources > 0;
+
+        this.queue = queue;
+        this.lowerWatermark = lowerWatermark;
+        this.upperWatermark = upperWatermark;
+        this.weigher = weigher;
+        this.budget = budget;
+        this.onLowerWatermarkCrossed = null;
+        this.onUpperWatermarkCrossed = null;
+        this.indexedTrackers = new AtomicReferenceArray<>(maxSources);
+        this.onLowerIndexedCrossed = onLowerWatermarkCrossed;
+        this.onUpperIndexedCrossed = onUpperWatermarkCrossed;
+        this.trackerMap = null;
+
+        this.trackerSupplier = key -> indexedTracker((Integer) key);
+        this.payloadTracker = e -> indexedTracker(classifier.applyAsInt(e));
+        this.retirer = key -> retireSource((Integer) key);
+    }
+
+    private WatermarkTracker(
+            BlockingQueue<E> queue,
+            long lowerWatermark, long upperWatermark,
+            ToLongFunction<? super E> weigher, WatermarkBudget budget,
             Runnable onLowerWatermarkCrossed, Runnable onUpperWatermarkCrossed) {
         assert lowerWatermark >= 0 && lowerWatermark < upperWatermark;
 
         this.queue = queue;
         this.lowerWatermark = lowerWatermark;
         this.upperWatermark = upperWatermark;
-        this.classifier = x -> null;
+        this.weigher = weigher;
+        this.budget = budget;
         this.onLowerWatermarkCrossed = x -> onLowerWatermarkCrossed.run();
         this.onUpperWatermarkCrossed = x -> onUpperWatermarkCrossed.run();
+        this.indexedTrackers = null;
+        this.onLowerIndexedCrossed = null;
+        this.onUpperIndexedCrossed = null;
+
+        this.trackerMap = null;
 
         final StreamTracker streamTracker = new StreamTracker(null);
 
         this.trackerSupplier = key -> streamTracker;
+        this.payloadTracker = e -> streamTracker;
+        this.retirer = key -> streamTracker.counter == 0;
     }
 
+    /**
+     * @throws IllegalStateException if the queue is full
+     */
     public void add(E e) {
-        queue.offer(e);
-        trackerForPayload(e).incoming(1);
+        final WatermarkMetrics m = metrics;
+        final StreamTracker tracker = trackerForPayload(e);
+        final long w = weigher.applyAsLong(e);
+        enqueue(e, m);
+
+        tracker.incoming(w);
+        acquired(w);
+
+        if (m != null) {
+            m.enqueued(1);
+        }
+    }
+
+    /**
+     * Batch version of {@link #add(Object)}, updates the counters once per run of consecutive payloads
+     * from the same source.
+     *
+     * @throws IllegalStateException if the queue is full, the payloads added before are accounted for
+     */
+    public void addAll(E[] es) {
+        final WatermarkMetrics m = metrics;
+        StreamTracker tracker = null;
+        long run = 0;
+        long total = 0;
+        int n = 0;
+        try {
+            for (E e : es) {
+                final StreamTracker next = trackerForPayload(e);
+                final long w = weigher.applyAsLong(e);
+                enqueue(e, m);
+
+                if (next != tracker) {
+                    if (run != 0) {
+                        tracker.incoming(run);
+                    }
+                    tracker = next;
+                    run = 0;
+                }
+                run += w;
+                total += w;
+                ++n;
+            }
+        } finally {
+            if (run != 0) {
+                tracker.incoming(run);
+            }
+            acquired(total);
+
+            if (m != null) {
+                m.enqueued(n);
+            }
+        }
+    }
+
+    /**
+     * Batch version of {@link #add(Object)}, updates the counters once per run of consecutive payloads
+     * from the same source.
+     *
+     * @throws IllegalStateException if the queue is full, the payloads added before are accounted for
+     */
+    public void addAll(Collection<? extends E> es) {
+        final WatermarkMetrics m = metrics;
+        StreamTracker tracker = null;
+        long run = 0;
+        long total = 0;
+        int n = 0;
+        try {
+            for (E e : es) {
+                final StreamTracker next = trackerForPayload(e);
+                final long w = weigher.applyAsLong(e);
+                enqueue(e, m);
+
+                if (next != tracker) {
+                    if (run != 0) {
+                        tracker.incoming(run);
+                    }
+                    tracker = next;
+                    run = 0;
+                }
+                run += w;
+                total += w;
+                ++n;
+            }
+        } finally {
+            if (run != 0) {
+                tracker.incoming(run);
+            }
+            acquired(total);
+
+            if (m != null) {
+                m.enqueued(n);
+            }
+        }
     }
 
     public E poll(long timeout, TimeUnit unit) throws InterruptedException {
         final E e = queue.poll(timeout, unit);
 
         if (e != null) {
-            trackerForPayload(e).outgoing(1);
+            final long w = weigher.applyAsLong(e);
+            trackerForPayload(e).outgoing(w);
+            released(w);
+
+            final WatermarkMetrics m = metrics;
+            if (m != null) {
+                m.unstamp(e);
+                m.dequeued(1, w);
+            }
         }
 
         return e;
     }
 
+    /**
+     * Batch version of {@link #poll(long, TimeUnit)}, does not wait, moves up to {@code max} elements with
+     * a single {@link BlockingQueue#drainTo(Collection, int)} and updates the counters once per run
+     * of consecutive payloads from the same source.
+     * <p>
+     * For one consumer thread at a time, the drain state is reused across the calls.
+     * </p>
+     *
+     * @return number of elements passed to the sink
+     */
+    public int drainTo(Consumer<? super E> sink, int max) {
+        assert drain.sink == null : "concurrent drainTo";
+
+        final WatermarkMetrics m = metrics;
+        drain.sink = sink;
+        drain.metrics = m;
+        final int n;
+        try {
+            n = queue.drainTo(drain, max);
+        } finally {
+            drain.flush();
+            released(drain.total);
+            if (m != null) {
+                m.dequeued(drain.count, drain.total);
+            }
+            drain.reset();
+        }
+        return n;
+    }
+
+    /**
+     * Moves the watermarks of all sources, for a single adjusting thread, see {@link AdaptiveWatermarks}.
+     * A crossing caused by the move is reported right away.
+     */
+    public void setWatermarks(long lowerWatermark, long upperWatermark) {
+        assert lowerWatermark >= 0 && lowerWatermark < upperWatermark;
+
+        this.lowerWatermark = lowerWatermark;
+        this.upperWatermark = upperWatermark;
+        forEachTracker((key, tracker) -> tracker.setWatermarks(lowerWatermark, upperWatermark));
+    }
+
+    /**
+     * Turns the metrics of this tracker on, the producers and the consumer do not pay for them otherwise.
+     *
+     * @param sampleInterval average number of payloads per sojourn time sample
+     * @return the metrics, the same instance on the repeated calls
+     */
+    public synchronized WatermarkMetrics enableMetrics(int sampleInterval) {
+        if (metrics == null) {
+            useMetrics(new WatermarkMetrics(sampleInterval, queue::size, this::sourceDepths));
+        }
+        return metrics;
+    }
+
+    /**
+     * Reports to the metrics shared with other trackers, like the shards of {@link ShardedWatermarkTracker}.
+     */
+    synchronized void useMetrics(WatermarkMetrics m) {
+        assert metrics == null;
+
+        forEachTracker((key, tracker) -> {
+            if (tracker.isSuspended()) {
+                m.suspended(tracker);
+            }
+        });
+        metrics = m;
+    }
+
+    /**
+     * @return true if any source is suspended, does not check the budget
+     */
+    boolean isAnySuspended() {
+        final boolean[] any = {false};
+        forEachTracker((key, tracker) -> any[0] |= tracker.isSuspended());
+        return any[0];
+    }
+
+    int size() {
+        return queue.size();
+    }
+
+    /**
+     * @return true if the source is above its watermark or the shared budget, if any, is exhausted, a source
+     * not seen yet is not suspended and is not registered by the call
+     */
     public boolean isSuspended(S key) {
-        return trackerForStream(key).isSuspended();
+        final StreamTracker tracker;
+        if (trackerMap != null) {
+            tracker = trackerMap.get(key);
+        } else if (indexedTrackers != null) {
+            tracker = indexedTrackers.get((Integer) key);
+        } else {
+            tracker = trackerForStream(key);
+        }
+        return (tracker != null && tracker.isSuspended()) || isBudgetExhausted();
     }
 
     public boolean isSuspended() {
         return isSuspended(null);
     }
 
+    /**
+     * Primitive version of {@link #isSuspended(Object)} for the trackers created with {@link #newIndexed}.
+     */
+    public boolean isSourceSuspended(int source) {
+        if (indexedTrackers == null) {
+            throw new UnsupportedOperationException("not an indexed tracker");
+        }
+        final StreamTracker tracker = indexedTrackers.get(source);
+        return (tracker != null && tracker.isSuspended()) || isBudgetExhausted();
+    }
+
+    /**
+     * Forgets an idle source, for the sources which come and go, like sessions. The single source tracker
+     * is never forgotten. Must not race with {@link #add(Object)} for the same source.
+     *
+     * @return false if the source has messages in flight and has not been forgotten
+     */
+    public boolean retire(S key) {
+        return retirer.test(key);
+    }
+
+    /**
+     * Primitive version of {@link #retire(Object)} for the trackers created with {@link #newIndexed}.
+     */
+    public boolean retireSource(int source) {
+        if (indexedTrackers == null) {
+            throw new UnsupportedOperationException("not an indexed tracker");
+        }
+        final StreamTracker tracker = indexedTrackers.get(source);
+        return tracker == null || (tracker.counter == 0 && indexedTrackers.compareAndSet(source, tracker, null));
+    }
+
+    /**
+     * The sink of the batch drain. An element the sink throws on stays in the {@link BlockingQueue} and is not
+     * accounted for, the elements passed on before it are.
+     */
+    private final class Drain extends AbstractCollection<E> {
+        Consumer<? super E> sink = null;
+        WatermarkMetrics metrics = null;
+        private StreamTracker tracker = null;
+        private long run = 0;
+        long total = 0;
+        int count = 0;
+
+        @Override
+        public boolean add(E e) {
+            sink.accept(e);
+
+            final StreamTracker next = trackerForPayload(e);
+            if (next != tracker) {
+                flush();
+                tracker = next;
+            }
+            final long w = weigher.applyAsLong(e);
+            run += w;
+            total += w;
+            ++count;
+
+            if (metrics != null) {
+                metrics.unstamp(e);
+            }
+            return true;
+        }
+
+        void flush() {
+            if (run != 0) {
+                tracker.outgoing(run);
+                run = 0;
+            }
+        }
+
+        void reset() {
+            sink = null;
+            metrics = null;
+            tracker = null;
+            total = 0;
+            count = 0;
+        }
+
+        @Override
+        public Iterator<E> iterator() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int size() {
+            return 0;
+        }
+    }
+
+    /**
+     * @return depths of the multi-source and the indexed trackers by the source key
+     */
+    Map<String, Long> sourceDepths() {
+        final Map<String, Long> depths = new LinkedHashMap<>();
+        if (trackerMap != null || indexedTrackers != null) {
+            forEachTracker((key, tracker) -> depths.put(key, tracker.counter));
+        }
+        return depths;
+    }
+
+    private void forEachTracker(BiConsumer<String, StreamTracker> consumer) {
+        if (trackerMap != null) {
+            trackerMap.forEach((key, tracker) -> consumer.accept(String.valueOf(key), tracker));
+        } else if (indexedTrackers != null) {
+            for (int source = 0; source < indexedTrackers.length(); ++source) {
+                final StreamTracker tracker = indexedTrackers.get(source);
+                if (tracker != null) {
+                    consumer.accept(Integer.toString(source), tracker);
+                }
+            }
+        } else {
+            consumer.accept("", trackerForStream(null));
+        }
+    }
+
+    /**
+     * Stamps the payload before it becomes visible to the consumer, withdraws the stamp if it is not enqueued.
+     */
+    private void enqueue(E e, WatermarkMetrics m) {
+        if (m != null) {
+            m.stamp(e);
+        }
+
+        boolean offered = false;
+        try {
+            offered = queue.offer(e);
+        } finally {
+            if (!offered && m != null) {
+                m.withdraw(e);
+            }
+        }
+
+        if (!offered) {
+            throw new IllegalStateException("Queue full");
+        }
+    }
+
+    private boolean isBudgetExhausted() {
+        return budget != null && budget.isExhausted();
+    }
+
+    private void acquired(long weight) {
+        if (budget != null) {
+            budget.acquire(weight);
+        }
+    }
+
+    private void released(long weight) {
+        if (budget != null) {
+            budget.release(weight);
+        }
+    }
+
     StreamTracker trackerForPayload(E e) {
-        return trackerForStream(classifier.apply(e));
+        return payloadTracker.apply(e);
     }
 
     StreamTracker trackerForStream(S s) {
         return trackerSupplier.apply(s);
     }
 
+    private StreamTracker indexedTracker(int source) {
+        for (;;) {
+            final StreamTracker tracker = indexedTrackers.get(source);
+            if (tracker != null) {
+                return tracker;
+            }
+            final StreamTracker created = new IndexedTracker(source);
+            if (indexedTrackers.compareAndSet(source, null, created)) {
+                return created;
+            }
+        }
+    }
+
 }
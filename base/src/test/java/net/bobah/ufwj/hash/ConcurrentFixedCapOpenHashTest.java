@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2018 Vladimir Lysyy (mrbald@github)
+ * ALv2 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+package net.bobah.ufwj.hash;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/*
+ * @author Vladimir Lysyy (mrbald@github)
+ */
+public class ConcurrentFixedCapOpenHashTest {
+    @Test
+    public void basics() {
+        final ConcurrentFixedCapOpenHash<Integer, String> hash = new ConcurrentFixedCapOpenHash<>(4, Hashing.IDENTITY);
+        assertEquals(4, hash.capacity());
+
+        // 1, 5, 9 collide at 1
+        assertNull(hash.putIfAbsent(1, "1"));
+        assertNull(hash.putIfAbsent(5, "5"));
+        assertNull(hash.putIfAbsent(9, "9"));
+        assertEquals("5", hash.putIfAbsent(5, "x"));
+
+        assertEquals("5", hash.remove(5));
+        assertNull(hash.remove(5));
+        assertNull(hash.get(5));
+        assertEquals("9", hash.get(9));
+
+        // reuses the tombstone
+        assertNull(hash.putIfAbsent(13, "13"));
+        assertNull(hash.putIfAbsent(2, "2"));
+        assertEquals("13", hash.get(13));
+        assertEquals("2", hash.get(2));
+        assertEquals("1", hash.get(1));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void full() {
+        final ConcurrentFixedCapOpenHash<Integer, Integer> hash = new ConcurrentFixedCapOpenHash<>(2);
+        hash.putIfAbsent(1, 1);
+        hash.putIfAbsent(2, 2);
+        hash.putIfAbsent(3, 3);
+    }
+
+    @Test
+    public void concurrentChurn() throws InterruptedException {
+        final int threads = 4;
+        final int inFlight = 100;
+        final int iterations = 100_000;
+
+        final ConcurrentFixedCapOpenHash<Integer, Integer> hash
+                = new ConcurrentFixedCapOpenHash<>(threads * inFlight, Hashing.IDENTITY);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        final List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; ++t) {
+            final int prefix = t << 24;
+            workers.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < iterations; ++i) {
+                        final Integer id = prefix | i;
+                        assertNull(hash.putIfAbsent(id, id));
+                        assertEquals(id, hash.get(id));
+                        if (i >= inFlight) {
+                            final Integer done = prefix | (i - inFlight);
+                            assertEquals(done, hash.remove(done));
+                            assertNull(hash.get(done));
+                        }
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            }));
+        }
+
+        workers.forEach(Thread::start);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        assertNull(failure.get());
+        for (int t = 0; t < threads; ++t) {
+            for (int i = iterations - inFlight; i < iterations; ++i) {
+                final Integer id = (t << 24) | i;
+                assertEquals(id, hash.get(id));
+            }
+        }
+    }
+}
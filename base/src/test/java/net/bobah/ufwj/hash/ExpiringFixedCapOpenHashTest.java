@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2018 Vladimir Lysyy (mrbald@github)
+ * ALv2 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+package net.bobah.ufwj.hash;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/*
+ * @author Vladimir Lysyy (mrbald@github)
+ */
+public class ExpiringFixedCapOpenHashTest {
+    @Test
+    public void basics() {
+        final ExpiringFixedCapOpenHash<Integer, String> hash = new ExpiringFixedCapOpenHash<>(16, 10L, 4);
+
+        for (int key = 0; key < 8; ++key) {
+            final int pos = hash.write(key);
+            hash.setValue(pos, "v" + key);
+            if (key % 2 == 0) {
+                hash.setDeadline(pos, 100L + key * 10L);
+            }
+        }
+        assertFalse(hash.hasDeadline(hash.find(1)));
+        assertEquals(120L, hash.getDeadline(hash.find(2)));
+
+        final List<Integer> expired = new ArrayList<>();
+        assertEquals(0, hash.expire(99L, (k, v) -> expired.add(k)));
+        assertEquals(2, hash.expire(120L, (k, v) -> expired.add(k)));
+        assertEquals(6, hash.size());
+
+        // moved past a wheel rotation
+        hash.setDeadline(hash.find(4), 1000L);
+        hash.clearDeadline(hash.find(6));
+        assertEquals(0, hash.expire(150L, (k, v) -> expired.add(k)));
+        assertEquals(1, hash.expire(1000L, (k, v) -> expired.add(k)));
+
+        // a deadline in the past expires on the next call
+        hash.setDeadline(hash.find(7), 0L);
+        assertEquals(1, hash.expire(1000L, (k, v) -> assertEquals("v7", v)));
+
+        assertEquals(4, hash.size());
+        for (int key : new int[]{1, 3, 5, 6}) {
+            assertTrue(hash.find(key) != -1);
+        }
+    }
+
+    @Test
+    public void churn() {
+        final int inFlight = 700;
+        final ExpiringFixedCapOpenHash<Integer, Integer> hash = new ExpiringFixedCapOpenHash<>(1024, 8L, 64);
+        final Map<Integer, Long> model = new HashMap<>();
+        final Random random = new Random(0);
+
+        long now = 0L;
+        for (int id = 0; id < 200_000; ++id) {
+            if (model.size() < inFlight) {
+                final long deadline = now + random.nextInt(1000);
+                final int pos = hash.write(id);
+                hash.setValue(pos, id);
+                hash.setDeadline(pos, deadline);
+                model.put(id, deadline);
+            }
+
+            // responses arrive for some of the requests
+            final int answered = id - random.nextInt(200);
+            final Long deadline = model.remove(answered);
+            if (deadline != null) {
+                hash.drop(hash.find(answered));
+            }
+
+            now += random.nextInt(3);
+            final long at = now;
+            hash.expire(now, (k, v) -> {
+                assertEquals(k, v);
+                final Long due = model.remove(k);
+                assertTrue(due != null && due <= at);
+            });
+            for (Map.Entry<Integer, Long> entry : model.entrySet()) {
+                if (entry.getValue() <= now) {
+                    throw new AssertionError("not expired " + entry);
+                }
+            }
+            assertEquals(model.size(), hash.size());
+        }
+
+        for (Map.Entry<Integer, Long> entry : model.entrySet()) {
+            assertEquals(entry.getValue().longValue(), hash.getDeadline(hash.find(entry.getKey())));
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2018 Vladimir Lysyy (mrbald@github)
+ * ALv2 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+package net.bobah.ufwj.hash;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+/*
+ * @author Vladimir Lysyy (mrbald@github)
+ */
+public class FixedCapOpenHashTest {
+    @Test
+    public void dropKeepsProbeChains() {
+        final FixedCapOpenHash<Integer, Integer> hash = new FixedCapOpenHash<>(16, Hashing.IDENTITY, false);
+
+        // one cluster: 1, 17, 33 collide at 1, 2 lands at 3 after them
+        for (int key : new int[]{1, 17, 33, 2}) {
+            hash.setValue(hash.write(key), key);
+        }
+
+        hash.drop(hash.find(17));
+
+        assertEquals(-1, hash.find(17));
+        for (int key : new int[]{1, 33, 2}) {
+            final int pos = hash.find(key);
+            assertNotEquals(-1, pos);
+            assertEquals(key, hash.getValue(pos).intValue());
+        }
+        assertEquals(3, hash.stream().count());
+    }
+
+    @Test
+    public void dropInWrappedCluster() {
+        final FixedCapOpenHash<Integer, Integer> hash = new FixedCapOpenHash<>(4, Hashing.IDENTITY, false);
+
+        // table full, cluster wraps around
+        for (int key : new int[]{3, 7, 11, 15}) {
+            hash.setValue(hash.write(key), key);
+        }
+
+        hash.drop(hash.find(3));
+        assertEquals(-1, hash.find(3));
+        for (int key : new int[]{7, 11, 15}) {
+            assertEquals(key, hash.getValue(hash.find(key)).intValue());
+        }
+    }
+
+    @Test
+    public void robinHoodDisplacement() {
+        final FixedCapOpenHash<Integer, Integer> hash = new FixedCapOpenHash<>(8, Hashing.IDENTITY, true);
+
+        // 1 and 9 home at 1, 2 homes at 2 and is displaced by 9
+        for (int key : new int[]{1, 2, 9, 3}) {
+            hash.setValue(hash.write(key), key);
+        }
+        assertEquals(1, hash.find(1));
+        assertEquals(2, hash.find(9));
+        assertEquals(3, hash.find(2));
+        assertEquals(4, hash.find(3));
+
+        // miss stops at 2 which is closer to its home than the probe
+        assertEquals(-1, hash.find(17));
+
+        hash.drop(hash.find(1));
+        assertEquals(1, hash.find(9));
+        assertEquals(2, hash.find(2));
+        assertEquals(3, hash.find(3));
+        assertEquals(3, hash.size());
+    }
+
+    @Test
+    public void iteration() {
+        final FixedCapOpenHash<Integer, Integer> hash = new FixedCapOpenHash<>(256);
+        assertEquals(-1, hash.first());
+
+        for (int key : new int[]{3, 64, 200}) {
+            hash.setValue(hash.write(key), key);
+        }
+
+        int sum = 0;
+        for (int pos = hash.first(); pos != -1; pos = hash.next(pos)) {
+            sum += hash.getValue(pos);
+        }
+        assertEquals(267, sum);
+
+        hash.drop(hash.find(64));
+        final int[] keys = {0};
+        hash.forEachEntry((key, value) -> keys[0] += key);
+        assertEquals(203, keys[0]);
+        assertEquals(-1, hash.next(hash.capacity() - 1));
+    }
+
+    @Test
+    public void churn() {
+        churn(new FixedCapOpenHash<>(1024, Hashing.IDENTITY, false));
+        churn(new FixedCapOpenHash<>(1024, Hashing.FIBONACCI, false));
+        churn(new FixedCapOpenHash<>(1024, Hashing.MURMUR3, true));
+    }
+
+    @Test
+    public void fibonacciTakesTopBits() {
+        final int shift = Hashing.shift(1024);
+        assertEquals(22, shift);
+
+        // keys differing in the high bits only still land on different home slots
+        final boolean[] homes = new boolean[1024];
+        int distinct = 0;
+        for (int i = 0; i < 512; ++i) {
+            final int home = Hashing.fibonacci(i << 22, shift);
+            assertEquals(home, home & 1023);
+            if (!homes[home]) {
+                homes[home] = true;
+                ++distinct;
+            }
+        }
+        assertEquals(512, distinct);
+    }
+
+    // === helpers ===
+
+    private void churn(FixedCapOpenHash<Integer, Integer> hash) {
+        final int inFlight = 700;
+        final Map<Integer, Integer> model = new HashMap<>();
+        final ArrayDeque<Integer> fifo = new ArrayDeque<>();
+        final Random random = new Random(0);
+
+        for (int i = 0; i < 200_000; ++i) {
+            final int key = random.nextInt() & ~0x3ff; // poor low bits
+            if (model.containsKey(key)) {
+                continue;
+            }
+
+            hash.setValue(hash.write(key), i);
+            model.put(key, i);
+            fifo.addLast(key);
+
+            if (fifo.size() > inFlight) {
+                final Integer victim = random.nextBoolean() ? fifo.pollFirst() : fifo.pollLast();
+                hash.drop(hash.find(victim));
+                model.remove(victim);
+            }
+        }
+
+        assertEquals(model.size(), hash.size());
+        assertEquals(model.size(), hash.stream().count());
+        model.forEach((key, value) -> assertEquals(value, hash.getValue(hash.find(key))));
+
+        // all three iterations visit the same slots
+        final int[] positions = hash.stream().toArray();
+        final int[] idx = {0};
+        hash.forEach(pos -> assertEquals(positions[idx[0]++], pos));
+        assertEquals(positions.length, idx[0]);
+
+        idx[0] = 0;
+        for (int pos = hash.first(); pos != -1; pos = hash.next(pos)) {
+            assertEquals(positions[idx[0]++], pos);
+        }
+        assertEquals(positions.length, idx[0]);
+
+        hash.forEachEntry((key, value) -> assertEquals(model.get(key), value));
+
+        // the batch lookup agrees with the single one on the hits and the misses
+        final Integer[] batch = new Integer[256];
+        final Iterator<Integer> present = fifo.iterator();
+        for (int i = 0; i < batch.length; ++i) {
+            batch[i] = i % 2 == 0 ? present.next() : random.nextInt() & ~0x3ff;
+        }
+        final int[] found = new int[batch.length];
+        found[batch.length - 1] = 42;
+
+        int hits = 0;
+        final int count = hash.findAll(batch, batch.length - 1, found);
+        for (int i = 0; i < batch.length - 1; ++i) {
+            assertEquals(hash.find(batch[i]), found[i]);
+            hits += found[i] != -1 ? 1 : 0;
+        }
+        assertEquals(hits, count);
+        assertEquals(42, found[batch.length - 1]);
+    }
+}
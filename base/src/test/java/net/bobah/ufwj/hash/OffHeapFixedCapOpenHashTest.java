@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2018 Vladimir Lysyy (mrbald@github)
+ * ALv2 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+package net.bobah.ufwj.hash;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+/*
+ * @author Vladimir Lysyy (mrbald@github)
+ */
+public class OffHeapFixedCapOpenHashTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void basics() {
+        final OffHeapFixedCapOpenHash hash = OffHeapFixedCapOpenHash.allocate(1000, 16, -1L);
+        assertEquals(1024, hash.capacity());
+
+        for (long key = 0; key < 1000; ++key) {
+            final int pos = hash.write(key);
+            hash.setValue(pos, key * 10);
+            hash.buffer().putLong(hash.valueOffset(pos) + Long.BYTES, -key);
+        }
+        assertEquals(1000, hash.size());
+        assertEquals(-1, hash.find(1000));
+
+        for (long key = 0; key < 1000; key += 2) {
+            hash.drop(hash.find(key));
+        }
+        assertEquals(500, hash.size());
+        assertEquals(500, hash.stream().count());
+
+        for (long key = 0; key < 1000; ++key) {
+            final int pos = hash.find(key);
+            if (key % 2 == 0) {
+                assertEquals(-1, pos);
+            } else {
+                assertNotEquals(-1, pos);
+                assertEquals(key, hash.getKey(pos));
+                assertEquals(key * 10, hash.getValue(pos));
+                assertEquals(-key, hash.buffer().getLong(hash.valueOffset(pos) + Long.BYTES));
+            }
+        }
+    }
+
+    @Test
+    public void reopen() throws IOException {
+        final Path file = folder.getRoot().toPath().resolve("table");
+
+        final OffHeapFixedCapOpenHash hash = OffHeapFixedCapOpenHash.map(file, 64, 8, 0L);
+        for (long key = 1; key <= 40; ++key) {
+            hash.setValue(hash.write(key << 32), key);
+        }
+        hash.drop(hash.find(7L << 32));
+        hash.force();
+
+        final OffHeapFixedCapOpenHash reopened = OffHeapFixedCapOpenHash.map(file, 64, 8, 0L);
+        assertEquals(39, reopened.size());
+        assertEquals(-1, reopened.find(7L << 32));
+        for (long key = 1; key <= 40; ++key) {
+            if (key != 7) {
+                assertEquals(key, reopened.getValue(reopened.find(key << 32)));
+            }
+        }
+    }
+
+    @Test
+    public void reopenInterrupted() throws IOException {
+        final Path file = folder.getRoot().toPath().resolve("table");
+
+        final OffHeapFixedCapOpenHash hash = OffHeapFixedCapOpenHash.map(file, 64, 8, 0L);
+        for (long key = 1; key <= 40; ++key) {
+            hash.setValue(hash.write(key << 32), key);
+        }
+
+        // the state of a drop interrupted before clearing its last hole, a moved key is still in its old slot
+        int last = 0;
+        while (hash.getKey(last) == 0L || hash.getKey(last + 1) != 0L) {
+            ++last;
+        }
+        final ByteBuffer buffer = hash.buffer();
+        buffer.putLong(hash.valueOffset(last + 1) - Long.BYTES, hash.getKey(last));
+        buffer.putLong(hash.valueOffset(last + 1), hash.getValue(last));
+        buffer.putInt(OffHeapFixedCapOpenHash.SIZE_OFFSET, 39);
+        buffer.putInt(OffHeapFixedCapOpenHash.DIRTY_OFFSET, 1);
+
+        final OffHeapFixedCapOpenHash reopened = OffHeapFixedCapOpenHash.map(file, 64, 8, 0L);
+        assertEquals(40, reopened.size());
+        assertEquals(40, reopened.stream().count());
+        assertEquals(0, reopened.buffer().getInt(OffHeapFixedCapOpenHash.DIRTY_OFFSET));
+        for (long key = 1; key <= 40; ++key) {
+            final int pos = reopened.find(key << 32);
+            assertEquals(key, reopened.getValue(pos));
+            reopened.drop(pos);
+            assertEquals(-1, reopened.find(key << 32));
+        }
+        assertEquals(0, reopened.size());
+    }
+
+    @Test(expected = IOException.class)
+    public void reopenIncompatible() throws IOException {
+        final Path file = folder.getRoot().toPath().resolve("table");
+        OffHeapFixedCapOpenHash.map(file, 64, 8, 0L);
+        OffHeapFixedCapOpenHash.map(file, 64, 8, -1L);
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2018 Vladimir Lysyy (mrbald@github)
+ * ALv2 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+package net.bobah.ufwj.hash;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/*
+ * @author Vladimir Lysyy (mrbald@github)
+ */
+public class PrimitiveFixedCapOpenHashTest {
+    @Test
+    public void longObj() {
+        final LongObjFixedCapOpenHash<String> hash = new LongObjFixedCapOpenHash<>(3, -1L);
+        assertEquals(4, hash.capacity());
+        assertEquals(-1, hash.find(0L));
+
+        // 0 is a regular key, all four collide into one cluster
+        for (long key = 0; key < 4; ++key) {
+            final int pos = hash.write(key << 2);
+            hash.setValue(pos, Long.toString(key));
+        }
+        assertEquals(-1, hash.write(42L));
+
+        for (long key = 0; key < 4; ++key) {
+            final int pos = hash.find(key << 2);
+            assertEquals(key << 2, hash.getKey(pos));
+            assertEquals(Long.toString(key), hash.getValue(pos));
+        }
+
+        hash.drop(hash.find(0L));
+        assertEquals(-1, hash.find(0L));
+        assertEquals(3, hash.stream().count());
+        for (long key = 1; key < 4; ++key) {
+            assertEquals(Long.toString(key), hash.getValue(hash.find(key << 2)));
+        }
+    }
+
+    @Test
+    public void longLong() {
+        final LongLongFixedCapOpenHash hash = new LongLongFixedCapOpenHash(1000, 0L);
+        assertEquals(1024, hash.capacity());
+
+        for (long key = 1; key <= 1000; ++key) {
+            hash.setValue(hash.write(key * 1024), key);
+        }
+        for (long key = 1; key <= 1000; ++key) {
+            assertEquals(key, hash.getValue(hash.find(key * 1024)));
+        }
+        assertEquals(-1, hash.find(1L));
+
+        final long[] batch = {1024L, 1L, 1000 * 1024L, 1001 * 1024L, 512 * 1024L};
+        final int[] positions = new int[batch.length];
+        assertEquals(3, hash.findAll(batch, positions));
+        for (int i = 0; i < batch.length; ++i) {
+            assertEquals(hash.find(batch[i]), positions[i]);
+        }
+
+        final long[] sum = {0L};
+        hash.forEach(pos -> sum[0] += hash.getValue(pos));
+        assertEquals(500500L, sum[0]);
+
+        int count = 0;
+        for (int pos = hash.first(); pos != -1; pos = hash.next(pos)) {
+            ++count;
+        }
+        assertEquals(1000, count);
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2018 Vladimir Lysyy (mrbald@github)
+ * ALv2 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+package net.bobah.ufwj.queue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.verify;
+
+/*
+ * @author Vladimir Lysyy (mrbald@github)
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class AdaptiveWatermarksTest {
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Mock
+    private Runnable onSuspend;
+
+    @Mock
+    private Runnable onResume;
+
+    @Test
+    public void littlesLaw() {
+        final WatermarkQueue<Integer> queue = new WatermarkQueue<>(500, 1000, 0L, onSuspend, onResume);
+        final WatermarkMetrics metrics = queue.enableMetrics(Integer.MAX_VALUE);
+        final AdaptiveWatermarks adaptive = new AdaptiveWatermarks(
+                metrics, queue::setWatermarks, 10, TimeUnit.MILLISECONDS, 10, 1000, 0.5);
+        assertEquals(1000L, adaptive.upperWatermark());
+
+        // 100 elements per 10 ms drained with a backlog, 100 fit in the 10 ms target
+        for (int i = 0; i < 200; ++i) {
+            queue.offer(i);
+        }
+        adaptive.update(1000 * MS);
+        drain(queue, 100);
+        adaptive.update(1010 * MS);
+        assertEquals(100L, adaptive.upperWatermark());
+        assertEquals(50L, adaptive.lowerWatermark());
+        assertEquals(10_000.0, adaptive.drainRate(), 1e-6);
+
+        // the move crosses the new upper watermark right away
+        verify(onSuspend).run();
+        assertEquals(true, queue.isProducerSuspended());
+
+        // a consumer which keeps up with the arrivals does not lower the watermarks
+        drain(queue, 100);
+        adaptive.update(1020 * MS);
+        assertEquals(100L, adaptive.upperWatermark());
+        verify(onResume).run();
+
+        // the consumer stalls, the watermarks fall to the minimum
+        for (int i = 0; i < 50; ++i) {
+            queue.offer(i);
+        }
+        for (int i = 0; i < 10; ++i) {
+            adaptive.update((1030 + i * 10) * MS);
+        }
+        assertEquals(10L, adaptive.upperWatermark());
+        assertEquals(true, queue.isProducerSuspended());
+    }
+
+    @Test
+    public void anyClockOrigin() {
+        final WatermarkQueue<Integer> queue = new WatermarkQueue<>(500, 1000, 0L, onSuspend, onResume);
+        final AdaptiveWatermarks adaptive = new AdaptiveWatermarks(queue.enableMetrics(Integer.MAX_VALUE),
+                queue::setWatermarks, 10, TimeUnit.MILLISECONDS, 10, 1000, 0.5);
+
+        // nanoTime may be negative or pass through zero
+        for (int i = 0; i < 200; ++i) {
+            queue.offer(i);
+        }
+        adaptive.update(-10 * MS);
+        drain(queue, 100);
+        adaptive.update(0L);
+        assertEquals(100L, adaptive.upperWatermark());
+        assertEquals(10_000.0, adaptive.drainRate(), 1e-6);
+    }
+
+    @Test
+    public void weighted() {
+        final WatermarkQueue<Integer> queue = new WatermarkQueue<>(new ArrayDeque<>(), 5000, 10000, x -> 10L, null,
+                0L, onSuspend, onResume, WaitStrategies.blocking(), WaitStrategies.blocking());
+        final WatermarkMetrics metrics = queue.enableMetrics(Integer.MAX_VALUE);
+        final AdaptiveWatermarks adaptive = new AdaptiveWatermarks(
+                metrics, queue::setWatermarks, 10, TimeUnit.MILLISECONDS, 10, 10000, 0.5);
+
+        // 100 elements of weight 10 per 10 ms, the watermarks are in the weight units
+        for (int i = 0; i < 200; ++i) {
+            queue.offer(i);
+        }
+        adaptive.update(1000 * MS);
+        drain(queue, 100);
+        adaptive.update(1010 * MS);
+        assertEquals(1000L, adaptive.upperWatermark());
+        assertEquals(100_000.0, adaptive.drainRate(), 1e-6);
+
+        // the 100 elements left weigh 1000
+        assertEquals(true, queue.isProducerSuspended());
+    }
+
+    @Test
+    public void staleSojourn() throws InterruptedException {
+        final WatermarkQueue<Integer> queue = new WatermarkQueue<>(500, 1000, 0L, onSuspend, onResume);
+        final WatermarkMetrics metrics = queue.enableMetrics(1);
+        final AdaptiveWatermarks adaptive = new AdaptiveWatermarks(
+                metrics, queue::setWatermarks, 10, TimeUnit.MILLISECONDS, 10, 1000, 0.5);
+
+        // only the first element is sampled, it waits longer than the target
+        for (int i = 0; i < 200; ++i) {
+            queue.offer(i);
+        }
+        adaptive.update(1000 * MS);
+        Thread.sleep(15);
+        drain(queue, 100);
+        adaptive.update(1010 * MS);
+        assertTrue(adaptive.upperWatermark() < 100L);
+
+        // no sample since, the old one does not hold the watermarks down
+        drain(queue, 100);
+        adaptive.update(1020 * MS);
+        assertEquals(100L, adaptive.upperWatermark());
+    }
+
+    @Test
+    public void tracker() {
+        final WatermarkTracker<Integer, Integer> tracker = WatermarkTracker.newMulti(
+                new LinkedBlockingQueue<>(), 5, 10, x -> x % 2, x -> {}, x -> {});
+        tracker.add(1);
+        tracker.add(3);
+        tracker.add(2);
+        assertEquals(false, tracker.isSuspended(1));
+
+        tracker.setWatermarks(0, 2);
+        assertEquals(true, tracker.isSuspended(1));
+        assertEquals(false, tracker.isSuspended(0));
+
+        tracker.setWatermarks(2, 4);
+        assertEquals(false, tracker.isSuspended(1));
+    }
+
+    @Test
+    public void ring() {
+        final RingWatermarkQueue<Integer> ring = RingWatermarkQueue.newSpsc(8, 2, 6, onSuspend, onResume);
+        ring.offer(1);
+        ring.offer(2);
+        ring.setWatermarks(0, 2);
+        verify(onSuspend).run();
+        ring.setWatermarks(2, 6);
+        verify(onResume).run();
+    }
+
+    // === helpers ===
+
+    private static void drain(WatermarkQueue<Integer> queue, int n) {
+        assertEquals(n, queue.drainTo(x -> {}, n));
+    }
+}
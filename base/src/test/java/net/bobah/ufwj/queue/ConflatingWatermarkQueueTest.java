@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2018 Vladimir Lysyy (mrbald@github)
+ * ALv2 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+package net.bobah.ufwj.queue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/*
+ * @author Vladimir Lysyy (mrbald@github)
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class ConflatingWatermarkQueueTest {
+    @Mock
+    private Runnable onSuspend;
+
+    @Mock
+    private Runnable onResume;
+
+    /*
+     * "<instrument>=<price>"
+     */
+    private ConflatingWatermarkQueue<String, String> newQueue(int maxKeys) {
+        return new ConflatingWatermarkQueue<>(maxKeys, s -> s.substring(0, s.indexOf('=')), 1, 3, 0L,
+                onSuspend, onResume);
+    }
+
+    @Test
+    public void conflation() {
+        final ConflatingWatermarkQueue<String, String> queue = newQueue(4);
+        assertEquals(4, queue.capacity());
+        assertNull(queue.poll());
+
+        queue.addAll(Arrays.asList("a=1", "b=1", "a=2", "c=1", "b=2", "a=3"));
+        assertEquals(3, queue.size());
+        assertEquals(3, queue.conflated());
+        assertEquals("a=3", queue.peek());
+
+        final List<String> snapshot = new ArrayList<>();
+        queue.iterator().forEachRemaining(snapshot::add);
+        assertEquals(Arrays.asList("a=3", "b=2", "c=1"), snapshot);
+
+        assertEquals("a=3", queue.poll());
+        queue.add("a=4");
+        queue.add("c=2");
+
+        final List<String> sink = new ArrayList<>();
+        assertEquals(3, queue.drainTo(sink::add, 10));
+        assertEquals(Arrays.asList("b=2", "c=2", "a=4"), sink);
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void watermarksOnKeys() {
+        final ConflatingWatermarkQueue<String, String> queue = newQueue(4);
+
+        for (int i = 0; i < 100; ++i) {
+            queue.add("a=" + i);
+            queue.add("b=" + i);
+        }
+        assertFalse(queue.isProducerSuspended());
+        verifyZeroInteractions(onSuspend);
+
+        queue.add("c=0");
+        assertTrue(queue.isProducerSuspended());
+        verify(onSuspend).run();
+
+        // the hash has room for more, the ring does not
+        queue.add("d=0");
+        assertFalse(queue.offer("e=0"));
+        assertTrue(queue.offer("d=1"));
+
+        queue.poll();
+        queue.poll();
+        verifyZeroInteractions(onResume);
+        queue.poll();
+        verify(onResume).run();
+        assertFalse(queue.isProducerSuspended());
+        assertEquals("d=1", queue.poll());
+    }
+
+    @Test
+    public void failedSink() {
+        final ConflatingWatermarkQueue<String, String> queue = newQueue(4);
+        queue.addAll(Arrays.asList("a=0", "b=0", "c=0"));
+        assertTrue(queue.isProducerSuspended());
+
+        // the element handed to a failing sink is gone, the producer is resumed on what is left
+        try {
+            queue.drainTo(s -> {
+                if (s.startsWith("b")) {
+                    throw new IllegalStateException();
+                }
+            }, 10);
+            fail();
+        } catch (IllegalStateException expected) {
+            assertEquals(1, queue.size());
+        }
+        verify(onResume).run();
+        assertFalse(queue.isProducerSuspended());
+
+        assertEquals("c=0", queue.poll());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void wrapsAround() {
+        final ConflatingWatermarkQueue<String, String> queue = newQueue(4);
+
+        for (int i = 0; i < 100; ++i) {
+            queue.add("k" + i % 7 + "=" + i);
+            queue.add("k" + (i + 3) % 7 + "=" + i);
+            assertEquals("k" + i % 7 + "=" + i, queue.poll());
+            assertEquals("k" + (i + 3) % 7 + "=" + i, queue.poll());
+        }
+        assertTrue(queue.isEmpty());
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2018 Vladimir Lysyy (mrbald@github)
+ * ALv2 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+package net.bobah.ufwj.queue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+
+/*
+ * @author Vladimir Lysyy (mrbald@github)
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class FairWatermarkTrackerTest {
+    @Mock
+    private IntConsumer onLower;
+
+    @Mock
+    private IntConsumer onUpper;
+
+    @Test
+    public void roundRobin() throws InterruptedException {
+        // source is the tens digit
+        final FairWatermarkTracker<Integer> fair
+                = FairWatermarkTracker.newRoundRobin(1, 3, x -> x / 10, 4, onLower, onUpper);
+
+        // a noisy source 0 ahead of the quiet sources 1 and 3
+        fair.addAll(Arrays.asList(0, 1, 2, 3, 4));
+        fair.add(10);
+        fair.add(30);
+        fair.add(31);
+        verify(onUpper).accept(0);
+        assertEquals(true, fair.isSourceSuspended(0));
+        assertEquals(false, fair.isSourceSuspended(1));
+        assertEquals(false, fair.isSourceSuspended(2));
+        assertEquals(5L, fair.depth(0));
+
+        final List<Integer> polled = new ArrayList<>();
+        for (Integer x; (x = fair.poll(0, TimeUnit.SECONDS)) != null; ) {
+            polled.add(x);
+        }
+        assertEquals(Arrays.asList(0, 10, 30, 1, 31, 2, 3, 4), polled);
+        assertEquals(0, fair.size());
+        verify(onLower).accept(0);
+        verifyNoMoreInteractions(onLower, onUpper);
+    }
+
+    @Test
+    public void deficitRoundRobin() {
+        // weight is the units digit, source is the tens digit
+        final FairWatermarkTracker<Integer> fair = FairWatermarkTracker.newDeficitRoundRobin(
+                10, 20, x -> x / 10, 2, x -> x % 10, 4L, null, onLower, onUpper);
+
+        fair.addAll(Arrays.asList(8, 8, 1, 1));
+        fair.addAll(Arrays.asList(12, 12, 12, 12));
+        assertEquals(18L, fair.depth(0));
+        assertEquals(8L, fair.depth(1));
+
+        // heavy elements of source 0 wait for the credit while source 1 gets its share of the weight
+        final List<Integer> drained = new ArrayList<>();
+        assertEquals(8, fair.drainTo(drained::add, 16));
+        assertEquals(Arrays.asList(12, 12, 8, 12, 12, 8, 1, 1), drained);
+
+        // an idle source can be retired, a busy one can not
+        fair.add(1);
+        assertEquals(false, fair.retireSource(0));
+        assertEquals(true, fair.retireSource(1));
+        assertEquals(1, fair.drainTo(x -> {}, 16));
+        assertEquals(true, fair.retireSource(0));
+        assertEquals(0L, fair.depth(0));
+    }
+
+    @Test
+    public void partialBatchAndFailedSink() {
+        final WatermarkBudget budget = new WatermarkBudget(40, 100, () -> {}, () -> {});
+        final FairWatermarkTracker<Integer> fair = FairWatermarkTracker.newDeficitRoundRobin(
+                100, 1000, x -> {
+                    if (x < 0) {
+                        throw new IllegalArgumentException();
+                    }
+                    return x / 10;
+                }, 2, x -> x % 10, 10L, budget, onLower, onUpper);
+
+        // the prefix before the element the classifier rejects is enqueued and accounted for
+        try {
+            fair.addAll(Arrays.asList(1, 12, -1, 3));
+            fail();
+        } catch (IllegalArgumentException expected) {
+            assertEquals(2, fair.size());
+            assertEquals(3L, budget.used());
+        }
+
+        // the element handed to a failing sink is gone and released
+        try {
+            fair.drainTo(x -> {
+                throw new IllegalStateException();
+            }, 10);
+            fail();
+        } catch (IllegalStateException expected) {
+            assertEquals(1, fair.size());
+            assertEquals(2L, budget.used());
+        }
+
+        assertEquals(1, fair.drainTo(x -> assertEquals(12, x.intValue()), 10));
+        assertEquals(0L, budget.used());
+        verifyNoMoreInteractions(onLower, onUpper);
+    }
+
+    @Test
+    public void waits() throws InterruptedException {
+        final FairWatermarkTracker<Integer> fair
+                = FairWatermarkTracker.newRoundRobin(1, 3, x -> 0, 1, onLower, onUpper);
+        assertNull(fair.poll(1, TimeUnit.MILLISECONDS));
+
+        final Thread producer = new Thread(() -> fair.add(42));
+        producer.start();
+        assertEquals(42, fair.poll(1, TimeUnit.MINUTES).intValue());
+        producer.join();
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2018 Vladimir Lysyy (mrbald@github)
+ * ALv2 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+package net.bobah.ufwj.queue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/*
+ * @author Vladimir Lysyy (mrbald@github)
+ */
+public class JournalQueueTest {
+    private static final Serializer<String> UTF8 = new Serializer<String>() {
+        @Override
+        public void write(String e, ByteBuffer buffer) {
+            buffer.put(e.getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public String read(ByteBuffer buffer) {
+            final byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void rollAndReclaim() throws IOException {
+        final Path dir = folder.getRoot().toPath();
+        final JournalQueue<String> journal = JournalQueue.open(dir, 64, UTF8);
+        assertNull(journal.poll());
+
+        // 10 records of 4 + 8 bytes, 5 per segment
+        for (int i = 0; i < 10; ++i) {
+            journal.offer(String.format("message%d", i));
+        }
+        assertEquals(10, journal.size());
+        assertEquals(2, segments(dir));
+        assertEquals("message0", journal.peek());
+        assertEquals(Arrays.asList("message0", "message1"), new ArrayList<>(journal).subList(0, 2));
+
+        for (int i = 0; i < 6; ++i) {
+            assertEquals(String.format("message%d", i), journal.poll());
+        }
+        assertEquals(1, segments(dir));
+        assertEquals(4, journal.size());
+
+        // the empty string is a valid element
+        journal.offer("");
+        for (int i = 6; i < 10; ++i) {
+            assertEquals(String.format("message%d", i), journal.poll());
+        }
+        assertEquals("", journal.poll());
+        assertNull(journal.poll());
+    }
+
+    @Test
+    public void close() throws IOException {
+        final Path dir = folder.getRoot().toPath();
+        final JournalQueue<String> journal = JournalQueue.open(dir, 64, UTF8);
+        for (int i = 0; i < 10; ++i) {
+            journal.offer(String.format("message%d", i));
+        }
+        journal.close();
+        journal.close();
+
+        try {
+            journal.poll();
+            fail();
+        } catch (IllegalStateException expected) {
+            assertEquals(0, journal.size());
+        }
+
+        final JournalQueue<String> reopened = JournalQueue.open(dir, 64, UTF8);
+        assertEquals(10, reopened.size());
+        assertEquals("message0", reopened.poll());
+        reopened.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tooLarge() throws IOException {
+        JournalQueue.open(folder.getRoot().toPath(), 16, UTF8).offer("does not fit in 16 bytes");
+    }
+
+    @Test
+    public void replay() throws IOException {
+        final Path dir = folder.getRoot().toPath();
+
+        final JournalQueue<String> journal = JournalQueue.open(dir, 128, UTF8);
+        for (int i = 0; i < 100; ++i) {
+            journal.offer(Integer.toString(i));
+        }
+        for (int i = 0; i < 42; ++i) {
+            journal.poll();
+        }
+        journal.close();
+
+        final JournalQueue<String> reopened = JournalQueue.open(dir, 128, UTF8);
+        assertEquals(58, reopened.size());
+        reopened.offer("100");
+
+        final List<String> replayed = new ArrayList<>();
+        for (String e; (e = reopened.poll()) != null; ) {
+            replayed.add(e);
+        }
+        assertEquals(59, replayed.size());
+        assertEquals("42", replayed.get(0));
+        assertEquals("100", replayed.get(58));
+    }
+
+    @Test
+    public void watermarks() throws IOException {
+        final Path dir = folder.getRoot().toPath();
+        final Runnable onSuspend = mock(Runnable.class);
+        final Runnable onResume = mock(Runnable.class);
+
+        final JournalQueue<String> journal = JournalQueue.open(dir, 1024, UTF8);
+        final WatermarkQueue<String> queue = new WatermarkQueue<>(journal, 1, 3, 0,
+                onSuspend, onResume, WaitStrategies.blocking(), WaitStrategies.blocking());
+        for (int i = 0; i < 3; ++i) {
+            queue.offer(Integer.toString(i));
+        }
+        verify(onSuspend).run();
+        journal.close();
+
+        // a restart with the backlog above the upper watermark suspends the producer right away
+        final WatermarkQueue<String> restarted = new WatermarkQueue<>(JournalQueue.open(dir, 1024, UTF8), 1, 3, 0,
+                onSuspend, onResume, WaitStrategies.blocking(), WaitStrategies.blocking());
+        verify(onSuspend, times(2)).run();
+        assertTrue(restarted.isProducerSuspended());
+
+        assertEquals("0", restarted.poll());
+        assertEquals("1", restarted.poll());
+        verify(onResume).run();
+    }
+
+    // === helpers ===
+
+    private static long segments(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(file -> file.toString().endsWith(".seg")).count();
+        }
+    }
+}
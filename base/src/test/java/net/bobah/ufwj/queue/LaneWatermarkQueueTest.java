@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2018 Vladimir Lysyy (mrbald@github)
+ * ALv2 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+package net.bobah.ufwj.queue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/*
+ * @author Vladimir Lysyy (mrbald@github)
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class LaneWatermarkQueueTest {
+    private static final int CONTROL = 0;
+    private static final int DATA = 1;
+
+    @Mock
+    private IntConsumer onSuspend;
+
+    @Mock
+    private IntConsumer onResume;
+
+    /*
+     * negative values are control messages
+     */
+    private LaneWatermarkQueue<Integer> newQueue() {
+        return new LaneWatermarkQueue<>(x -> x < 0 ? CONTROL : DATA,
+                new long[]{0, 1}, new long[]{LaneWatermarkQueue.EXEMPT, 3}, 0L, onSuspend, onResume);
+    }
+
+    @Test
+    public void priority() {
+        final LaneWatermarkQueue<Integer> queue = newQueue();
+        assertEquals(2, queue.lanes());
+        assertNull(queue.poll());
+
+        queue.addAll(Arrays.asList(1, 2, -1, 3, -2));
+        assertEquals(5, queue.size());
+        assertEquals(2, queue.size(CONTROL));
+        assertEquals(-1, queue.peek().intValue());
+
+        final List<Integer> sink = new ArrayList<>();
+        queue.iterator().forEachRemaining(sink::add);
+        assertEquals(Arrays.asList(-1, -2, 1, 2, 3), sink);
+
+        assertEquals(-1, queue.poll().intValue());
+        queue.add(-3);
+        sink.clear();
+        assertEquals(3, queue.drainTo(sink::add, 3));
+        assertEquals(Arrays.asList(-2, -3, 1), sink);
+        assertEquals(2, queue.poll().intValue());
+        assertEquals(3, queue.poll().intValue());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void watermarksPerLane() throws InterruptedException {
+        final LaneWatermarkQueue<Integer> queue = newQueue();
+
+        queue.addAll(Arrays.asList(1, 2, 3));
+        assertTrue(queue.isLaneSuspended(DATA));
+        assertTrue(queue.isSuspended(4));
+        verify(onSuspend).accept(DATA);
+
+        // the control lane bypasses the suspended data lane and is never suspended itself
+        for (int i = 1; i <= 100; ++i) {
+            queue.add(-i);
+        }
+        assertFalse(queue.isLaneSuspended(CONTROL));
+        assertTrue(queue.awaitResume(CONTROL, 0L, TimeUnit.NANOSECONDS));
+        assertFalse(queue.awaitResume(DATA, 1L, TimeUnit.MILLISECONDS));
+
+        assertEquals(100, queue.drainTo(x -> assertTrue(x < 0), 100));
+        assertTrue(queue.isLaneSuspended(DATA));
+
+        queue.poll();
+        verify(onResume, never()).accept(anyInt());
+        queue.poll();
+        verify(onResume).accept(DATA);
+        assertTrue(queue.awaitResume(DATA, 0L, TimeUnit.NANOSECONDS));
+        verifyNoMoreInteractions(onSuspend, onResume);
+
+        queue.setWatermarks(DATA, 0, 1);
+        verify(onSuspend, times(2)).accept(DATA);
+    }
+
+    @Test
+    public void failedSink() {
+        final LaneWatermarkQueue<Integer> queue = newQueue();
+        queue.addAll(Arrays.asList(-1, 1, 2, 3));
+        assertTrue(queue.isLaneSuspended(DATA));
+
+        // the element handed to a failing sink is gone, the lane is resumed on what is left
+        try {
+            queue.drainTo(x -> {
+                if (x == 2) {
+                    throw new IllegalStateException();
+                }
+            }, 10);
+            fail();
+        } catch (IllegalStateException expected) {
+            assertEquals(1, queue.size());
+            assertEquals(0, queue.size(CONTROL));
+        }
+        verify(onResume).accept(DATA);
+        assertFalse(queue.isLaneSuspended(DATA));
+
+        assertEquals(3, queue.poll().intValue());
+        assertTrue(queue.isEmpty());
+    }
+}
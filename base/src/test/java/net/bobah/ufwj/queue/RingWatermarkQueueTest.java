@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2018 Vladimir Lysyy (mrbald@github)
+ * ALv2 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+package net.bobah.ufwj.queue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/*
+ * @author Vladimir Lysyy (mrbald@github)
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class RingWatermarkQueueTest {
+    @Mock
+    private Runnable onSuspend;
+
+    @Mock
+    private Runnable onResume;
+
+    @Test
+    public void basics() {
+        final RingWatermarkQueue<Integer> queue = RingWatermarkQueue.newSpsc(3, 1, 3, onSuspend, onResume);
+        assertEquals(4, queue.capacity());
+        assertNull(queue.poll());
+
+        for (int i = 0; i < 4; ++i) {
+            assertTrue(queue.offer(i));
+        }
+        assertFalse(queue.offer(4));
+        assertEquals(4, queue.size());
+        assertEquals(0, queue.peek().intValue());
+
+        for (int i = 0; i < 4; ++i) {
+            assertEquals(i, queue.poll().intValue());
+        }
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void watermarksSpsc() {
+        checkWatermarks(RingWatermarkQueue.newSpsc(4, 1, 3, onSuspend, onResume));
+    }
+
+    @Test
+    public void watermarksMpsc() {
+        checkWatermarks(RingWatermarkQueue.newMpsc(4, 1, 3, onSuspend, onResume));
+    }
+
+    @Test
+    public void batches() {
+        final RingWatermarkQueue<Integer> queue = RingWatermarkQueue.newMpsc(4, 1, 3, onSuspend, onResume);
+        final List<Integer> sink = new ArrayList<>();
+
+        assertEquals(4, queue.offerAll(new Integer[]{0, 1, 2, 3, 4}));
+        verifyState(queue, true, false, true);
+
+        assertEquals(3, queue.drainTo(sink::add, 3));
+        assertEquals(Arrays.asList(0, 1, 2), sink);
+        verifyState(queue, false, true, false);
+    }
+
+    @Test
+    public void blockingWaits() throws InterruptedException {
+        handOver(RingWatermarkQueue.newSpsc(4, 1, 3, onSuspend, onResume,
+                WaitStrategies.blocking(), WaitStrategies.blocking()));
+    }
+
+    @Test
+    public void spinThenParkWaits() throws InterruptedException {
+        handOver(RingWatermarkQueue.newMpsc(4, 1, 3, onSuspend, onResume));
+    }
+
+    @Test
+    public void multipleProducers() throws InterruptedException {
+        final int producers = 4;
+        final int perProducer = 100_000;
+
+        final AtomicInteger suspends = new AtomicInteger();
+        final AtomicInteger resumes = new AtomicInteger();
+        final RingWatermarkQueue<long[]> queue = RingWatermarkQueue.newMpsc(
+                1024, 100, 900, suspends::incrementAndGet, resumes::incrementAndGet);
+
+        final Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; ++p) {
+            final int producer = p;
+            threads[p] = new Thread(() -> {
+                for (int i = 0; i < perProducer; ++i) {
+                    final long[] e = {producer, i};
+                    while (queue.isProducerSuspended() || !queue.offer(e)) {
+                        Thread.yield();
+                    }
+                }
+            });
+            threads[p].start();
+        }
+
+        final int[] expected = new int[producers];
+        for (int received = 0; received < producers * perProducer; ) {
+            final long[] e = queue.poll();
+            if (e == null) {
+                Thread.yield();
+                continue;
+            }
+            assertEquals(expected[(int) e[0]]++, e[1]);
+            ++received;
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertTrue(queue.isEmpty());
+        assertFalse(queue.isProducerSuspended());
+        assertEquals(suspends.get(), resumes.get());
+    }
+
+    // === helpers ===
+
+    /*
+     * The consumer waits on an empty queue, the producer waits to be resumed
+     */
+    private static void handOver(RingWatermarkQueue<Integer> queue) throws InterruptedException {
+        assertNull(queue.poll(1, TimeUnit.MILLISECONDS));
+
+        final Thread producer = new Thread(() -> {
+            try {
+                for (int i = 0; i < 100; ++i) {
+                    while (!queue.awaitResume(1, TimeUnit.DAYS) || !queue.offer(i)) {
+                        Thread.yield();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        producer.start();
+
+        for (int i = 0; i < 100; ++i) {
+            assertEquals(i, queue.poll(1, TimeUnit.DAYS).intValue());
+        }
+        producer.join();
+    }
+
+    /*
+     * Same scenario as WatermarkTrackerTest.watermarks
+     */
+    private void checkWatermarks(RingWatermarkQueue<Integer> queue) {
+        queue.offer(1);
+        verifyState(queue, false, false, false);
+
+        queue.poll();
+        verifyState(queue, false, false, false);
+
+        queue.offer(1);
+        queue.offer(2);
+        verifyState(queue, false, false, false);
+
+        queue.offer(3);
+        verifyState(queue, true, false, true);
+
+        queue.poll();
+        verifyState(queue, true, false, false);
+
+        queue.offer(3);
+        verifyState(queue, true, false, false);
+
+        queue.poll();
+        verifyState(queue, true, false, false);
+
+        queue.poll();
+        verifyState(queue, false, true, false);
+
+        queue.poll();
+        verifyState(queue, false, false, false);
+    }
+
+    private void verifyState(RingWatermarkQueue<Integer> queue, boolean suspended, boolean resumed, boolean suspendCalled) {
+        assertEquals(suspended, queue.isProducerSuspended());
+        verify(onResume, times(resumed ? 1 : 0)).run();
+        verify(onSuspend, times(suspendCalled ? 1 : 0)).run();
+        reset(onSuspend, onResume);
+    }
+}
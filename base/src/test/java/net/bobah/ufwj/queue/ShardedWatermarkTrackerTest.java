@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2018 Vladimir Lysyy (mrbald@github)
+ * ALv2 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+package net.bobah.ufwj.queue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.verify;
+
+/*
+ * @author Vladimir Lysyy (mrbald@github)
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class ShardedWatermarkTrackerTest {
+    @Mock
+    private Consumer<Integer> onLower;
+
+    @Mock
+    private Consumer<Integer> onUpper;
+
+    @Test
+    public void watermarks() throws InterruptedException {
+        // payload is source * 1000 + sequence
+        final ShardedWatermarkTracker<Integer, Integer> sharded = ShardedWatermarkTracker.newSharded(
+                4, LinkedBlockingQueue::new, 1, 3, x -> x / 1000, onLower, onUpper);
+        final WatermarkMetrics metrics = sharded.enableMetrics(1);
+
+        int source = 1;
+        while (sharded.shardOf(source) == sharded.shardOf(0)) {
+            ++source;
+        }
+        for (int i = 0; i < 3; ++i) {
+            sharded.add(i);
+        }
+        sharded.add(source * 1000);
+        verify(onUpper).accept(0);
+        assertEquals(true, sharded.isSuspended(0));
+        assertEquals(false, sharded.isSuspended(source));
+        assertEquals(true, sharded.isAnySuspended());
+        assertEquals(4, sharded.size());
+        assertEquals(3L, metrics.getSourceDepths().get("0").longValue());
+        assertEquals(4L, metrics.getDepth());
+
+        // each source is in its own shard queue in order
+        final WatermarkTracker<Integer, Integer> shard = sharded.shard(sharded.shardOf(0));
+        for (int i = 0; i < 3; ++i) {
+            assertEquals(i, shard.poll(0, TimeUnit.SECONDS).intValue());
+        }
+        verify(onLower).accept(0);
+        assertEquals(false, sharded.isAnySuspended());
+        assertEquals(source * 1000, sharded.shard(sharded.shardOf(source)).poll(0, TimeUnit.SECONDS).intValue());
+        assertEquals(4L, metrics.getDequeued());
+        assertEquals(2L, metrics.getCrossings());
+    }
+
+    @Test
+    public void consumers() throws InterruptedException {
+        final int shards = 4;
+        final int sources = 16;
+        final int perSource = 10_000;
+        final ShardedWatermarkTracker<Integer, Integer> sharded = ShardedWatermarkTracker.newSharded(
+                shards, LinkedBlockingQueue::new, 100, 1000, x -> x % sources, x -> {}, x -> {});
+
+        final Map<Integer, Integer> last = new ConcurrentHashMap<>();
+        final AtomicInteger consumed = new AtomicInteger();
+        final AtomicInteger reordered = new AtomicInteger();
+        final List<Thread> consumers = new ArrayList<>();
+        for (int shard = 0; shard < shards; ++shard) {
+            consumers.add(new Thread(sharded.consumer(shard, x -> {
+                final Integer was = last.put(x % sources, x);
+                if (was != null && was > x) {
+                    reordered.incrementAndGet();
+                }
+                consumed.incrementAndGet();
+            }, 16)));
+        }
+        consumers.forEach(Thread::start);
+
+        for (int i = 0; i < sources * perSource; ++i) {
+            while (sharded.isSuspended(i % sources)) {
+                Thread.yield();
+            }
+            sharded.add(i);
+        }
+
+        final long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(1);
+        while (consumed.get() != sources * perSource && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        for (Thread consumer : consumers) {
+            consumer.interrupt();
+            consumer.join();
+        }
+
+        assertEquals(sources * perSource, consumed.get());
+        assertEquals(0, reordered.get());
+        assertEquals(0, sharded.size());
+    }
+
+    @Test
+    public void batches() {
+        // payload is source * 1000 + sequence
+        final ShardedWatermarkTracker<Integer, Integer> sharded = ShardedWatermarkTracker.newSharded(
+                4, LinkedBlockingQueue::new, 1, 3, x -> x / 1000, onLower, onUpper);
+        int source = 1;
+        while (sharded.shardOf(source) == sharded.shardOf(0)) {
+            ++source;
+        }
+
+        sharded.addAll(Arrays.asList(0, source * 1000, 1, source * 1000 + 1, 2));
+        verify(onUpper).accept(0);
+        assertEquals(true, sharded.isSuspended(0));
+        assertEquals(false, sharded.isSuspended(source));
+        assertEquals(5, sharded.size());
+
+        // each shard got its payloads in order
+        final List<Integer> polled = new ArrayList<>();
+        sharded.shard(sharded.shardOf(0)).drainTo(polled::add, 10);
+        sharded.shard(sharded.shardOf(source)).drainTo(polled::add, 10);
+        assertEquals(Arrays.asList(0, 1, 2, source * 1000, source * 1000 + 1), polled);
+        verify(onLower).accept(0);
+    }
+
+    @Test
+    public void spread() {
+        final ShardedWatermarkTracker<Integer, Integer> sharded = ShardedWatermarkTracker.newSharded(
+                4, LinkedBlockingQueue::new, 1, 3, x -> x, x -> {}, x -> {});
+        final int[] perShard = new int[sharded.shards()];
+        for (int source = 0; source < 1000; ++source) {
+            ++perShard[sharded.shardOf(source)];
+        }
+        for (int n : perShard) {
+            assertTrue(n > 150);
+        }
+        assertNotEquals(sharded.shardOf(0), sharded.shardOf(1));
+    }
+}
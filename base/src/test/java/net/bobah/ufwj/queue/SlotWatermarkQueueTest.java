@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2018 Vladimir Lysyy (mrbald@github)
+ * ALv2 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+package net.bobah.ufwj.queue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/*
+ * @author Vladimir Lysyy (mrbald@github)
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class SlotWatermarkQueueTest {
+    @Mock
+    private Runnable onSuspend;
+
+    @Mock
+    private Runnable onResume;
+
+    private static final class Event {
+        long producer;
+        long value;
+    }
+
+    @Test
+    public void slotsAreReused() {
+        final SlotWatermarkQueue<Event> queue = SlotWatermarkQueue.newMpsc(3, 1, 3, Event::new, onSuspend, onResume);
+        assertEquals(4, queue.capacity());
+
+        final Map<Event, Boolean> seen = new IdentityHashMap<>();
+        final List<Long> values = new ArrayList<>();
+        for (int round = 0; round < 3; ++round) {
+            for (long i = 0; i < 4; ++i) {
+                assertTrue(queue.offer((e, v) -> e.value = v, round * 4 + i));
+            }
+            assertFalse(queue.offer((e, v) -> e.value = v, -1L));
+            verifyState(queue, true, false, true);
+
+            assertEquals(4, queue.drainTo(e -> {
+                seen.put(e, true);
+                values.add(e.value);
+            }, 10));
+            verifyState(queue, false, true, false);
+        }
+
+        assertEquals(4, seen.size());
+        assertEquals(12, values.size());
+        for (int i = 0; i < 12; ++i) {
+            assertEquals(i, values.get(i).intValue());
+        }
+    }
+
+    @Test
+    public void outOfOrderPublish() {
+        final SlotWatermarkQueue<Event> queue = SlotWatermarkQueue.newMpsc(4, 1, 3, Event::new, onSuspend, onResume);
+        final List<Long> values = new ArrayList<>();
+
+        final long first = queue.claim();
+        final long second = queue.claim();
+        queue.get(second).value = 2;
+        queue.publish(second);
+        assertEquals(0, queue.drainTo(e -> values.add(e.value), 10));
+        assertEquals(2, queue.size());
+
+        queue.get(first).value = 1;
+        queue.publish(first);
+        assertEquals(2, queue.drainTo(e -> values.add(e.value), 10));
+        assertEquals(Arrays.asList(1L, 2L), values);
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void multipleProducers() throws InterruptedException {
+        final int producers = 4;
+        final int perProducer = 100_000;
+
+        final SlotWatermarkQueue<Event> queue = SlotWatermarkQueue.newMpsc(
+                1024, 100, 900, Event::new, () -> {}, () -> {});
+
+        final Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; ++p) {
+            final long producer = p;
+            threads[p] = new Thread(() -> {
+                for (long i = 0; i < perProducer; ++i) {
+                    long sequence;
+                    while (queue.isProducerSuspended() || (sequence = queue.claim()) < 0L) {
+                        Thread.yield();
+                    }
+                    final Event e = queue.get(sequence);
+                    e.producer = producer;
+                    e.value = i;
+                    queue.publish(sequence);
+                }
+            });
+            threads[p].start();
+        }
+
+        final long[] expected = new long[producers];
+        for (int received = 0; received < producers * perProducer; ) {
+            final int n = queue.drainTo(e -> assertEquals(expected[(int) e.producer]++, e.value), 64);
+            if (n == 0) {
+                Thread.yield();
+            }
+            received += n;
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertTrue(queue.isEmpty());
+        assertFalse(queue.isProducerSuspended());
+    }
+
+    // === helpers ===
+
+    private void verifyState(SlotWatermarkQueue<Event> queue, boolean suspended, boolean resumed, boolean suspendCalled) {
+        assertEquals(suspended, queue.isProducerSuspended());
+        verify(onResume, times(resumed ? 1 : 0)).run();
+        verify(onSuspend, times(suspendCalled ? 1 : 0)).run();
+        reset(onSuspend, onResume);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2018 Vladimir Lysyy (mrbald@github)
+ * ALv2 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+package net.bobah.ufwj.queue;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/*
+ * @author Vladimir Lysyy (mrbald@github)
+ */
+public class WaitStrategiesTest {
+    private static final long MINUTE = TimeUnit.MINUTES.toNanos(1);
+
+    @Test
+    public void wakesUp() throws InterruptedException {
+        for (WaitStrategy strategy : strategies()) {
+            final AtomicBoolean ready = new AtomicBoolean(false);
+            final Thread signaller = new Thread(() -> {
+                sleep(10);
+                ready.set(true);
+                strategy.signal();
+            });
+            signaller.start();
+            assertEquals(true, strategy.await(ready::get, MINUTE));
+            signaller.join();
+
+            // the condition holding up front does not wait even with no time left
+            assertEquals(true, strategy.await(ready::get, 0L));
+        }
+    }
+
+    @Test
+    public void timesOut() throws InterruptedException {
+        for (WaitStrategy strategy : strategies()) {
+            assertEquals(false, strategy.await(() -> false, 0L));
+            assertEquals(false, strategy.await(() -> false, -1L));
+
+            final long start = System.nanoTime();
+            assertEquals(false, strategy.await(() -> false, TimeUnit.MILLISECONDS.toNanos(5)));
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(5));
+        }
+    }
+
+    @Test
+    public void interrupted() throws InterruptedException {
+        for (WaitStrategy strategy : strategies()) {
+            // interrupted before the wait
+            Thread.currentThread().interrupt();
+            try {
+                strategy.await(() -> false, MINUTE);
+                fail();
+            } catch (InterruptedException expected) {
+                assertEquals(false, Thread.currentThread().isInterrupted());
+            }
+
+            // interrupted while waiting
+            final AtomicReference<Throwable> thrown = new AtomicReference<>();
+            final Thread waiter = new Thread(() -> {
+                try {
+                    strategy.await(() -> false, MINUTE);
+                } catch (Throwable e) {
+                    thrown.set(e);
+                }
+            });
+            waiter.start();
+            sleep(10);
+            waiter.interrupt();
+            waiter.join(TimeUnit.MINUTES.toMillis(1));
+            assertEquals(false, waiter.isAlive());
+            assertTrue(thrown.get() instanceof InterruptedException);
+        }
+    }
+
+    // === helpers ===
+
+    private static List<WaitStrategy> strategies() {
+        return Arrays.asList(
+                WaitStrategies.busySpin(),
+                WaitStrategies.spinThenYield(10),
+                WaitStrategies.spinThenPark(10, 10, TimeUnit.MICROSECONDS.toNanos(1)),
+                WaitStrategies.spinThenPark(),
+                WaitStrategies.blocking());
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
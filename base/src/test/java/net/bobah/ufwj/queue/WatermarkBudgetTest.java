@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2018 Vladimir Lysyy (mrbald@github)
+ * ALv2 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+package net.bobah.ufwj.queue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+
+/*
+ * @author Vladimir Lysyy (mrbald@github)
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class WatermarkBudgetTest {
+    @Mock
+    private Runnable onExhausted;
+
+    @Mock
+    private Runnable onReplenished;
+
+    @Mock
+    private Runnable onSuspend;
+
+    @Mock
+    private Runnable onResume;
+
+    @Mock
+    private WaitStrategy producerWait;
+
+    @Test
+    public void sharedBudget() throws InterruptedException {
+        final WatermarkBudget budget = new WatermarkBudget(40, 100, onExhausted, onReplenished);
+
+        // byte size watermarks, each participant alone stays well below its own upper watermark
+        final WatermarkQueue<String> queue = new WatermarkQueue<>(new ArrayDeque<>(), 100, 1000,
+                String::length, budget, 0, onSuspend, onResume,
+                WaitStrategies.blocking(), WaitStrategies.blocking());
+        final WatermarkTracker<String, Void> tracker = WatermarkTracker.newMono(new LinkedBlockingQueue<>(),
+                100, 1000, String::length, budget, onSuspend, onResume);
+
+        queue.offer(bytes(60));
+        assertEquals(60L, queue.weight());
+        assertEquals(false, queue.isProducerSuspended());
+
+        tracker.add(bytes(40));
+        assertEquals(100L, budget.used());
+        verify(onExhausted).run();
+        assertEquals(true, queue.isProducerSuspended());
+        assertEquals(true, tracker.isSuspended());
+
+        // still above the lower watermark of the budget
+        assertEquals(40, tracker.poll(0, TimeUnit.SECONDS).length());
+        assertEquals(true, queue.isProducerSuspended());
+
+        // the queue consumer replenishes the budget and wakes up the suspended producers
+        assertEquals(60, queue.poll().length());
+        assertEquals(0L, budget.used());
+        verify(onReplenished).run();
+        assertEquals(false, queue.isProducerSuspended());
+        assertEquals(false, tracker.isSuspended());
+        assertEquals(true, queue.awaitResume(0, TimeUnit.SECONDS));
+
+        verifyNoMoreInteractions(onExhausted, onReplenished, onSuspend, onResume);
+    }
+
+    @Test
+    public void detach() {
+        final WatermarkBudget budget = new WatermarkBudget(40, 100, onExhausted, onReplenished);
+        final WatermarkQueue<String> queue = new WatermarkQueue<>(new ArrayDeque<>(), 100, 1000,
+                String::length, budget, 0, onSuspend, onResume,
+                WaitStrategies.blocking(), producerWait);
+
+        queue.offer(bytes(100));
+        queue.poll();
+        verify(onReplenished).run();
+        verify(producerWait).signal();
+
+        // the budget no longer wakes up the producers of the detached queue
+        queue.detach();
+        queue.offer(bytes(100));
+        queue.poll();
+        verify(onReplenished, times(2)).run();
+        verify(producerWait).signal();
+    }
+
+    @Test
+    public void partialBatchAndFailedSink() {
+        final WatermarkBudget budget = new WatermarkBudget(40, 100, onExhausted, onReplenished);
+        final WatermarkQueue<String> queue = new WatermarkQueue<>(new ArrayBlockingQueue<>(2), 100, 1000,
+                String::length, budget, 0, onSuspend, onResume,
+                WaitStrategies.blocking(), WaitStrategies.blocking());
+
+        // only the prefix the backing queue takes is acquired from the budget
+        assertEquals(2, queue.offerAll(Arrays.asList(bytes(10), bytes(20), bytes(30))));
+        assertEquals(30L, budget.used());
+
+        // the element handed to a failing sink is released
+        try {
+            queue.drainTo(e -> {
+                throw new IllegalStateException();
+            }, 2);
+            fail();
+        } catch (IllegalStateException expected) {
+            assertEquals(20L, budget.used());
+        }
+
+        queue.poll();
+        assertEquals(0L, budget.used());
+        verifyNoMoreInteractions(onExhausted, onReplenished, onSuspend, onResume);
+    }
+
+    // === helpers ===
+
+    private static String bytes(int n) {
+        return new String(new char[n]);
+    }
+}
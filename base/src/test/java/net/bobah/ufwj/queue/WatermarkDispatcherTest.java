@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2018 Vladimir Lysyy (mrbald@github)
+ * ALv2 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+package net.bobah.ufwj.queue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+/*
+ * @author Vladimir Lysyy (mrbald@github)
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class WatermarkDispatcherTest {
+    @Mock
+    private Runnable onLower;
+
+    @Mock
+    private Runnable onUpper;
+
+    private final Queue<Runnable> tasks = new ArrayDeque<>();
+
+    private final WatermarkDispatcher dispatcher = new WatermarkDispatcher(tasks::add);
+
+    @Test
+    public void coalesces() {
+        final WatermarkDispatcher.Channel channel = dispatcher.channel(onLower, onUpper);
+
+        // cancelled out before the delivery
+        channel.upperCrossed();
+        channel.lowerCrossed();
+        assertEquals(1, tasks.size());
+        runTasks();
+        verifyZeroInteractions(onLower, onUpper);
+
+        // only the latest state is delivered
+        channel.upperCrossed();
+        channel.lowerCrossed();
+        channel.upperCrossed();
+        assertEquals(true, channel.isSuspended());
+        runTasks();
+        verify(onUpper).run();
+
+        channel.lowerCrossed();
+        runTasks();
+        verify(onLower).run();
+        verifyNoMoreInteractions(onLower, onUpper);
+    }
+
+    @Test
+    public void rejected() {
+        final AtomicInteger rejections = new AtomicInteger(1);
+        final WatermarkDispatcher rejecting = new WatermarkDispatcher(task -> {
+            if (rejections.getAndDecrement() > 0) {
+                throw new RejectedExecutionException();
+            }
+            tasks.add(task);
+        });
+        final WatermarkDispatcher.Channel channel = rejecting.channel(onLower, onUpper);
+
+        try {
+            channel.upperCrossed();
+            fail();
+        } catch (RejectedExecutionException expected) {
+            assertEquals(true, channel.isSuspended());
+        }
+
+        // not left scheduled, the next crossing submits the channel and the latest state is delivered
+        channel.lowerCrossed();
+        channel.upperCrossed();
+        assertEquals(1, tasks.size());
+        runTasks();
+        verify(onUpper).run();
+        verifyNoMoreInteractions(onLower, onUpper);
+    }
+
+    @Test
+    public void offLock() throws InterruptedException {
+        final WatermarkDispatcher.Channel channel = dispatcher.channel(onLower, onUpper);
+        final WatermarkQueue<Integer> queue = new WatermarkQueue<>(1, 3, 0L,
+                channel::upperCrossed, channel::lowerCrossed);
+
+        for (int i = 0; i < 3; ++i) {
+            queue.offer(i);
+        }
+        assertEquals(true, queue.isProducerSuspended());
+        verifyZeroInteractions(onUpper);
+
+        runTasks();
+        verify(onUpper).run();
+
+        queue.poll();
+        queue.poll();
+        runTasks();
+        final InOrder inOrder = inOrder(onUpper, onLower);
+        inOrder.verify(onUpper).run();
+        inOrder.verify(onLower).run();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void perSource() {
+        final Consumer<String> onLowerKeyed = org.mockito.Mockito.mock(Consumer.class);
+        final Consumer<String> onUpperKeyed = org.mockito.Mockito.mock(Consumer.class);
+        final WatermarkDispatcher.KeyedChannels<String> keyed = dispatcher.keyed(onLowerKeyed, onUpperKeyed);
+
+        keyed.upperCrossed("a");
+        keyed.upperCrossed("b");
+        keyed.lowerCrossed("b");
+        assertEquals(2, tasks.size());
+        runTasks();
+        verify(onUpperKeyed).accept("a");
+        verifyNoMoreInteractions(onLowerKeyed, onUpperKeyed);
+
+        final IntConsumer onLowerIndexed = org.mockito.Mockito.mock(IntConsumer.class);
+        final IntConsumer onUpperIndexed = org.mockito.Mockito.mock(IntConsumer.class);
+        final WatermarkDispatcher.IndexedChannels indexed = dispatcher.indexed(4, onLowerIndexed, onUpperIndexed);
+
+        indexed.upperCrossed(3);
+        runTasks();
+        indexed.lowerCrossed(3);
+        runTasks();
+        final InOrder inOrder = inOrder(onLowerIndexed, onUpperIndexed);
+        inOrder.verify(onUpperIndexed).accept(3);
+        inOrder.verify(onLowerIndexed).accept(3);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void retire() {
+        final Consumer<String> onLowerKeyed = org.mockito.Mockito.mock(Consumer.class);
+        final Consumer<String> onUpperKeyed = org.mockito.Mockito.mock(Consumer.class);
+        final WatermarkDispatcher.KeyedChannels<String> keyed = dispatcher.keyed(onLowerKeyed, onUpperKeyed);
+
+        // a channel with a crossing not delivered yet is kept
+        keyed.upperCrossed("a");
+        assertEquals(false, keyed.retire("a"));
+        keyed.lowerCrossed("a");
+        runTasks();
+        keyed.upperCrossed("a");
+        runTasks();
+        keyed.lowerCrossed("a");
+        assertEquals(false, keyed.retire("a"));
+        runTasks();
+        assertEquals(true, keyed.retire("a"));
+        assertEquals(true, keyed.retire("b"));
+
+        // the key crossing again gets a new channel, the only one scheduled
+        keyed.upperCrossed("a");
+        keyed.lowerCrossed("a");
+        keyed.upperCrossed("a");
+        assertEquals(1, tasks.size());
+        runTasks();
+
+        final InOrder inOrder = inOrder(onLowerKeyed, onUpperKeyed);
+        inOrder.verify(onUpperKeyed).accept("a");
+        inOrder.verify(onLowerKeyed).accept("a");
+        inOrder.verify(onUpperKeyed).accept("a");
+        verifyNoMoreInteractions(onLowerKeyed, onUpperKeyed);
+    }
+
+    @Test
+    public void concurrentOrder() throws InterruptedException {
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        final List<Integer> delivered = new ArrayList<>();
+        final AtomicInteger overlaps = new AtomicInteger();
+        final AtomicInteger running = new AtomicInteger();
+
+        final WatermarkDispatcher.Channel channel = new WatermarkDispatcher(executor).channel(
+                () -> deliver(delivered, 0, running, overlaps), () -> deliver(delivered, 1, running, overlaps));
+        for (int i = 0; i < 100_000; ++i) {
+            channel.upperCrossed();
+            channel.lowerCrossed();
+        }
+        channel.upperCrossed();
+
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+
+        // one delivery at a time, alternating and ending in the latest state
+        assertEquals(0, overlaps.get());
+        for (int i = 0; i < delivered.size(); ++i) {
+            assertEquals(i % 2 == 0 ? 1 : 0, delivered.get(i).intValue());
+        }
+        assertEquals(1, delivered.get(delivered.size() - 1).intValue());
+    }
+
+    // === helpers ===
+
+    private void runTasks() {
+        for (Runnable task; (task = tasks.poll()) != null; ) {
+            task.run();
+        }
+    }
+
+    private static void deliver(List<Integer> delivered, int state, AtomicInteger running, AtomicInteger overlaps) {
+        if (running.incrementAndGet() != 1) {
+            overlaps.incrementAndGet();
+        }
+        delivered.add(state);
+        running.decrementAndGet();
+    }
+}
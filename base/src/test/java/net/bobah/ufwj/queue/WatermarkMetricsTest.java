@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2018 Vladimir Lysyy (mrbald@github)
+ * ALv2 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+package net.bobah.ufwj.queue;
+
+import org.junit.Test;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/*
+ * @author Vladimir Lysyy (mrbald@github)
+ */
+public class WatermarkMetricsTest {
+    @Test
+    public void queue() throws InterruptedException {
+        final WatermarkQueue<Integer> queue = new WatermarkQueue<>(1, 3, 0L, () -> {}, () -> {});
+        final WatermarkMetrics metrics = queue.enableMetrics(1);
+
+        queue.offerAll(new Integer[]{1, 2, 3});
+        Thread.sleep(1);
+        assertEquals(1, queue.poll().intValue());
+        assertEquals(1, queue.drainTo(x -> {}, 1));
+
+        final WatermarkMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(3L, snapshot.getEnqueued());
+        assertEquals(2L, snapshot.getDequeued());
+        assertEquals(1L, snapshot.getDepth());
+        assertEquals(2L, snapshot.getCrossings());
+        assertTrue(snapshot.getSuspendedNanos() >= TimeUnit.MILLISECONDS.toNanos(1));
+        assertTrue(snapshot.getSourceDepths().isEmpty());
+
+        // the first element of the batch is sampled
+        assertEquals(1L, snapshot.getSojournSamples());
+        assertTrue(snapshot.getSojournMaxNanos() >= TimeUnit.MILLISECONDS.toNanos(1));
+        assertEquals(snapshot.getSojournMaxNanos(), snapshot.getSojournP99Nanos());
+
+        assertTrue(metrics == queue.enableMetrics(1));
+    }
+
+    @Test
+    public void tracker() throws InterruptedException, JMException {
+        final WatermarkTracker<Integer, Integer> tracker = WatermarkTracker.newMulti(
+                new LinkedBlockingQueue<>(), 1, 3, x -> x % 2, x -> {}, x -> {});
+        tracker.add(1);
+        tracker.add(3);
+        tracker.add(5);
+        assertTrue(tracker.isSuspended(1));
+
+        // a source suspended before the metrics are enabled is accounted for
+        final WatermarkMetrics metrics = tracker.enableMetrics(1);
+        tracker.add(2);
+        assertEquals(1, tracker.poll(0, TimeUnit.SECONDS).intValue());
+
+        final WatermarkMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(1L, snapshot.getEnqueued());
+        assertEquals(1L, snapshot.getDequeued());
+        assertEquals(3L, snapshot.getDepth());
+        assertEquals(2L, snapshot.getSourceDepths().get("1").longValue());
+        assertEquals(1L, snapshot.getSourceDepths().get("0").longValue());
+        assertEquals(1L, snapshot.getCrossings());
+        assertTrue(snapshot.getSuspendedNanos() > 0L);
+
+        metrics.register("tracker");
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName("net.bobah.ufwj:type=WatermarkMetrics,name=\"tracker\"");
+            assertEquals(3L, server.getAttribute(name, "Depth"));
+            assertEquals(1L, server.getAttribute(name, "Enqueued"));
+        } finally {
+            metrics.unregister();
+        }
+        assertFalse(ManagementFactory.getPlatformMBeanServer().queryNames(
+                new ObjectName("net.bobah.ufwj:type=WatermarkMetrics,*"), null).iterator().hasNext());
+    }
+
+    @Test
+    public void refusedAndResumed() throws InterruptedException {
+        final WatermarkTracker<Integer, Void> tracker = WatermarkTracker.newMono(
+                new ArrayBlockingQueue<>(1), 0, 1, () -> {}, () -> {});
+        tracker.add(0);
+        final WatermarkMetrics metrics = tracker.enableMetrics(1);
+
+        // the stamp of the element the full queue refuses is withdrawn, the next element is sampled
+        try {
+            tracker.add(1);
+            fail();
+        } catch (IllegalStateException expected) {
+            assertEquals(0L, metrics.getEnqueued());
+        }
+        assertEquals(0, tracker.poll(0, TimeUnit.SECONDS).intValue());
+        tracker.add(2);
+        assertEquals(2, tracker.poll(0, TimeUnit.SECONDS).intValue());
+        assertEquals(1L, metrics.getSojournSamples());
+
+        // the suspension is closed, its length does not grow any more
+        assertFalse(tracker.isSuspended());
+        final long suspendedNanos = metrics.getSuspendedNanos();
+        assertTrue(suspendedNanos > 0L);
+        Thread.sleep(1);
+        assertEquals(suspendedNanos, metrics.getSuspendedNanos());
+    }
+
+    @Test
+    public void histogram() {
+        final Log2Histogram histogram = new Log2Histogram();
+        assertEquals(0L, histogram.percentile(0.5));
+
+        for (int i = 0; i < 99; ++i) {
+            histogram.record(100);
+        }
+        histogram.record(5000);
+
+        assertEquals(100L, histogram.count());
+        assertEquals(127L, histogram.percentile(0.5));
+        assertEquals(127L, histogram.percentile(0.99));
+        assertEquals(5000L, histogram.percentile(0.999));
+        assertEquals(5000L, histogram.max());
+    }
+}
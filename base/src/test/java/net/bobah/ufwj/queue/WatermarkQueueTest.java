@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2018 Vladimir Lysyy (mrbald@github)
+ * ALv2 (http://www.apache.org/licenses/LICENSE-2.0)
+ */
+
+package net.bobah.ufwj.queue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+
+/*
+ * @author Vladimir Lysyy (mrbald@github)
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class WatermarkQueueTest {
+    @Mock
+    private Runnable onSuspend;
+
+    @Mock
+    private Runnable onResume;
+
+    @Test
+    public void batches() {
+        // the sizes the callbacks see tell a batch evaluation from a per element one
+        final List<Integer> sizes = new ArrayList<>();
+        final List<WatermarkQueue<Integer>> holder = new ArrayList<>();
+        final WatermarkQueue<Integer> queue = new WatermarkQueue<>(1, 3, 0L,
+                () -> sizes.add(holder.get(0).size()), () -> sizes.add(-holder.get(0).size()));
+        holder.add(queue);
+
+        assertEquals(0, queue.offerAll(Collections.emptyList()));
+        assertEquals(5, queue.offerAll(new Integer[]{1, 2, 3, 4, 5}));
+        assertEquals(Collections.singletonList(5), sizes);
+        assertEquals(true, queue.isProducerSuspended());
+
+        final List<Integer> sink = new ArrayList<>();
+        assertEquals(3, queue.drainTo(sink::add, 3));
+        assertEquals(true, queue.isProducerSuspended());
+        assertEquals(2, queue.offerAll(Arrays.asList(6, 7)));
+        assertEquals(4, queue.drainTo(sink::add, 10));
+        assertEquals(Arrays.asList(5, 0), sizes);
+        assertEquals(false, queue.isProducerSuspended());
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6, 7), sink);
+    }
+
+    @Test
+    public void partialBatch() {
+        final WatermarkQueue<String> queue = new WatermarkQueue<>(new ArrayBlockingQueue<>(2), 100, 1000,
+                String::length, null, 0, onSuspend, onResume,
+                WaitStrategies.blocking(), WaitStrategies.blocking());
+
+        // the bounded backing queue takes a prefix of the batch, only the prefix is accounted for
+        assertEquals(2, queue.offerAll(Arrays.asList(bytes(10), bytes(20), bytes(30))));
+        assertEquals(2, queue.size());
+        assertEquals(30L, queue.weight());
+
+        // a null is found before anything is offered
+        try {
+            queue.offerAll(new String[]{bytes(1), null});
+            fail();
+        } catch (NullPointerException expected) {
+            assertEquals(2, queue.size());
+            assertEquals(30L, queue.weight());
+        }
+
+        assertEquals(10, queue.poll().length());
+        assertEquals(1, queue.offerAll(new String[]{bytes(1), bytes(2)}));
+        assertEquals(21L, queue.weight());
+        verifyNoMoreInteractions(onSuspend, onResume);
+    }
+
+    @Test
+    public void failedSink() {
+        final WatermarkQueue<Integer> queue = new WatermarkQueue<>(1, 3, 0L, onSuspend, onResume);
+        queue.offerAll(new Integer[]{1, 2, 3});
+        verify(onSuspend).run();
+
+        // the element handed to a failing sink is gone, the producer is resumed on what is left
+        try {
+            queue.drainTo(x -> {
+                if (x == 2) {
+                    throw new IllegalStateException();
+                }
+            }, 10);
+            fail();
+        } catch (IllegalStateException expected) {
+            assertEquals(1, queue.size());
+            assertEquals(1L, queue.weight());
+        }
+        verify(onResume).run();
+        assertEquals(false, queue.isProducerSuspended());
+
+        assertEquals(3, queue.poll().intValue());
+        assertEquals(0, queue.size());
+        verifyNoMoreInteractions(onSuspend, onResume);
+    }
+
+    // === helpers ===
+
+    private static String bytes(int n) {
+        return new String(new char[n]);
+    }
+}
@@ -11,16 +11,23 @@ import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.IntConsumer;
 
 import static net.bobah.ufwj.queue.WatermarkTracker.newMono;
 import static net.bobah.ufwj.queue.WatermarkTracker.newMulti;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.*;
 
 /*
@@ -129,6 +136,175 @@ public class WatermarkTrackerTest {
         assertEquals(2, multi.trackerForPayload(3).counter);
     }
 
+    @Test
+    public void batches() {
+        final List<Integer> sink = new ArrayList<>();
+
+        // one batch crossing both watermarks up
+        mono.addAll(new Integer[]{1, 2, 3});
+        verifyState(true, false, true);
+
+        // one batch crossing both watermarks down
+        assertEquals(3, mono.drainTo(sink::add, 8));
+        assertEquals(Arrays.asList(1, 2, 3), sink);
+        verifyState(false, true, false);
+
+        assertEquals(0, mono.drainTo(sink::add, 8));
+        verifyState(false, false, false);
+    }
+
+    @Test
+    public void multiBatches() {
+        final WatermarkTracker<Integer, Integer> multi
+                = newMulti(queue, 1, 3, x -> x % 2, onLowerMulti, onUpperMulti);
+
+        multi.addAll(Arrays.asList(1, 3, 2, 5));
+        assertEquals(3, multi.trackerForStream(1).counter);
+        assertEquals(1, multi.trackerForStream(0).counter);
+        verify(onUpperMulti).accept(1);
+
+        assertEquals(3, multi.drainTo(x -> {}, 3));
+        assertEquals(1, multi.trackerForStream(1).counter);
+        assertEquals(0, multi.trackerForStream(0).counter);
+        verify(onLowerMulti).accept(1);
+        verifyNoMoreInteractions(onLowerMulti, onUpperMulti);
+
+        // the element a failing sink throws on stays in the queue, the drain state is reusable
+        try {
+            multi.drainTo(x -> {
+                throw new IllegalStateException();
+            }, 3);
+            fail();
+        } catch (IllegalStateException expected) {
+            assertEquals(1, multi.trackerForStream(1).counter);
+        }
+        assertEquals(1, multi.drainTo(x -> {}, 3));
+        assertEquals(0, multi.trackerForStream(1).counter);
+
+        // a source not seen is not registered by the check
+        assertEquals(false, multi.isSuspended(7));
+        assertEquals(false, multi.sourceDepths().containsKey("7"));
+    }
+
+    @Test
+    public void concurrentCrossings() throws InterruptedException {
+        final int producers = 4;
+        final int perProducer = 50_000;
+        final AtomicInteger suspended = new AtomicInteger();
+        final AtomicInteger crossings = new AtomicInteger();
+        final AtomicInteger violations = new AtomicInteger();
+
+        final WatermarkTracker<Integer, Void> tracker = newMono(new LinkedBlockingQueue<>(), 10, 100,
+                () -> {
+                    crossings.incrementAndGet();
+                    if (suspended.getAndDecrement() != 1) {
+                        violations.incrementAndGet();
+                    }
+                },
+                () -> {
+                    crossings.incrementAndGet();
+                    if (suspended.getAndIncrement() != 0) {
+                        violations.incrementAndGet();
+                    }
+                });
+
+        final List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; ++p) {
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < perProducer; ++i) {
+                    tracker.add(i);
+                }
+            }));
+        }
+        threads.add(new Thread(() -> {
+            try {
+                for (int i = 0; i < producers * perProducer; ++i) {
+                    tracker.poll(1, TimeUnit.MINUTES);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // callbacks alternate, the last one resumes
+        assertEquals(0, violations.get());
+        assertEquals(0, suspended.get());
+        assertEquals(0, crossings.get() % 2);
+        assertEquals(false, tracker.isSuspended());
+    }
+
+    @Test
+    public void indexed() throws InterruptedException {
+        final IntConsumer onLower = mock(IntConsumer.class);
+        final IntConsumer onUpper = mock(IntConsumer.class);
+        final WatermarkTracker<Integer, Integer> indexed = WatermarkTracker.newIndexed(
+                new ArrayBlockingQueue<>(8), 1, 3, x -> x % 2, 2, onLower, onUpper);
+
+        // 1, 3, 5 go to source 1
+        for (int i = 0; i < 6; ++i) {
+            indexed.add(i);
+        }
+        verify(onUpper).accept(0);
+        verify(onUpper).accept(1);
+        assertEquals(true, indexed.isSourceSuspended(1));
+        assertEquals(true, indexed.isSuspended(0));
+        assertEquals(false, indexed.retireSource(1));
+
+        for (int i = 0; i < 6; ++i) {
+            indexed.poll(0, TimeUnit.SECONDS);
+        }
+        verify(onLower).accept(0);
+        verify(onLower).accept(1);
+        assertEquals(false, indexed.isSourceSuspended(1));
+
+        final WatermarkTracker<Integer, Integer>.StreamTracker tracker = indexed.trackerForStream(1);
+        assertEquals(true, indexed.retireSource(1));
+        assertEquals(true, indexed.retire(1));
+        assertEquals(false, indexed.isSuspended(1));
+        assertEquals(false, indexed.sourceDepths().containsKey("1"));
+        assertNotEquals(tracker, indexed.trackerForStream(1));
+        assertEquals(indexed.trackerForStream(0), indexed.trackerForPayload(2));
+    }
+
+    @Test
+    public void retire() {
+        final WatermarkTracker<Integer, Integer> multi = newMulti(queue, 1, 3, x -> x % 2, onLowerMulti, onUpperMulti);
+        multi.add(1);
+        final WatermarkTracker<Integer, Integer>.StreamTracker tracker = multi.trackerForStream(1);
+        assertEquals(false, multi.retire(1));
+        assertEquals(true, multi.retire(0));
+
+        queue.clear();
+        multi.trackerForStream(1).outgoing(1);
+        assertEquals(true, multi.retire(1));
+        assertNotEquals(tracker, multi.trackerForStream(1));
+    }
+
+    @Test
+    public void weighted() {
+        final WatermarkTracker<Integer, Void> weighted = newMono(queue, 10, 30, x -> x, null, onLowerMono, onUpperMono);
+
+        // the weights, not the element count, cross the watermarks
+        weighted.add(20);
+        weighted.add(5);
+        assertEquals(25, weighted.trackerForStream(null).counter);
+        verify(onUpperMono, never()).run();
+
+        weighted.add(5);
+        verify(onUpperMono).run();
+        assertEquals(true, weighted.isSuspended());
+
+        assertEquals(1, weighted.drainTo(x -> {}, 1));
+        assertEquals(10, weighted.trackerForStream(null).counter);
+        verify(onLowerMono).run();
+        assertEquals(false, weighted.isSuspended());
+    }
+
     // === helpers ===
 
     private void verifyState(boolean suspended, boolean onLower, boolean onUpper) {
@@ -137,4 +313,4 @@ public class WatermarkTrackerTest {
         verify(onUpperMono, times(onUpper ? 1 : 0)).run();
         reset(onLowerMono, onUpperMono);
     }
-}
\ No newline at end of file
+}